@@ -1,24 +1,103 @@
 package com.codecollab.source.config;
 
+import com.codecollab.source.service.cluster.ClusterRelay;
+import com.codecollab.source.service.codec.WireFormatConverter;
+import com.codecollab.source.service.codec.WireFormatInterceptor;
+import com.codecollab.source.service.manager.OutboundSessionManager;
+import lombok.RequiredArgsConstructor;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+import java.util.List;
+import java.util.Map;
 
 @Configuration
 @EnableWebSocketMessageBroker
+@RequiredArgsConstructor
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 
+    private final OutboundSessionManager outboundSessionManager;
+    private final WireFormatConverter wireFormatConverter;
+    private final WireFormatInterceptor wireFormatInterceptor;
+    private final ClusterRelay clusterRelay;
+
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
         config.enableSimpleBroker("/topic", "/user");
         config.setApplicationDestinationPrefixes("/app");
         config.setUserDestinationPrefix("/user");
+        // Code sync ops must reach every session in the order they were applied
+        config.setPreservePublishOrder(true);
+        // Room, code and presence broadcasts also go to the other nodes
+        config.configureBrokerChannel().interceptors(clusterRelay);
     }
 
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
         registry.addEndpoint("/ws").setAllowedOriginPatterns("*").withSockJS();
+        // Plain WebSocket next to SockJS: the container negotiates permessage-deflate
+        // and clients on it can ask for binary sync frames
+        registry.addEndpoint("/ws-raw").setAllowedOriginPatterns("*").addInterceptors(new HandshakeInterceptor() {
+            @Override
+            public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response,
+                                           WebSocketHandler wsHandler, Map<String, Object> attributes) {
+                attributes.put(WireFormatInterceptor.RAW_TRANSPORT_ATTRIBUTE, Boolean.TRUE);
+                return true;
+            }
+
+            @Override
+            public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response,
+                                       WebSocketHandler wsHandler, Exception exception) {
+            }
+        });
+        // Hand a session's frames to the handlers in the order they arrived, the room lanes keep it from there
+        registry.setPreserveReceiveOrder(true);
+    }
+
+    @Override
+    public boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+        // Ahead of the JSON converter so sync and compiler output frames are encoded per session
+        messageConverters.add(0, wireFormatConverter);
+        return true;
+    }
+
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        registration.interceptors(wireFormatInterceptor);
+    }
+
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        registration.interceptors(wireFormatInterceptor);
+    }
+
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        // Every session writes through its own conflating queue, so a slow client only backs up itself
+        registration.addDecoratorFactory(handler -> new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                super.afterConnectionEstablished(outboundSessionManager.decorate(session));
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                outboundSessionManager.remove(session.getId());
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        });
     }
 }
@@ -1,7 +1,13 @@
 package com.codecollab.source.controller;
 
 import com.codecollab.source.dto.ChatMessage;
+import com.codecollab.source.dto.CodeDeltaMessage;
 import com.codecollab.source.dto.CodeSyncMessage;
+import com.codecollab.source.service.CodeSyncService;
+import com.codecollab.source.service.PresenceService;
+import com.codecollab.source.service.cluster.ClusterRelay;
+import com.codecollab.source.service.manager.OutboundSessionManager;
+import com.codecollab.source.service.manager.RoomDispatcher;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.messaging.handler.annotation.MessageMapping;
@@ -9,6 +15,7 @@ import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.messaging.handler.annotation.SendTo;
 import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.annotation.SubscribeMapping;
 import org.springframework.stereotype.Controller;
 
 /**
@@ -21,6 +28,10 @@ import org.springframework.stereotype.Controller;
 public class ChatMessageController {
 
     private final SimpMessagingTemplate messagingTemplate;
+    private final CodeSyncService codeSyncService;
+    private final PresenceService presenceService;
+    private final RoomDispatcher roomDispatcher;
+    private final ClusterRelay clusterRelay;
 
     @MessageMapping("/chat.sendMessage")
     @SendTo("/topic/public")
@@ -46,8 +57,7 @@ public class ChatMessageController {
         String destination = "/topic/room/" + chatMessage.getRoomId();
 
         log.info("Broadcasting to destination: {}", destination);
-        messagingTemplate.convertAndSend(destination, chatMessage);
-        log.info("Message broadcast complete");
+        roomDispatcher.dispatch(chatMessage.getRoomId(), () -> messagingTemplate.convertAndSend(destination, chatMessage));
     }
 
     @MessageMapping("/chat.addUser")
@@ -75,7 +85,7 @@ public class ChatMessageController {
         
         // Notify all users in the room about the new user
         String destination = "/topic/room/" + roomId;
-        messagingTemplate.convertAndSend(destination, chatMessage);
+        roomDispatcher.dispatch(roomId, () -> messagingTemplate.convertAndSend(destination, chatMessage));
     }
 
     //FE to codeSyncMessage
@@ -84,10 +94,97 @@ public class ChatMessageController {
         String sender = codeSyncMessage.getSender();
         String roomId = codeSyncMessage.getRoomId();
         
+        // Typing and cursor traffic is coalesced and sent once per presence tick, by the room's owner
+        if (codeSyncMessage.getType() != CodeSyncMessage.MessageType.UPDATE) {
+            if (roomId != null && clusterRelay.forwardIfRemote(roomId, "/code.sync", codeSyncMessage, headerAccessor)) {
+                return;
+            }
+            presenceService.update(codeSyncMessage);
+            return;
+        }
+        
         log.info("Code sync from {} in room {}, type: {}", sender, roomId, codeSyncMessage.getType());
         
+        roomDispatcher.dispatch(roomId, () -> replaceDocument(codeSyncMessage, headerAccessor));
+    }
+
+    //On the room's lane
+    private void replaceDocument(CodeSyncMessage codeSyncMessage, SimpMessageHeaderAccessor headerAccessor) {
+        String roomId = codeSyncMessage.getRoomId();
+        if (roomId != null && clusterRelay.forwardIfRemote(roomId, "/code.sync", codeSyncMessage, headerAccessor,
+                () -> replaceDocument(codeSyncMessage, headerAccessor))) {
+            return;
+        }
+        // Legacy full document update, keep the server copy in step with it
+        CodeDeltaMessage applied = roomId != null
+                ? codeSyncService.replaceDocument(roomId, codeSyncMessage.getCode(), codeSyncMessage.getLanguage(),
+                        codeSyncMessage.getSender())
+                : null;
+
         // Broadcast the code update to all users in the room (including sender for consistency)
+        // A newer full document replaces one still queued for a slow session
         String destination = "/topic/code/" + roomId;
-        messagingTemplate.convertAndSend(destination, codeSyncMessage);
+        messagingTemplate.convertAndSend(destination, codeSyncMessage, OutboundSessionManager.conflate("code/" + roomId));
+        // Op based clients get the update as the op it was turned into
+        if (applied != null) {
+            messagingTemplate.convertAndSend(destination, applied, OutboundSessionManager.catchUp(roomId));
+        }
+    }
+
+    //FE to operation based code sync, only the ops are fanned out
+    @MessageMapping("/code.delta")
+    public void syncDelta(@Payload CodeDeltaMessage delta, SimpMessageHeaderAccessor headerAccessor) {
+        if (delta.getRoomId() == null || delta.getRoomId().isBlank()) {
+            return;
+        }
+
+        // Apply and broadcast on the room's lane so every session sees the room's ops in revision order
+        roomDispatcher.dispatch(delta.getRoomId(), () -> applyDelta(delta, headerAccessor));
+    }
+
+    //On the room's lane
+    private void applyDelta(CodeDeltaMessage delta, SimpMessageHeaderAccessor headerAccessor) {
+        // Only the room's owner holds its document, anyone else hands the op over
+        if (clusterRelay.forwardIfRemote(delta.getRoomId(), "/code.delta", delta, headerAccessor,
+                () -> applyDelta(delta, headerAccessor))) {
+            return;
+        }
+        CodeDeltaMessage applied = codeSyncService.applyDelta(delta);
+        if (applied == null) {
+            // Client is out of step, send it the full document instead
+            sendCatchUp(delta.getRoomId(), -1, headerAccessor.getSessionId());
+            return;
+        }
+
+        messagingTemplate.convertAndSend("/topic/code/" + delta.getRoomId(), applied,
+                OutboundSessionManager.catchUp(delta.getRoomId()));
+    }
+
+    //Join or reconnect: baseRevision is the last revision the client has, -1 for none
+    @MessageMapping("/code.join")
+    public void joinDocument(@Payload CodeDeltaMessage request, SimpMessageHeaderAccessor headerAccessor) {
+        if (request.getRoomId() == null || request.getRoomId().isBlank()) {
+            return;
+        }
+        // Same lane as the deltas, so the catch-up never overtakes an op the client will also receive live
+        roomDispatcher.dispatch(request.getRoomId(), () -> catchUpJoined(request, headerAccessor));
+    }
+
+    //On the room's lane
+    private void catchUpJoined(CodeDeltaMessage request, SimpMessageHeaderAccessor headerAccessor) {
+        if (!clusterRelay.forwardIfRemote(request.getRoomId(), "/code.join", request, headerAccessor,
+                () -> catchUpJoined(request, headerAccessor))) {
+            sendCatchUp(request.getRoomId(), request.getBaseRevision(), headerAccessor.getSessionId());
+        }
+    }
+
+    //Raw WebSocket clients can't read their session id off a SockJS URL, they ask for it once connected
+    @SubscribeMapping("/session")
+    public String session(SimpMessageHeaderAccessor headerAccessor) {
+        return headerAccessor.getSessionId();
+    }
+
+    private void sendCatchUp(String roomId, int lastRevision, String sessionId) {
+        messagingTemplate.convertAndSendToUser(sessionId, "/topic/code/catchup", codeSyncService.catchUp(roomId, lastRevision));
     }
 }
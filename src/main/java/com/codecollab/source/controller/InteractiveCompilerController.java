@@ -23,8 +23,15 @@ public class InteractiveCompilerController {
     public void execute(@Payload ExecuteCodeRequest request, SimpMessageHeaderAccessor headerAccessor) {
         //session_ID generation
         String sessionId = headerAccessor.getSessionId();
-        compilerService.executeInteractive(request.getCode(), request.getLanguage(), sessionId, (output) -> {
+        compilerService.executeInteractive(request.getCode(), request.getLanguage(), sessionId,
+                request.getRoomId(), request.getUsername(), (output) -> {
             messagingTemplate.convertAndSendToUser(sessionId, "/topic/compiler/output", output);
+        }, (status) -> {
+            //Queue position updates go on the same destination, the client tells them apart by status
+            messagingTemplate.convertAndSendToUser(sessionId, "/topic/compiler/output", status);
+        }, (diagnostic) -> {
+            //Error positions for the editor, sent as g++ reports them
+            messagingTemplate.convertAndSendToUser(sessionId, "/topic/compiler/output", diagnostic);
         });
     }
 
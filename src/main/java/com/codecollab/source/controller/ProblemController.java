@@ -1,6 +1,8 @@
 package com.codecollab.source.controller;
 
+import com.codecollab.source.dto.TestCasesRequest;
 import com.codecollab.source.entity.Problem;
+import com.codecollab.source.entity.TestCase;
 import com.codecollab.source.service.ProblemService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.ResponseEntity;
@@ -61,5 +63,31 @@ public class ProblemController {
         Problem problem = problemService.createProblem(title, description, username, userId, photo, file);
         return ResponseEntity.ok(problem);
     }
+    
+    /**
+     * Get the judge test cases of a problem
+     * Requires: user must be the problem author (expected outputs are private)
+     */
+    @GetMapping("/{id}/test-cases")
+    public ResponseEntity<List<TestCase>> getTestCases(@PathVariable String id, @RequestParam String userId) {
+        Problem problem = problemService.getProblemById(id);
+        if (!userId.equals(problem.getUserId())) {
+            return ResponseEntity.status(403).build(); // Forbidden
+        }
+        return ResponseEntity.ok(problem.getTestCases());
+    }
+    
+    /**
+     * Replace the judge test cases and limits of a problem
+     * Requires: user must be the problem author
+     */
+    @PutMapping("/{id}/test-cases")
+    public ResponseEntity<Problem> updateTestCases(@PathVariable String id, @RequestBody TestCasesRequest request) {
+        Problem problem = problemService.getProblemById(id);
+        if (request.getUserId() == null || !request.getUserId().equals(problem.getUserId())) {
+            return ResponseEntity.status(403).build(); // Forbidden
+        }
+        return ResponseEntity.ok(problemService.updateTestCases(id, request));
+    }
 }
 
@@ -4,11 +4,15 @@ import com.codecollab.source.dto.CreateRoomRequest;
 import com.codecollab.source.dto.JoinRoomRequest;
 import com.codecollab.source.dto.RoomResponse;
 import com.codecollab.source.entity.Room;
+import com.codecollab.source.service.RoomDocumentService;
 import com.codecollab.source.service.RoomService;
+import com.codecollab.source.service.cluster.RoomOwnershipService;
+import com.codecollab.source.service.document.RoomDocument;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.Map;
 import java.util.Optional;
 
 //S's part
@@ -18,6 +22,8 @@ import java.util.Optional;
 public class RoomController {
     
     private final RoomService roomService;
+    private final RoomDocumentService roomDocumentService;
+    private final RoomOwnershipService roomOwnershipService;
     
     /**
      * Create a new room
@@ -84,7 +90,7 @@ public class RoomController {
             room.getName(),
             room.getCreatorUsername(),
             room.getActiveUsers(),
-            room.getCurrentCode(),
+            roomDocumentService.getCurrentCode(room),
             room.getCurrentLanguage()
         );
         
@@ -103,10 +109,51 @@ public class RoomController {
         }
         
         Room room = roomOpt.get();
-        return ResponseEntity.ok(java.util.Map.of(
+        return ResponseEntity.ok(Map.of(
             "roomId", room.getRoomId(),
             "usersCount", room.getActiveUsers().size(),
             "users", room.getActiveUsers()
         ));
     }
+    
+    /**
+     * Get live document stats (revision, size and estimated memory)
+     */
+    @GetMapping("/{roomId}/document")
+    public ResponseEntity<?> getRoomDocument(@PathVariable String roomId) {
+        Optional<RoomDocument> documentOpt = roomDocumentService.findLoaded(roomId);
+        
+        if (documentOpt.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        RoomDocument.Snapshot snapshot = documentOpt.get().snapshot();
+        return ResponseEntity.ok(Map.of(
+            "roomId", documentOpt.get().getRoomId(),
+            "revision", snapshot.revision(),
+            "length", snapshot.text().length(),
+            "memoryBytes", documentOpt.get().memoryBytes()
+        ));
+    }
+    
+    /**
+     * Which node holds the room's live document, so a load balancer can
+     * route the room's WebSocket connections there (X-Collab-Node header)
+     */
+    @GetMapping("/{roomId}/owner")
+    public ResponseEntity<?> getRoomOwner(@PathVariable String roomId) {
+        if (roomId == null || roomId.isBlank()) {
+            return ResponseEntity.badRequest().body("Room ID is required");
+        }
+        
+        String owner = roomOwnershipService.currentOwner(roomId);
+        return ResponseEntity.ok()
+            .header("X-Collab-Node", owner)
+            .body(Map.of(
+                "roomId", roomId.toUpperCase().trim(),
+                "owner", owner,
+                "servedBy", roomOwnershipService.nodeId(),
+                "local", owner.equals(roomOwnershipService.nodeId())
+            ));
+    }
 }
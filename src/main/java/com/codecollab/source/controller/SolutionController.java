@@ -115,6 +115,35 @@ public class SolutionController {
         return ResponseEntity.ok(new SolutionResponse(acceptedSolution));
     }
     
+    /**
+     * Queue a solution's code to be judged against the problem's test cases
+     * Requires: user must be the solution author
+     * Answers 202 with a PENDING result; the solution is accepted once every case passes
+     */
+    @PostMapping("/{solutionId}/judge")
+    public ResponseEntity<SolutionResponse> judgeSolution(
+            @PathVariable String solutionId,
+            @RequestParam String userId,
+            @RequestParam(required = false) Boolean stopOnFirstFailure) {
+        Optional<Solution> solutionOpt = solutionService.getSolutionById(solutionId);
+        
+        if (solutionOpt.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        // Verify user is the solution author
+        Solution solution = solutionOpt.get();
+        if (!solution.getUserId().equals(userId)) {
+            return ResponseEntity.status(403).build(); // Forbidden
+        }
+        
+        Solution queuedSolution = solutionService.judgeSolution(solution, stopOnFirstFailure);
+        if (queuedSolution == null) {
+            return ResponseEntity.status(503).build(); // Execution queue is full
+        }
+        return ResponseEntity.accepted().body(new SolutionResponse(queuedSolution));
+    }
+    
     /**
      * Delete a solution
      * Requires: user must be the solution author
@@ -0,0 +1,38 @@
+package com.codecollab.source.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+//Operation based code sync, replaces full document UPDATE frames
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CodeDeltaMessage {
+
+    private String sender;
+    private String clientId;  // Per-tab id so a client can recognise its own acknowledged ops
+    private String roomId;
+    private MessageType type;
+
+    private int baseRevision;  // Revision the client produced the ops against
+    private int revision;      // Revision assigned by the server
+
+    // Components: positive = retain, negative = delete, string = insert
+    private List<Object> ops;
+
+    // Only filled for CATCHUP frames that carry a snapshot
+    private String code;
+    private String language;
+
+    // CATCHUP only: ops after baseRevision, oldest first, up to revision
+    private List<CodeDeltaMessage> backlog;
+
+    public enum MessageType {
+        DELTA,
+        CATCHUP,
+        RESYNC     // Server dropped frames for this session, rejoin from the last revision
+    }
+}
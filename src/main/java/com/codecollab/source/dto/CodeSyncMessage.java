@@ -25,7 +25,8 @@ public class CodeSyncMessage {
         UPDATE,
         TYPING,
         STOPPED_TYPING,
-        CURSOR_ACTIVITY
+        CURSOR_ACTIVITY,
+        LEAVE  // Sent by the server when a user disconnects, clears their presence
     }
 
     @Data
@@ -0,0 +1,18 @@
+package com.codecollab.source.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+//One g++ error / warning with its position, sent while the compile is still running
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CompileDiagnostic {
+
+    private String file;      // main.cpp for the user's code
+    private int line;         // 1-based
+    private int column;       // 1-based, 0 when g++ gave none
+    private String severity;  // error, fatal error, warning or note
+    private String message;
+}
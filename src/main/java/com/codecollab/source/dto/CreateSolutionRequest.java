@@ -13,4 +13,7 @@ public class CreateSolutionRequest {
     private String userId;
     private String title;
     private String content;
+    // Optional runnable code for the judge
+    private String code;
+    private String language;
 }
@@ -11,4 +11,6 @@ public class ExecuteCodeRequest {
     private String code;
     private String language;
     private String input; // stdin input for the program
+    private String roomId;    // Room the run is queued under for fair scheduling
+    private String username;
 }
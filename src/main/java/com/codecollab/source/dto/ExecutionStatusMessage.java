@@ -0,0 +1,22 @@
+package com.codecollab.source.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+//Where a run is in the execution queue, sent on the same destination as its output
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ExecutionStatusMessage {
+
+    private Status status;
+    private int position;    // 1 = next to start, only for QUEUED
+    private String message;
+
+    public enum Status {
+        QUEUED,
+        STARTED,
+        REJECTED
+    }
+}
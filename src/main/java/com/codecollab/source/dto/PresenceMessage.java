@@ -0,0 +1,27 @@
+package com.codecollab.source.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+//Combined presence of everyone in a room, sent at most once per tick
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PresenceMessage {
+
+    private String roomId;
+    private List<UserPresence> users;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class UserPresence {
+        private String sender;
+        private boolean typing;
+        private CodeSyncMessage.CursorPosition cursor;
+        private CodeSyncMessage.TextSelection selection;
+    }
+}
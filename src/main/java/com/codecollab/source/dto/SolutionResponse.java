@@ -1,5 +1,6 @@
 package com.codecollab.source.dto;
 
+import com.codecollab.source.entity.JudgeResult;
 import com.codecollab.source.entity.Solution;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -18,6 +19,9 @@ public class SolutionResponse {
     private String title;
     private String content;
     private boolean isAccepted;
+    private String code;
+    private String language;
+    private JudgeResult judgeResult;
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
     
@@ -29,6 +33,9 @@ public class SolutionResponse {
         this.title = solution.getTitle();
         this.content = solution.getContent();
         this.isAccepted = solution.isAccepted();
+        this.code = solution.getCode();
+        this.language = solution.getLanguage();
+        this.judgeResult = solution.getJudgeResult();
         this.createdAt = solution.getCreatedAt();
         this.updatedAt = solution.getUpdatedAt();
     }
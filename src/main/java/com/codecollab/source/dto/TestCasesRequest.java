@@ -0,0 +1,19 @@
+package com.codecollab.source.dto;
+
+import com.codecollab.source.entity.TestCase;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TestCasesRequest {
+    private String userId;
+    private List<TestCase> testCases;
+    // Left unchanged when null
+    private Long timeLimitMs;
+    private Integer memoryLimitMb;
+}
@@ -0,0 +1,37 @@
+package com.codecollab.source.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of judging a solution against its problem's test cases.
+ * The verdict is the first failing case's, or ACCEPTED when all passed.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class JudgeResult {
+    
+    private Verdict verdict;
+    
+    private int passed;
+    
+    private int total;
+    
+    // Compiler output when the build failed, or why judging could not start
+    private String compileOutput;
+    
+    private List<TestCaseResult> cases = new ArrayList<>();
+    
+    private long compileTimeMs;
+    
+    private LocalDateTime judgedAt;
+    
+    // Same program, tests and limits as an earlier judging, whose result this is
+    private boolean cached;
+}
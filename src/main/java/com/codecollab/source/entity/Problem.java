@@ -1,5 +1,6 @@
 package com.codecollab.source.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.Field;
@@ -45,10 +46,27 @@ public class Problem {
     @Field("solutions")
     private List<String> solutionIds = new ArrayList<>();
     
+    // Judge tests; hidden from the problem listing so the expected outputs stay private
+    @JsonIgnore
+    @Field("test_cases")
+    private List<TestCase> testCases = new ArrayList<>();
+    
+    // CPU time per test case
+    @Field("time_limit_ms")
+    private long timeLimitMs = 2000;
+    
+    @Field("memory_limit_mb")
+    private int memoryLimitMb = 256;
+    
     public Problem(String title, String description) {
         this.title = title;
         this.description = description;
         this.createdAt = LocalDateTime.now();
         this.solutionIds = new ArrayList<>();
+        this.testCases = new ArrayList<>();
+    }
+    
+    public int getTestCaseCount() {
+        return testCases != null ? testCases.size() : 0;
     }
 }
@@ -37,6 +37,8 @@ public class Room {
     
     private String currentLanguage = "javascript";
     
+    private int codeRevision;  // Live document revision currentCode was saved at
+    
     private LocalDateTime createdAt;
     
     private LocalDateTime lastActivity;
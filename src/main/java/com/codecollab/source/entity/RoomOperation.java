@@ -0,0 +1,45 @@
+package com.codecollab.source.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+//One applied code sync op, kept in a capped collection
+@Document(collection = "room_operations")
+@CompoundIndex(name = "room_revision", def = "{'roomId': 1, 'revision': 1}")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RoomOperation {
+
+    @Id
+    private String id;
+
+    private String roomId;
+
+    private int revision;
+
+    private String clientId;
+
+    private String sender;
+
+    // Components: positive = retain, negative = delete, string = insert
+    private List<Object> ops;
+
+    private LocalDateTime appliedAt;
+
+    public RoomOperation(String roomId, int revision, String clientId, String sender, List<Object> ops) {
+        this.roomId = roomId;
+        this.revision = revision;
+        this.clientId = clientId;
+        this.sender = sender;
+        this.ops = ops;
+        this.appliedAt = LocalDateTime.now();
+    }
+}
@@ -36,6 +36,16 @@ public class Solution {
     @Field("is_accepted")
     private boolean isAccepted;
     
+    // Runnable submission, judged against the problem's test cases
+    @Field("code")
+    private String code;
+    
+    @Field("language")
+    private String language;
+    
+    @Field("judge_result")
+    private JudgeResult judgeResult;
+    
     @Field("created_at")
     private LocalDateTime createdAt;
     
@@ -0,0 +1,19 @@
+package com.codecollab.source.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One judge test of a problem: what goes to stdin and the output
+ * a correct solution prints. Stored inside the problem document.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TestCase {
+    
+    private String input;
+    
+    private String expectedOutput;
+}
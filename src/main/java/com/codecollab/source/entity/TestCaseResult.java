@@ -0,0 +1,33 @@
+package com.codecollab.source.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * How a solution did on one test case.
+ * Time, CPU and memory are -1 when the case did not run or could not be measured.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TestCaseResult {
+    
+    private int index;
+    
+    private Verdict verdict;
+    
+    private long timeMs;
+    
+    private long cpuMs;
+    
+    private long memoryKb;
+    
+    private int exitCode;
+    
+    // First difference or the limit that was hit, null when it passed
+    private String message;
+    
+    // Stopped for going over a resource limit instead of ending by itself
+    private boolean killed;
+}
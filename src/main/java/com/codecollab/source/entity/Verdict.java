@@ -0,0 +1,16 @@
+package com.codecollab.source.entity;
+
+public enum Verdict {
+    ACCEPTED,
+    WRONG_ANSWER,
+    TIME_LIMIT_EXCEEDED,
+    MEMORY_LIMIT_EXCEEDED,
+    RUNTIME_ERROR,
+    COMPILATION_ERROR,
+    // Not run, an earlier case already failed
+    SKIPPED,
+    // Waiting for or being judged, the real result replaces it
+    PENDING,
+    // Could not be judged, e.g. no test cases or an unsupported language
+    JUDGE_ERROR
+}
@@ -1,6 +1,10 @@
 package com.codecollab.source.listener;
 
 import com.codecollab.source.dto.ChatMessage;
+import com.codecollab.source.dto.CodeSyncMessage;
+import com.codecollab.source.service.PresenceService;
+import com.codecollab.source.service.cluster.ClusterRelay;
+import com.codecollab.source.service.manager.ExecutionReaper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.event.EventListener;
@@ -19,15 +23,22 @@ import org.springframework.web.socket.messaging.SessionDisconnectEvent;
 public class WebSocketEventListener {
     
     private final SimpMessageSendingOperations messagingTemplate;
+    private final PresenceService presenceService;
+    private final ClusterRelay clusterRelay;
+    private final ExecutionReaper executionReaper;
     
     /**
      * Handle user disconnect event
      * Broadcasts a LEAVE message when a user disconnects
+     * and stops the program the session was running
      */
     @EventListener
     public void handleWebSocketDisconnectListener(SessionDisconnectEvent event) {
         StompHeaderAccessor headerAccessor = StompHeaderAccessor.wrap(event.getMessage());
         
+        // Nobody is left to read its output or type its input
+        executionReaper.sessionClosed(event.getSessionId());
+        
         String username = (String) headerAccessor.getSessionAttributes().get("username");
         if (username != null) {
             log.info("User Disconnected: " + username);
@@ -37,6 +48,24 @@ public class WebSocketEventListener {
             chatMessage.setSender(username);
             
             messagingTemplate.convertAndSend("/topic/public", chatMessage);
+            
+            String roomId = (String) headerAccessor.getSessionAttributes().get("roomId");
+            if (roomId != null) {
+                // Presence lives with the room's owner, which may be another node
+                CodeSyncMessage leave = new CodeSyncMessage();
+                leave.setSender(username);
+                leave.setRoomId(roomId);
+                leave.setType(CodeSyncMessage.MessageType.LEAVE);
+                leaveRoom(roomId, leave, headerAccessor);
+            }
+        }
+    }
+
+    //Held until the room's owner is settled, a lost leave would keep the user listed
+    private void leaveRoom(String roomId, CodeSyncMessage leave, StompHeaderAccessor headerAccessor) {
+        if (!clusterRelay.forwardIfRemote(roomId, "/code.sync", leave, headerAccessor,
+                () -> leaveRoom(roomId, leave, headerAccessor))) {
+            presenceService.remove(roomId, leave.getSender());
         }
     }
 }
@@ -0,0 +1,12 @@
+package com.codecollab.source.repository;
+
+import com.codecollab.source.entity.RoomOperation;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface RoomOperationRepository extends MongoRepository<RoomOperation, String> {
+    List<RoomOperation> findByRoomIdAndRevisionGreaterThanOrderByRevisionAsc(String roomId, int revision);
+}
@@ -0,0 +1,95 @@
+package com.codecollab.source.service;
+
+import com.codecollab.source.dto.CodeDeltaMessage;
+import com.codecollab.source.service.document.RoomDocument;
+import com.codecollab.source.service.document.TextOperation;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+
+/**
+ * Server side of the operation based code sync.
+ * Every room has one revision counter; incoming ops are transformed against
+ * whatever was applied since the client's base revision, so only the ops
+ * have to be fanned out instead of the whole document.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class CodeSyncService {
+
+    private final RoomDocumentService roomDocumentService;
+    private final RoomPersistenceService roomPersistenceService;
+    private final RoomOperationLogService roomOperationLogService;
+
+    /**
+     * Applies a client delta to the room document.
+     * Returns the transformed delta to broadcast, or null when the client is
+     * too far behind (or sent a broken op) and has to resync from a snapshot.
+     */
+    public CodeDeltaMessage applyDelta(CodeDeltaMessage delta) {
+        RoomDocument document = roomDocumentService.getDocument(delta.getRoomId());
+
+        try {
+            TextOperation operation = TextOperation.fromJson(delta.getOps());
+            RoomDocument.LoggedOperation applied = document.apply(delta.getBaseRevision(), operation,
+                    delta.getClientId(), delta.getSender());
+
+            if (applied == null) {
+                log.info("Client {} in room {} is out of range (base {}, server {})",
+                        delta.getClientId(), delta.getRoomId(), delta.getBaseRevision(), document.getRevision());
+                return null;
+            }
+
+            roomPersistenceService.markDirty(delta.getRoomId());
+            roomOperationLogService.append(document.getRoomId(), applied);
+
+            CodeDeltaMessage message = toDelta(delta.getRoomId(), applied);
+            message.setBaseRevision(delta.getBaseRevision());
+            return message;
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected delta from {} in room {}: {}", delta.getClientId(), delta.getRoomId(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Everything a client at lastRevision is missing: only the newer ops if
+     * the op log still covers lastRevision, otherwise (or for -1) the last
+     * compacted snapshot plus the ops applied after it.
+     */
+    public CodeDeltaMessage catchUp(String roomId, int lastRevision) {
+        RoomDocument.CatchUp catchUp = roomDocumentService.getDocument(roomId).catchUp(lastRevision);
+
+        List<CodeDeltaMessage> backlog = catchUp.ops().stream()
+                .map(logged -> toDelta(roomId, logged))
+                .toList();
+        return new CodeDeltaMessage(null, null, roomId, CodeDeltaMessage.MessageType.CATCHUP,
+                catchUp.baseRevision(), catchUp.revision(), null, catchUp.code(), catchUp.language(), backlog);
+    }
+
+    /**
+     * Used by legacy clients that still send full UPDATE frames. The new
+     * text becomes an op like any other; returns it for broadcasting, or
+     * null when the text didn't change.
+     */
+    public CodeDeltaMessage replaceDocument(String roomId, String code, String language, String sender) {
+        RoomDocument document = roomDocumentService.getDocument(roomId);
+        RoomDocument.LoggedOperation applied = document.replace(code, language, null, sender);
+        roomPersistenceService.markDirty(roomId);
+        if (applied == null) {
+            return null;
+        }
+        roomOperationLogService.append(document.getRoomId(), applied);
+        CodeDeltaMessage message = toDelta(roomId, applied);
+        message.setLanguage(language);
+        return message;
+    }
+
+    private CodeDeltaMessage toDelta(String roomId, RoomDocument.LoggedOperation logged) {
+        return new CodeDeltaMessage(logged.sender(), logged.clientId(), roomId, CodeDeltaMessage.MessageType.DELTA,
+                logged.revision() - 1, logged.revision(), logged.operation().toJson(), null, null, null);
+    }
+}
@@ -0,0 +1,335 @@
+package com.codecollab.source.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Built binaries on disk, keyed by a SHA-256 of everything that affects
+ * the build: language, compiler version, flags and source. Least recently
+ * used entries are evicted past maxBytes or maxEntries. The index is
+ * rebuilt from the directory at startup, so the cache survives restarts.
+ * Runs only ever get a copy of a binary, checked against the SHA-256
+ * recorded when it was stored, so a program can't change what the next
+ * run is handed.
+ */
+@Slf4j
+@Service
+public class CompileCacheService {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    //Next to every binary, its SHA-256 from when it was stored
+    private static final String HASH_SUFFIX = ".sha256";
+
+    private final Path cacheDir;
+    private final long maxBytes;
+    private final int maxEntries;
+
+    //key -> entry, in access order; guarded by itself together with totalBytes
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    //compiler command -> its --version banner
+    private final Map<String, String> compilerVersions = new ConcurrentHashMap<>();
+
+    private final MeterRegistry meterRegistry;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    public CompileCacheService(MeterRegistry meterRegistry,
+                               @Value("${collab.compile-cache.dir:${java.io.tmpdir}/codecollab-compile-cache}") String cacheDir,
+                               @Value("${collab.compile-cache.max-bytes:536870912}") long maxBytes,
+                               @Value("${collab.compile-cache.max-entries:2000}") int maxEntries) {
+        this.cacheDir = Paths.get(cacheDir).toAbsolutePath().normalize();
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+
+        try {
+            Files.createDirectories(this.cacheDir);
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not create the compile cache directory " + this.cacheDir, ex);
+        }
+
+        this.meterRegistry = meterRegistry;
+        this.hits = Counter.builder("codecollab.compile.cache.requests").tag("result", "hit")
+                .description("Compile cache lookups")
+                .register(meterRegistry);
+        this.misses = Counter.builder("codecollab.compile.cache.requests").tag("result", "miss")
+                .description("Compile cache lookups")
+                .register(meterRegistry);
+        this.evictions = Counter.builder("codecollab.compile.cache.evictions")
+                .description("Binaries evicted from the compile cache")
+                .register(meterRegistry);
+
+        loadIndex();
+    }
+
+    //Registered once the cache is fully built, the gauges keep a reference to it
+    @PostConstruct
+    public void registerGauges() {
+        meterRegistry.gauge("codecollab.compile.cache.bytes", this, CompileCacheService::sizeBytes);
+        meterRegistry.gauge("codecollab.compile.cache.entries", this, CompileCacheService::entryCount);
+    }
+
+    //Cache key for a build; anything that changes the binary has to be part of it, see LanguageRuntime.toolchain
+    public String key(String language, String toolchain, String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : List.of(language, toolchain, source)) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Copies the cached binary for key to target, which then belongs to
+     * the caller alone. Returns false on a miss, including an entry whose
+     * bytes no longer match its hash; that entry is dropped.
+     */
+    public boolean fetch(String key, Path target) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null) {
+                misses.increment();
+                return false;
+            }
+            //Copied under the lock so eviction can't delete it halfway
+            try {
+                copyArtifact(cacheDir.resolve(key), target);
+            } catch (IOException e) {
+                log.warn("Dropping unreadable compile cache entry {}: {}", key, e.getMessage());
+                remove(key);
+                deleteQuietly(target);
+                misses.increment();
+                return false;
+            }
+        }
+
+        //The copy is checked, that is what the run gets
+        String sha256;
+        try {
+            sha256 = hashFile(target);
+        } catch (IOException e) {
+            sha256 = null;
+        }
+        if (!entry.sha256().equals(sha256)) {
+            log.warn("Dropping compile cache entry {}, its contents changed since it was stored", key);
+            synchronized (entries) {
+                //Unless it was stored again in the meantime
+                if (entries.get(key) == entry) {
+                    remove(key);
+                }
+            }
+            deleteQuietly(target);
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        return true;
+    }
+
+    //Adds a freshly built binary as a copy of its own, the original stays where it is
+    public void store(String key, Path binary) {
+        String suffix = TEMP_SUFFIX + Thread.currentThread().threadId();
+        Path temp = cacheDir.resolve(key + suffix);
+        Path tempHash = cacheDir.resolve(key + HASH_SUFFIX + suffix);
+        try {
+            copyArtifact(binary, temp);
+            Entry entry = new Entry(Files.size(temp), hashFile(temp));
+            Files.writeString(tempHash, entry.sha256());
+            synchronized (entries) {
+                Files.move(tempHash, cacheDir.resolve(key + HASH_SUFFIX),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(temp, cacheDir.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Entry previous = entries.put(key, entry);
+                totalBytes += entry.size() - (previous != null ? previous.size() : 0L);
+                evictIfNeeded();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to store {} in the compile cache: {}", key, e.getMessage());
+            deleteQuietly(temp);
+            deleteQuietly(tempHash);
+        }
+    }
+
+    /**
+     * Copies a build artifact, replacing target. Never a hard link: the
+     * copy may be written to by the program it belongs to. On Linux the
+     * copy goes through copy_file_range, so file systems that can reflink
+     * share the blocks until either side is written.
+     */
+    public static void copyArtifact(Path source, Path target) throws IOException {
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+
+    /**
+     * First line of `compiler --version`, so a compiler upgrade changes
+     * every key. Looked up once per compiler, see refreshCompilerVersion.
+     */
+    public String compilerVersion(String compiler) {
+        //Null is not cached, so a missing compiler is asked again next time
+        String version = compilerVersions.computeIfAbsent(compiler, CompileCacheService::queryVersion);
+        return version != null ? version : compiler;
+    }
+
+    //Asks the compiler again, for callers that watch for upgrades
+    public String refreshCompilerVersion(String compiler) {
+        String version = queryVersion(compiler);
+        if (version == null) {
+            compilerVersions.remove(compiler);
+            return compiler;
+        }
+        String previous = compilerVersions.put(compiler, version);
+        if (previous != null && !previous.equals(version)) {
+            log.info("Compiler {} changed from '{}' to '{}'", compiler, previous, version);
+        }
+        return version;
+    }
+
+    private static String queryVersion(String compiler) {
+        try {
+            Process process = new ProcessBuilder(compiler, "--version").redirectErrorStream(true).start();
+            String banner = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            process.waitFor();
+            return banner.lines().findFirst().orElse(compiler).trim();
+        } catch (IOException e) {
+            //Not installed; builds fail anyway
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    public long sizeBytes() {
+        synchronized (entries) {
+            return totalBytes;
+        }
+    }
+
+    public int entryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    //Under the entries lock
+    private void evictIfNeeded() {
+        var iterator = entries.entrySet().iterator();
+        while ((totalBytes > maxBytes || entries.size() > maxEntries) && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            totalBytes -= eldest.getValue().size();
+            deleteEntryFiles(eldest.getKey());
+            evictions.increment();
+        }
+    }
+
+    //Under the entries lock
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            totalBytes -= entry.size();
+        }
+        deleteEntryFiles(key);
+    }
+
+    private void deleteEntryFiles(String key) {
+        deleteQuietly(cacheDir.resolve(key));
+        deleteQuietly(cacheDir.resolve(key + HASH_SUFFIX));
+    }
+
+    private void loadIndex() {
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            //Oldest first, so the access order roughly matches last use
+            files.sorted(Comparator.comparingLong(this::lastModified)).forEach(file -> {
+                String name = file.getFileName().toString();
+                if (name.contains(TEMP_SUFFIX)) {
+                    //Left behind by a crash mid-store
+                    deleteQuietly(file);
+                    return;
+                }
+                if (name.endsWith(HASH_SUFFIX)) {
+                    //Read with its binary; one without a binary is a leftover
+                    if (!Files.exists(cacheDir.resolve(name.substring(0, name.length() - HASH_SUFFIX.length())))) {
+                        deleteQuietly(file);
+                    }
+                    return;
+                }
+                try {
+                    Entry entry = new Entry(Files.size(file), Files.readString(cacheDir.resolve(name + HASH_SUFFIX)).trim());
+                    entries.put(name, entry);
+                    totalBytes += entry.size();
+                } catch (IOException e) {
+                    //No recorded hash, e.g. stored by an older version; it can't be checked
+                    deleteEntryFiles(name);
+                }
+            });
+            evictIfNeeded();
+        } catch (IOException e) {
+            log.warn("Could not read compile cache directory {}: {}", cacheDir, e.getMessage());
+        }
+        log.info("Compile cache at {} has {} binaries ({} bytes)", cacheDir, entries.size(), totalBytes);
+    }
+
+    private long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static String hashFile(Path file) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = Files.newInputStream(file)) {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private record Entry(long size, String sha256) {
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debug("Failed to delete {}: {}", file, e.getMessage());
+        }
+    }
+}
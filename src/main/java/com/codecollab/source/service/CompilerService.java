@@ -1,94 +1,306 @@
 package com.codecollab.source.service;
 
+import com.codecollab.source.dto.CompileDiagnostic;
 import com.codecollab.source.dto.ExecuteCodeResponse;
+import com.codecollab.source.dto.ExecutionStatusMessage;
+import com.codecollab.source.service.manager.ExecutionScheduler;
+import com.codecollab.source.service.manager.OutputBatcher;
+import com.codecollab.source.service.manager.ProcessIoPump;
 import com.codecollab.source.service.manager.ProcessManager;
-import lombok.RequiredArgsConstructor;
+import com.codecollab.source.service.manager.ResourceLimiter;
+import com.codecollab.source.service.manager.WorkspacePool;
+import com.codecollab.source.service.runtime.CompileResult;
+import com.codecollab.source.service.runtime.CompileSinks;
+import com.codecollab.source.service.runtime.LanguageRuntime;
+import com.codecollab.source.service.worker.WorkerPool;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 
 //Sazzad's part
 @Slf4j
 @Service
-@RequiredArgsConstructor
 public class CompilerService {
 
+    //A client that is this far behind gets closed by the outbound queue anyway
+    private static final long PIPE_DRAIN_TIMEOUT_MS = 10000;
+
     private final ProcessManager processManager;
+    private final ExecutionScheduler executionScheduler;
+    private final ProcessIoPump processIoPump;
+    private final OutputBatcher outputBatcher;
+    private final ResourceLimiter resourceLimiter;
+    private final WorkspacePool workspacePool;
+    private final CompileCacheService compileCacheService;
+    private final WorkerPool workerPool;
+
+    //language name or alias -> runtime
+    private final Map<String, LanguageRuntime> runtimes = new TreeMap<>();
+    private final Map<LanguageRuntime, Timer> compileTimers = new ConcurrentHashMap<>();
+    private final Map<LanguageRuntime, Timer> runTimers = new ConcurrentHashMap<>();
+
+    //cache key -> compile running for it
+    private final Map<String, CompletableFuture<CompileResult>> compilesInFlight = new ConcurrentHashMap<>();
+    private final Counter compilesJoined;
+
+    public CompilerService(ProcessManager processManager,
+                           ExecutionScheduler executionScheduler,
+                           ProcessIoPump processIoPump,
+                           OutputBatcher outputBatcher,
+                           ResourceLimiter resourceLimiter,
+                           WorkspacePool workspacePool,
+                           CompileCacheService compileCacheService,
+                           WorkerPool workerPool,
+                           List<LanguageRuntime> languageRuntimes,
+                           MeterRegistry meterRegistry) {
+        this.processManager = processManager;
+        this.executionScheduler = executionScheduler;
+        this.processIoPump = processIoPump;
+        this.outputBatcher = outputBatcher;
+        this.resourceLimiter = resourceLimiter;
+        this.workspacePool = workspacePool;
+        this.compileCacheService = compileCacheService;
+        this.workerPool = workerPool;
+        this.compilesJoined = Counter.builder("codecollab.compile.singleflight.joined")
+                .description("Compiles that waited for an identical compile already running")
+                .register(meterRegistry);
+
+        for (LanguageRuntime runtime : languageRuntimes) {
+            runtimes.put(runtime.language(), runtime);
+            runtime.aliases().forEach(alias -> runtimes.putIfAbsent(alias, runtime));
+            compileTimers.put(runtime, Timer.builder("codecollab.runtime.compile").tag("language", runtime.language())
+                    .description("Time spent compiling, cache hits excluded")
+                    .register(meterRegistry));
+            runTimers.put(runtime, Timer.builder("codecollab.runtime.run").tag("language", runtime.language())
+                    .description("Wall time of user programs")
+                    .register(meterRegistry));
+        }
+    }
+
+    public void executeInteractive(String code, String language, String sessionId,
+                                   String roomId, String username,
+                                   Consumer<ExecuteCodeResponse> outputCallback,
+                                   Consumer<ExecutionStatusMessage> statusCallback,
+                                   Consumer<CompileDiagnostic> diagnosticCallback) {
+        //Handed to an execution worker when there are any, else it runs here; the program the
+        //session still has on a worker is stopped by the pool once the new run has a place
+        Process previous = processManager.getProcess(sessionId);
+        Runnable runHere = () -> executeLocally(code, language, sessionId, roomId, username,
+                outputCallback, statusCallback, diagnosticCallback, () -> { });
+        if (workerPool.dispatch(sessionId, code, language, roomId, username,
+                outputCallback, statusCallback, diagnosticCallback, runHere)) {
+            //The worker has the new run, the one still going here can stop
+            processManager.removeProcess(sessionId, previous);
+        } else {
+            runHere.run();
+        }
+    }
+
+    /**
+     * Runs the code on this node, never on a worker. onFinished is called
+     * once the run is over however it ended, unless it is cancelled while
+     * still waiting for a slot.
+     */
+    public void executeLocally(String code, String language, String sessionId,
+                               String roomId, String username,
+                               Consumer<ExecuteCodeResponse> outputCallback,
+                               Consumer<ExecutionStatusMessage> statusCallback,
+                               Consumer<CompileDiagnostic> diagnosticCallback,
+                               Runnable onFinished) {
+        LanguageRuntime runtime = findRuntime(language);
+        if (runtime == null) {
+            outputCallback.accept(new ExecuteCodeResponse("Language '" + language + "' is not supported. Supported: "
+                    + String.join(", ", supportedLanguages()) + ".", true));
+            onFinished.run();
+            return;
+        }
+        if (!runtime.isAvailable()) {
+            outputCallback.accept(new ExecuteCodeResponse("Running " + runtime.language()
+                    + " is not available on this server.", true));
+            onFinished.run();
+            return;
+        }
 
-    public void executeInteractive(String code, String language, String sessionId, Consumer<ExecuteCodeResponse> outputCallback) {
-        new Thread(() -> {
+        //The session's program from an earlier Run keeps going until this one got its place;
+        //an earlier run that is still waiting is simply replaced in the queue
+        Process previous = processManager.getProcess(sessionId);
 
-            //Only Cpp file is supported
-            if (!"cpp".equalsIgnoreCase(language)) {
-                outputCallback.accept(new ExecuteCodeResponse("Only C++ is supported.", true));
+        //Runs go through the scheduler so a burst of Run clicks queues instead of starting every g++ at once
+        boolean admitted = executionScheduler.submit(sessionId, roomId, username,
+                position -> statusCallback.accept(position > 0
+                        ? new ExecutionStatusMessage(ExecutionStatusMessage.Status.QUEUED, position,
+                                "Waiting for a free slot, position " + position + " in queue")
+                        : new ExecutionStatusMessage(ExecutionStatusMessage.Status.STARTED, 0, null)),
+                () -> runInteractive(runtime, code, sessionId, outputCallback, diagnosticCallback, onFinished));
+
+        if (!admitted) {
+            statusCallback.accept(new ExecutionStatusMessage(ExecutionStatusMessage.Status.REJECTED, 0,
+                    "Server is busy, too many programs are waiting to run. Please try again shortly."));
+            onFinished.run();
+            return;
+        }
+        processManager.removeProcess(sessionId, previous);
+    }
+
+    //The runtime for a language name or alias, null when unknown
+    public LanguageRuntime findRuntime(String language) {
+        return language != null ? runtimes.get(language.toLowerCase(Locale.ROOT).trim()) : null;
+    }
+
+    //Available languages by their main name
+    public List<String> supportedLanguages() {
+        return runtimes.values().stream()
+                .filter(LanguageRuntime::isAvailable)
+                .map(LanguageRuntime::language)
+                .distinct()
+                .sorted()
+                .toList();
+    }
+
+    private void runInteractive(LanguageRuntime runtime, String code, String sessionId,
+                                Consumer<ExecuteCodeResponse> outputCallback,
+                                Consumer<CompileDiagnostic> diagnosticCallback,
+                                Runnable onFinished) {
+        Path tempDir = null;
+        Process executeProcess = null;
+
+        try {
+
+            //this part is responsible for creating temp file path, a warm one from the pool
+            tempDir = workspacePool.acquire();
+
+            CompileSinks sinks = new CompileSinks(
+                    text -> outputCallback.accept(new ExecuteCodeResponse(text, true)), diagnosticCallback);
+            if (!build(runtime, code, tempDir, sinks)) {
                 return;
             }
 
-            Path tempDir = null;
+            //this is the .exe part, started under the CPU / memory / time limits
+            ResourceLimiter.LimitedProcess limited = resourceLimiter.start(
+                    runtime.prepareRun(code, tempDir), tempDir, runtime.limitAddressSpace());
+            executeProcess = limited.process();
+            processManager.addProcess(sessionId, executeProcess);
 
-            try {
+            //these lines return the output to the frontend, pumped with every other program's output
+            //and sent in batches, paused while this client is behind
+            OutputBatcher.Batch output = outputBatcher.open(sessionId, outputCallback, limited::cancel);
+            CompletableFuture<Void> stdout = processIoPump.register(executeProcess, executeProcess.getInputStream(), false,
+                    (text) -> output.append(text, false), output::canAccept);
+            CompletableFuture<Void> stderr = processIoPump.register(executeProcess, executeProcess.getErrorStream(), true,
+                    (text) -> output.append(text, true), output::canAccept);
 
-                //this part is responsible for creating temp file path
-                tempDir = Files.createTempDirectory("codecollab-compiler");
-                Path sourceFile = tempDir.resolve("main.cpp");
-                Files.writeString(sourceFile, code);
-
-                //This is the compilation Part
-                //With the help of ProcessBuilder
-                //This becomes easy and deploy ready
-                //but g++ has to be installed on that native machine
-                ProcessBuilder compileBuilder = new ProcessBuilder("g++", sourceFile.toString(), "-o", tempDir.resolve("main").toString());
-                Process compileProcess = compileBuilder.start();
-                int compileExitCode = compileProcess.waitFor();
-
-                if (compileExitCode != 0) {
-                    String error = readStream(compileProcess.getErrorStream());
-                    outputCallback.accept(new ExecuteCodeResponse(error, true));
-                    return;
-                }
+            //ending part this returns 0
+            ResourceLimiter.Usage usage = limited.waitFor();
+            runTimers.get(runtime).record(usage.wallMillis(), TimeUnit.MILLISECONDS);
+            //Let the last output reach the terminal before the exit line
+            awaitPipes(stdout, stderr);
+            output.close();
+            if (usage.limitExceeded() != null) {
+                outputCallback.accept(new ExecuteCodeResponse("\nProcess killed: " + usage.limitExceeded() + " exceeded", true));
+            }
+            outputCallback.accept(new ExecuteCodeResponse("\nProcess finished with exit code " + usage.exitCode()
+                    + " (" + usage.describe() + ")", false));
+
+        } catch (IOException | InterruptedException e) {
+            log.error("Error during code execution", e);
+            outputCallback.accept(new ExecuteCodeResponse("Error executing code: " + e.getMessage(), true));
+        } finally {
+            //This is the cache cleaner, only for our own process in case a newer run already replaced it
+            processManager.removeProcess(sessionId, executeProcess);
+
+            //Emptied and reused in the background
+            workspacePool.release(tempDir);
+            onFinished.run();
+        }
+    }
+
+    /**
+     * Leaves the runtime's artifact in workspace and returns whether it
+     * compiled. Compiler output reaches the sinks while it is running.
+     * Identical code compiling for another run right now is waited for
+     * instead of compiled twice, its output is replayed afterwards.
+     */
+    public boolean build(LanguageRuntime runtime, String code, Path workspace, CompileSinks sinks)
+            throws IOException, InterruptedException {
+        String toolchain = runtime.toolchain();
+        if (toolchain == null) {
+            //Interpreted, nothing to build
+            return true;
+        }
 
-                //this is the .exe part
-                ProcessBuilder executeBuilder = new ProcessBuilder(tempDir.resolve("main").toString());
-                Process executeProcess = executeBuilder.start();
-                processManager.addProcess(sessionId, executeProcess);
-
-                //these lines return the output to the frontend
-                readStream(executeProcess.getInputStream(), (output) -> outputCallback.accept(new ExecuteCodeResponse(output, false)));
-                readStream(executeProcess.getErrorStream(), (output) -> outputCallback.accept(new ExecuteCodeResponse(output, true)));
-
-                //ending part this returns 0
-                int executeExitCode = executeProcess.waitFor();
-                outputCallback.accept(new ExecuteCodeResponse("\nProcess finished with exit code " + executeExitCode, false));
-
-            } catch (IOException | InterruptedException e) {
-                log.error("Error during code execution", e);
-                outputCallback.accept(new ExecuteCodeResponse("Error executing code: " + e.getMessage(), true));
-            } finally {
-                //This is the cache cleaner
-                processManager.removeProcess(sessionId);
-
-                if (tempDir != null) {
-                    try {
-                        Files.walk(tempDir).map(Path::toFile).forEach(File::delete);
-                    } catch (IOException e) {
-                        log.error("Failed to delete temp directory: {}", tempDir, e);
-                    }
+        //Same code, compiler and flags as an earlier run: reuse its binary
+        Path artifact = workspace.resolve(runtime.artifactName());
+        String cacheKey = compileCacheService.key(runtime.language(), toolchain, code);
+        if (compileCacheService.fetch(cacheKey, artifact)) {
+            return true;
+        }
+
+        CompletableFuture<CompileResult> compile = new CompletableFuture<>();
+        CompletableFuture<CompileResult> inFlight = compilesInFlight.putIfAbsent(cacheKey, compile);
+        if (inFlight != null) {
+            compilesJoined.increment();
+            try {
+                CompileResult result = inFlight.get();
+                if (!result.success() || compileCacheService.fetch(cacheKey, artifact)) {
+                    sinks.replay(result);
+                    return result.success();
                 }
+            } catch (ExecutionException e) {
+                log.debug("Shared compile failed, compiling again: {}", e.getCause().getMessage());
+            }
+            //The other run's binary didn't make it into the cache
+            return compile(runtime, code, workspace, sinks).success();
+        }
+
+        try {
+            CompileResult result = compile(runtime, code, workspace, sinks);
+            if (result.success()) {
+                compileCacheService.store(cacheKey, artifact);
             }
-        }).start();
+            compile.complete(result);
+            return result.success();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            compile.completeExceptionally(e);
+            throw e;
+        } finally {
+            compilesInFlight.remove(cacheKey, compile);
+        }
+    }
+
+    //Compiles hold one of the compile slots while they run
+    private CompileResult compile(LanguageRuntime runtime, String code, Path workspace, CompileSinks sinks)
+            throws IOException, InterruptedException {
+        executionScheduler.acquireCompileSlot();
+        long start = System.nanoTime();
+        try {
+            return runtime.compile(code, workspace, sinks);
+        } finally {
+            compileTimers.get(runtime).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            executionScheduler.releaseCompileSlot();
+        }
     }
 
     //This part is responsible for cin from user
     public void sendInput(String sessionId, String input) {
+        if (workerPool.sendInput(sessionId, input)) {
+            return;
+        }
         OutputStream outputStream = processManager.getOutputStream(sessionId);
         if (outputStream != null) {
             try {
@@ -100,33 +312,11 @@ public class CompilerService {
         }
     }
 
-    private void readStream(InputStream stream, Consumer<String> outputConsumer) {
-        //Again threading is introduced because in the case of multiple input
-        // a secondary threading is started
-        new Thread(() -> {
-            try {
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                while ((bytesRead = stream.read(buffer)) != -1) {
-                    //-1 means end of line
-                    outputConsumer.accept(new String(buffer, 0, bytesRead));
-                }
-            } catch (IOException e) {
-                log.info("Stream closed.", e);
-            }
-        }).start();
-    }
-
-
-    //This method is used for blocking the main thread and giving errors
-    private String readStream(InputStream stream) throws IOException {
-        StringBuilder result = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                result.append(line).append("\n");
-            }
+    private void awaitPipes(CompletableFuture<?>... pipes) throws InterruptedException {
+        try {
+            CompletableFuture.allOf(pipes).get(PIPE_DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            log.debug("Program output not fully drained: {}", e.getMessage());
         }
-        return result.toString();
     }
 }
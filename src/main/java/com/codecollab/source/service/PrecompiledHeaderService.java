@@ -0,0 +1,177 @@
+package com.codecollab.source.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps precompiled versions of the common C++ headers.
+ * g++ looks for name.gch in every -I directory before it looks for the
+ * header itself, so compiling with -I on the directory built here makes
+ * any source that starts with one of those includes use the precompiled
+ * header. A stale or mismatching .gch is ignored by g++ and the real
+ * header is used. The directory is named after the compiler version and
+ * flags, and is rebuilt when either changes.
+ */
+@Slf4j
+@Service
+public class PrecompiledHeaderService {
+
+    private static final String COMPILER = "g++";
+
+    private final CompileCacheService compileCacheService;
+    private final boolean enabled;
+    private final Path baseDir;
+    private final List<String> headers;
+    private final List<String> flags;
+    private final MeterRegistry meterRegistry;
+    private final Timer buildTimer;
+
+    //Null until the first build finished
+    private volatile Path includeDir;
+    private volatile String builtFingerprint;
+
+    public PrecompiledHeaderService(CompileCacheService compileCacheService,
+                                    MeterRegistry meterRegistry,
+                                    @Value("${collab.compiler.pch-enabled:true}") boolean enabled,
+                                    @Value("${collab.compiler.pch-dir:${java.io.tmpdir}/codecollab-pch}") String baseDir,
+                                    @Value("${collab.compiler.pch-headers:bits/stdc++.h,iostream}") String headers,
+                                    @Value("${collab.compiler.cpp-flags:}") String cppFlags) {
+        this.compileCacheService = compileCacheService;
+        this.enabled = enabled;
+        this.baseDir = Paths.get(baseDir).toAbsolutePath().normalize();
+        this.headers = Arrays.stream(headers.split(",")).map(String::trim).filter(header -> !header.isEmpty()).toList();
+        this.flags = Arrays.stream(cppFlags.trim().split("\\s+")).filter(flag -> !flag.isEmpty()).toList();
+        this.meterRegistry = meterRegistry;
+        this.buildTimer = Timer.builder("codecollab.compiler.pch.build")
+                .description("Time spent building the precompiled headers")
+                .register(meterRegistry);
+    }
+
+    //Built off the startup path, compiles use the plain headers until it is ready
+    @PostConstruct
+    public void warmUp() {
+        meterRegistry.gauge("codecollab.compiler.pch.ready", this, service -> service.includeDir != null ? 1 : 0);
+        if (enabled) {
+            Thread.ofVirtual().name("pch-build").start(this::refresh);
+        }
+    }
+
+    //Extra g++ arguments that make the precompiled headers visible, empty until they are built
+    public List<String> compilerArgs() {
+        Path dir = includeDir;
+        return dir != null ? List.of("-I", dir.toString()) : List.of();
+    }
+
+    //Picks up compiler upgrades while running
+    @Scheduled(fixedDelayString = "${collab.compiler.pch-check-interval-ms:300000}",
+            initialDelayString = "${collab.compiler.pch-check-interval-ms:300000}")
+    public synchronized void refresh() {
+        if (!enabled || headers.isEmpty()) {
+            return;
+        }
+        String version = compileCacheService.refreshCompilerVersion(COMPILER);
+        String fingerprint = fingerprint(version);
+        if (fingerprint.equals(builtFingerprint)) {
+            return;
+        }
+
+        Path dir = baseDir.resolve(fingerprint);
+        try {
+            long start = System.nanoTime();
+            if (!Files.isDirectory(dir) || !isComplete(dir)) {
+                build(dir);
+            }
+            buildTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            includeDir = dir;
+            builtFingerprint = fingerprint;
+            log.info("Precompiled headers {} ready for {} in {}", headers, version, dir);
+            deleteOtherBuilds(dir);
+        } catch (IOException e) {
+            log.warn("Could not build precompiled headers in {}: {}", dir, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void build(Path dir) throws IOException, InterruptedException {
+        Path sources = dir.resolve(".src");
+        Files.createDirectories(sources);
+        for (String header : headers) {
+            //A one-line wrapper, the .gch only has to match the include's name
+            Path wrapper = sources.resolve(header.replaceAll("[^A-Za-z0-9_.+-]", "_"));
+            Files.writeString(wrapper, "#include <" + header + ">\n");
+            Path output = dir.resolve(header + ".gch");
+            Files.createDirectories(output.getParent());
+
+            List<String> command = new ArrayList<>();
+            command.add(COMPILER);
+            command.addAll(flags);
+            command.addAll(List.of("-x", "c++-header", wrapper.toString(), "-o", output + ".tmp"));
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            String errors = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            if (process.waitFor() != 0) {
+                throw new IOException("g++ could not precompile <" + header + ">: " + errors.strip());
+            }
+            Files.move(Path.of(output + ".tmp"), output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private boolean isComplete(Path dir) {
+        return headers.stream().allMatch(header -> Files.isRegularFile(dir.resolve(header + ".gch")));
+    }
+
+    private String fingerprint(String version) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((version + "\u0000" + String.join("\u0000", flags) + "\u0000" + String.join("\u0000", headers))
+                    .getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest()).substring(0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    //Builds for older compilers or flags, compiles already running keep their open files
+    private void deleteOtherBuilds(Path keep) {
+        try (Stream<Path> dirs = Files.list(baseDir)) {
+            dirs.filter(dir -> !dir.equals(keep)).forEach(PrecompiledHeaderService::deleteTree);
+        } catch (IOException e) {
+            log.debug("Could not clean up old precompiled headers: {}", e.getMessage());
+        }
+    }
+
+    private static void deleteTree(Path root) {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    log.debug("Failed to delete {}: {}", path, e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            log.debug("Failed to delete {}: {}", root, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.codecollab.source.service;
+
+import com.codecollab.source.dto.CodeSyncMessage;
+import com.codecollab.source.dto.PresenceMessage;
+import com.codecollab.source.service.manager.OutboundSessionManager;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces TYPING / STOPPED_TYPING / CURSOR_ACTIVITY traffic.
+ * Only the latest cursor, selection and typing flag per user is kept, and
+ * every tick each room that changed gets one combined frame on
+ * /topic/presence/{roomId}. Quiet rooms send nothing, and a room is
+ * dropped once its last user left.
+ */
+@Slf4j
+@Service
+public class PresenceService {
+
+    private final SimpMessageSendingOperations messagingTemplate;
+    private final long tickMillis;
+
+    private final Map<String, RoomPresence> rooms = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "presence-tick");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Counter updatesReceived;
+    private final Counter framesSent;
+
+    public PresenceService(SimpMessageSendingOperations messagingTemplate,
+                           MeterRegistry meterRegistry,
+                           @Value("${collab.presence.tick-ms:40}") long tickMillis) {
+        this.messagingTemplate = messagingTemplate;
+        this.tickMillis = tickMillis;
+        this.updatesReceived = Counter.builder("codecollab.presence.updates")
+                .description("Presence updates received from clients")
+                .register(meterRegistry);
+        this.framesSent = Counter.builder("codecollab.presence.frames")
+                .description("Combined presence frames broadcast to rooms")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        ticker.shutdownNow();
+    }
+
+    public void update(CodeSyncMessage message) {
+        if (message.getRoomId() == null || message.getSender() == null || message.getType() == null) {
+            return;
+        }
+        if (message.getType() == CodeSyncMessage.MessageType.LEAVE) {
+            remove(message.getRoomId(), message.getSender());
+            return;
+        }
+        updatesReceived.increment();
+
+        //Under the map's lock, so the ticker can't drop the room while we add to it
+        rooms.compute(message.getRoomId(), (roomId, room) -> {
+            room = room != null ? room : new RoomPresence();
+            apply(room, message);
+            return room;
+        });
+    }
+
+    private void apply(RoomPresence room, CodeSyncMessage message) {
+        //Entries are replaced, never mutated, so the ticker can read them without locking
+        room.users.compute(message.getSender(), (sender, current) -> {
+            PresenceMessage.UserPresence presence = current != null
+                    ? new PresenceMessage.UserPresence(sender, current.isTyping(), current.getCursor(), current.getSelection())
+                    : new PresenceMessage.UserPresence(sender, false, null, null);
+
+            switch (message.getType()) {
+                case TYPING -> presence.setTyping(true);
+                case STOPPED_TYPING -> presence.setTyping(false);
+                case CURSOR_ACTIVITY -> {
+                    presence.setCursor(message.getCursor());
+                    presence.setSelection(message.getSelection());
+                }
+                default -> {
+                }
+            }
+            return presence;
+        });
+        room.dirty.set(true);
+    }
+
+    //User left the room or disconnected, drop their cursor on the next tick
+    public void remove(String roomId, String sender) {
+        rooms.computeIfPresent(roomId, (key, room) -> {
+            if (room.users.remove(sender) != null) {
+                room.dirty.set(true);
+            }
+            return room;
+        });
+    }
+
+    private void tick() {
+        try {
+            rooms.forEach((roomId, room) -> {
+                if (!room.dirty.getAndSet(false)) {
+                    return;
+                }
+                List<PresenceMessage.UserPresence> users = new ArrayList<>(room.users.values());
+
+                messagingTemplate.convertAndSend("/topic/presence/" + roomId, new PresenceMessage(roomId, users),
+                        OutboundSessionManager.conflate("presence/" + roomId));
+                framesSent.increment();
+
+                //Everyone left and they were told, forget the room
+                if (users.isEmpty()) {
+                    rooms.computeIfPresent(roomId, (key, current) ->
+                            current.users.isEmpty() && !current.dirty.get() ? null : current);
+                }
+            });
+        } catch (RuntimeException e) {
+            //Never let one bad frame kill the ticker
+            log.error("Presence tick failed", e);
+        }
+    }
+
+    private static class RoomPresence {
+        private final Map<String, PresenceMessage.UserPresence> users = new ConcurrentHashMap<>();
+        private final AtomicBoolean dirty = new AtomicBoolean();
+    }
+}
@@ -1,11 +1,14 @@
 package com.codecollab.source.service;
 
+import com.codecollab.source.dto.TestCasesRequest;
 import com.codecollab.source.entity.Problem;
 import com.codecollab.source.repository.ProblemRepository;
+import com.codecollab.source.service.judge.JudgeResultCache;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.util.ArrayList;
 import java.util.List;
 
 @Service
@@ -14,6 +17,7 @@ public class ProblemService {
     
     private final ProblemRepository problemRepository;
     private final FileStorageService fileStorageService;
+    private final JudgeResultCache judgeResultCache;
     
     public List<Problem> getAllProblems() {
         return problemRepository.findAllByOrderByCreatedAtDesc();
@@ -47,5 +51,21 @@ public class ProblemService {
         return problemRepository.findById(id)
                 .orElseThrow(() -> new RuntimeException("Problem not found with id: " + id));
     }
+    
+    // Replaces the judge tests; limits left out of the request stay as they are
+    public Problem updateTestCases(String id, TestCasesRequest request) {
+        Problem problem = getProblemById(id);
+        problem.setTestCases(request.getTestCases() != null ? new ArrayList<>(request.getTestCases()) : new ArrayList<>());
+        if (request.getTimeLimitMs() != null && request.getTimeLimitMs() > 0) {
+            problem.setTimeLimitMs(request.getTimeLimitMs());
+        }
+        if (request.getMemoryLimitMb() != null && request.getMemoryLimitMb() > 0) {
+            problem.setMemoryLimitMb(request.getMemoryLimitMb());
+        }
+        Problem saved = problemRepository.save(problem);
+        // Results judged on the old tests can't be reused
+        judgeResultCache.invalidate(id);
+        return saved;
+    }
 }
 
@@ -0,0 +1,128 @@
+package com.codecollab.source.service;
+
+import com.codecollab.source.entity.Room;
+import com.codecollab.source.repository.RoomRepository;
+import com.codecollab.source.service.document.RoomDocument;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the live document of every room that is being edited.
+ * The first access loads the persisted code, after that this copy is the
+ * source of truth for joins, persistence and execution.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class RoomDocumentService {
+
+    private final RoomRepository roomRepository;
+    private final RoomOperationLogService roomOperationLogService;
+
+    //How many applied ops we keep around to transform late ops against
+    @Value("${collab.history-size:500}")
+    private int historySize;
+
+    //A compacted snapshot for joiners is taken every this many revisions
+    @Value("${collab.snapshot-interval:100}")
+    private int snapshotInterval;
+
+    private final Map<String, RoomDocument> documents = new ConcurrentHashMap<>();
+
+    public RoomDocument getDocument(String roomId) {
+        return documents.computeIfAbsent(normalize(roomId), this::loadDocument);
+    }
+
+    //Only returns documents that are already live, never touches the database
+    public Optional<RoomDocument> findLoaded(String roomId) {
+        return Optional.ofNullable(documents.get(normalize(roomId)));
+    }
+
+    /**
+     * Rooms that can be unloaded: idle for at least idleNanos, and past
+     * maxLive live documents also the least recently used ones.
+     */
+    public List<String> unloadCandidates(long idleNanos, int maxLive) {
+        //Longest idle first
+        List<Map.Entry<String, RoomDocument>> byIdle = documents.entrySet().stream()
+                .sorted(Comparator.comparingLong(entry -> -entry.getValue().idleNanos()))
+                .toList();
+        int overLimit = Math.max(0, byIdle.size() - maxLive);
+        List<String> candidates = new ArrayList<>();
+        for (int i = 0; i < byIdle.size(); i++) {
+            if (i < overLimit || byIdle.get(i).getValue().idleNanos() >= idleNanos) {
+                candidates.add(byIdle.get(i).getKey());
+            }
+        }
+        return candidates;
+    }
+
+    public int liveCount() {
+        return documents.size();
+    }
+
+    //Drops the live copy, the next access loads it from the database again
+    public void evict(String roomId) {
+        if (documents.remove(normalize(roomId)) != null) {
+            log.info("Evicted live document for room {}", roomId);
+        }
+    }
+
+    public String getCode(String roomId) {
+        return getDocument(roomId).snapshot().code();
+    }
+
+    //Live code if the room is being edited, otherwise what was last persisted
+    public String getCurrentCode(Room room) {
+        return findLoaded(room.getRoomId())
+                .map(document -> document.snapshot().code())
+                .orElse(room.getCurrentCode());
+    }
+
+    public long memoryBytes(String roomId) {
+        return findLoaded(roomId).map(RoomDocument::memoryBytes).orElse(0L);
+    }
+
+    //Estimated bytes per live room, for diagnostics
+    public Map<String, Long> memoryUsage() {
+        Map<String, Long> usage = new LinkedHashMap<>();
+        documents.forEach((roomId, document) -> usage.put(roomId, document.memoryBytes()));
+        return usage;
+    }
+
+    private RoomDocument loadDocument(String roomId) {
+        Optional<Room> roomOpt = roomRepository.findByRoomId(roomId);
+        String code = roomOpt.map(Room::getCurrentCode).orElse("");
+        String language = roomOpt.map(Room::getCurrentLanguage).orElse(null);
+        int revision = roomOpt.map(Room::getCodeRevision).orElse(0);
+
+        RoomDocument document = new RoomDocument(roomId, code, language, revision, historySize, snapshotInterval);
+        //Pick up edits that were logged but not yet flushed before a restart
+        List<RoomDocument.LoggedOperation> logged = roomOperationLogService.load(roomId, revision);
+        int replayed = document.replay(logged);
+        if (replayed < logged.size()) {
+            log.warn("Op log of room {} does not line up after revision {}, skipped {} ops",
+                    roomId, document.getRevision(), logged.size() - replayed);
+        }
+
+        log.info("Loaded live document for room {} at revision {}", roomId, document.getRevision());
+        return document;
+    }
+
+    private String normalize(String roomId) {
+        if (roomId == null || roomId.isBlank()) {
+            throw new IllegalArgumentException("Room ID is required");
+        }
+        return roomId.toUpperCase().trim();
+    }
+}
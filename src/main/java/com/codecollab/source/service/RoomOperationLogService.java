@@ -0,0 +1,95 @@
+package com.codecollab.source.service;
+
+import com.codecollab.source.entity.RoomOperation;
+import com.codecollab.source.repository.RoomOperationRepository;
+import com.codecollab.source.service.document.RoomDocument;
+import com.codecollab.source.service.document.TextOperation;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.CollectionOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Optional copy of the in-memory op log in a capped Mongo collection.
+ * Ops are appended in small batches; when a room document is loaded again
+ * (e.g. after a restart) the ops newer than the persisted code are replayed,
+ * so edits made after the last write-behind flush are not lost.
+ */
+@Slf4j
+@Service
+public class RoomOperationLogService {
+
+    private final MongoTemplate mongoTemplate;
+    private final RoomOperationRepository roomOperationRepository;
+    private final boolean enabled;
+    private final long cappedSizeBytes;
+
+    private final Queue<RoomOperation> pending = new ConcurrentLinkedQueue<>();
+
+    public RoomOperationLogService(MongoTemplate mongoTemplate,
+                                   RoomOperationRepository roomOperationRepository,
+                                   @Value("${collab.oplog.persist:false}") boolean enabled,
+                                   @Value("${collab.oplog.capped-size-bytes:67108864}") long cappedSizeBytes) {
+        this.mongoTemplate = mongoTemplate;
+        this.roomOperationRepository = roomOperationRepository;
+        this.enabled = enabled;
+        this.cappedSizeBytes = cappedSizeBytes;
+    }
+
+    @PostConstruct
+    public void createCappedCollection() {
+        if (enabled && !mongoTemplate.collectionExists(RoomOperation.class)) {
+            mongoTemplate.createCollection(RoomOperation.class, CollectionOptions.empty().capped().size(cappedSizeBytes));
+            log.info("Created capped op log collection ({} bytes)", cappedSizeBytes);
+        }
+    }
+
+    public void append(String roomId, RoomDocument.LoggedOperation logged) {
+        if (!enabled) {
+            return;
+        }
+        pending.add(new RoomOperation(roomId, logged.revision(), logged.clientId(), logged.sender(),
+                logged.operation().toJson()));
+    }
+
+    @Scheduled(fixedDelayString = "${collab.oplog.flush-interval-ms:500}")
+    @PreDestroy
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<RoomOperation> batch = new ArrayList<>();
+        RoomOperation operation;
+        while ((operation = pending.poll()) != null) {
+            batch.add(operation);
+        }
+        try {
+            mongoTemplate.insert(batch, RoomOperation.class);
+        } catch (RuntimeException e) {
+            //The log is only a safety net, the live document is unaffected
+            log.error("Failed to write {} ops to the op log", batch.size(), e);
+        }
+    }
+
+    //Ops applied after the given revision, oldest first
+    public List<RoomDocument.LoggedOperation> load(String roomId, int afterRevision) {
+        if (!enabled) {
+            return List.of();
+        }
+        flush();
+        return roomOperationRepository.findByRoomIdAndRevisionGreaterThanOrderByRevisionAsc(roomId, afterRevision)
+                .stream()
+                .map(op -> new RoomDocument.LoggedOperation(TextOperation.fromJson(op.getOps()),
+                        op.getRevision(), op.getClientId(), op.getSender()))
+                .toList();
+    }
+}
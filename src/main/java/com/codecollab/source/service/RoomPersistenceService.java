@@ -0,0 +1,243 @@
+package com.codecollab.source.service;
+
+import com.codecollab.source.entity.Room;
+import com.codecollab.source.service.document.RoomDocument;
+import com.codecollab.source.service.manager.RoomDispatcher;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind persistence of live room code.
+ * Edits only mark a room dirty; the latest version of every dirty room is
+ * written in one bulk of partial $set updates, either on a timer or once
+ * enough rooms are waiting. Many keystrokes end up as a single write.
+ *
+ * Documents nobody edited or joined for a while, and the least recently
+ * used ones past collab.documents.max-live, are flushed and unloaded so
+ * the live rooms don't grow without bound.
+ */
+@Slf4j
+@Service
+public class RoomPersistenceService {
+
+    private final MongoTemplate mongoTemplate;
+    private final RoomDocumentService roomDocumentService;
+    private final RoomDispatcher roomDispatcher;
+
+    //Flush straight away once this many rooms are waiting
+    private final int maxDirtyRooms;
+    private final long idleUnloadNanos;
+    private final int maxLiveDocuments;
+
+    //roomId -> time (nanos) it first became dirty since the last flush
+    private final Map<String, Long> dirtyRooms = new ConcurrentHashMap<>();
+
+    //roomId -> last revision written to the database
+    private final Map<String, Integer> persistedRevisions = new ConcurrentHashMap<>();
+
+    private final AtomicLong pendingEdits = new AtomicLong();
+    //At most one size triggered flush waits on the executor
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final ExecutorService flushExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "room-persistence-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Timer flushLag;
+    private final Counter writes;
+    private final Counter writesSaved;
+    private final Counter unloaded;
+
+    public RoomPersistenceService(MongoTemplate mongoTemplate,
+                                  RoomDocumentService roomDocumentService,
+                                  RoomDispatcher roomDispatcher,
+                                  MeterRegistry meterRegistry,
+                                  @Value("${collab.persistence.max-dirty-rooms:100}") int maxDirtyRooms,
+                                  @Value("${collab.documents.idle-unload-ms:600000}") long idleUnloadMillis,
+                                  @Value("${collab.documents.max-live:5000}") int maxLiveDocuments) {
+        this.mongoTemplate = mongoTemplate;
+        this.roomDocumentService = roomDocumentService;
+        this.roomDispatcher = roomDispatcher;
+        this.maxDirtyRooms = maxDirtyRooms;
+        this.idleUnloadNanos = Duration.ofMillis(idleUnloadMillis).toNanos();
+        this.maxLiveDocuments = maxLiveDocuments;
+
+        this.flushLag = Timer.builder("codecollab.persistence.flush.lag")
+                .description("Time between a room becoming dirty and its code being written")
+                .register(meterRegistry);
+        this.writes = Counter.builder("codecollab.persistence.writes")
+                .description("Room code updates written to the database")
+                .register(meterRegistry);
+        this.writesSaved = Counter.builder("codecollab.persistence.writes.saved")
+                .description("Edits that were folded into a later write instead of being saved on their own")
+                .register(meterRegistry);
+        this.unloaded = Counter.builder("codecollab.documents.unloaded")
+                .description("Idle live documents that were flushed and unloaded")
+                .register(meterRegistry);
+        meterRegistry.gauge("codecollab.persistence.dirty.rooms", dirtyRooms, Map::size);
+        meterRegistry.gauge("codecollab.documents.live", roomDocumentService, RoomDocumentService::liveCount);
+    }
+
+    public void markDirty(String roomId) {
+        pendingEdits.incrementAndGet();
+        dirtyRooms.putIfAbsent(roomId.toUpperCase().trim(), System.nanoTime());
+
+        if (dirtyRooms.size() >= maxDirtyRooms && !flushExecutor.isShutdown()
+                && flushQueued.compareAndSet(false, true)) {
+            flushExecutor.execute(() -> {
+                flushQueued.set(false);
+                flush();
+            });
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${collab.persistence.flush-interval-ms:2000}")
+    public void flush() {
+        if (dirtyRooms.isEmpty()) {
+            return;
+        }
+        //A size triggered flush may already be running, no need to queue up behind it
+        if (!flushLock.tryLock()) {
+            return;
+        }
+        try {
+            writeDirtyRooms();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    //Writes one room right now, e.g. before another node takes it over
+    public void flushRoom(String roomId) {
+        flushLock.lock();
+        try {
+            writeRooms(List.of(roomId.toUpperCase().trim()), 0);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${collab.documents.unload-check-ms:30000}")
+    public void unloadIdleDocuments() {
+        List<String> candidates = roomDocumentService.unloadCandidates(idleUnloadNanos, maxLiveDocuments);
+        boolean overLimit = roomDocumentService.liveCount() > maxLiveDocuments;
+        //On the room's lane, so no edit can land between the flush and the unload
+        candidates.forEach(roomId -> roomDispatcher.dispatch(roomId, () -> unload(roomId, overLimit)));
+    }
+
+    private void unload(String roomId, boolean overLimit) {
+        Optional<RoomDocument> documentOpt = roomDocumentService.findLoaded(roomId);
+        if (documentOpt.isEmpty() || (!overLimit && documentOpt.get().idleNanos() < idleUnloadNanos)) {
+            return;
+        }
+        flushRoom(roomId);
+        //Still dirty means the write failed, keep it live for the next flush to retry
+        if (dirtyRooms.containsKey(roomId)) {
+            return;
+        }
+        roomDocumentService.evict(roomId);
+        persistedRevisions.remove(roomId);
+        unloaded.increment();
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        flushExecutor.shutdown();
+        flushLock.lock();
+        try {
+            writeDirtyRooms();
+            log.info("Flushed room code before shutdown");
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void writeDirtyRooms() {
+        writeRooms(new ArrayList<>(dirtyRooms.keySet()), pendingEdits.getAndSet(0));
+    }
+
+    private void writeRooms(List<String> roomIds, long edits) {
+        //roomId -> time it became dirty, kept so a failed write can put it back as it was
+        Map<String, Long> dirtySince = new LinkedHashMap<>();
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Room.class);
+        LocalDateTime now = LocalDateTime.now();
+        int updates = 0;
+
+        for (String roomId : roomIds) {
+            Long since = dirtyRooms.remove(roomId);
+            Optional<RoomDocument> documentOpt = roomDocumentService.findLoaded(roomId);
+            if (since == null || documentOpt.isEmpty()) {
+                continue;
+            }
+
+            RoomDocument.Snapshot snapshot = documentOpt.get().snapshot();
+            Integer persisted = persistedRevisions.get(roomId);
+            if (persisted != null && persisted == snapshot.revision()) {
+                continue;
+            }
+
+            Update update = new Update()
+                    .set("currentCode", snapshot.code())
+                    .set("codeRevision", snapshot.revision())
+                    .set("lastActivity", now);
+            if (snapshot.language() != null) {
+                update.set("currentLanguage", snapshot.language());
+            }
+            bulk.updateOne(Query.query(Criteria.where("roomId").is(roomId)), update);
+            persistedRevisions.put(roomId, snapshot.revision());
+            dirtySince.put(roomId, since);
+            updates++;
+        }
+
+        if (updates == 0) {
+            return;
+        }
+
+        try {
+            bulk.execute();
+        } catch (RuntimeException e) {
+            //Put the rooms back so the next flush retries them
+            log.error("Failed to flush room code, will retry", e);
+            dirtySince.forEach((roomId, since) -> {
+                persistedRevisions.remove(roomId);
+                //An edit made since then doesn't make it any younger
+                dirtyRooms.merge(roomId, since, (current, original) -> current - original > 0 ? original : current);
+            });
+            pendingEdits.addAndGet(edits);
+            return;
+        }
+
+        long finished = System.nanoTime();
+        dirtySince.values().forEach(since -> flushLag.record(Duration.ofNanos(finished - since)));
+        writes.increment(updates);
+        writesSaved.increment(Math.max(0, edits - updates));
+        log.debug("Flushed code of {} rooms ({} edits)", updates, edits);
+    }
+}
@@ -16,6 +16,7 @@ import java.util.Optional;
 public class RoomService {
     
     private final RoomRepository roomRepository;
+    private final RoomDocumentService roomDocumentService;
     private static final String ROOM_ID_CHARS = "ABCDEFGHJKLMNPQRSTUVWXYZ23456789";
     private static final int ROOM_ID_LENGTH = 6;
     //From here random room is generated
@@ -109,7 +110,7 @@ public class RoomService {
             room.getName(),
             room.getCreatorUsername(),
             room.getActiveUsers(),
-            room.getCurrentCode(),
+            roomDocumentService.getCurrentCode(room),
             room.getCurrentLanguage()
         );
     }
@@ -1,23 +1,36 @@
 package com.codecollab.source.service;
 
 import com.codecollab.source.dto.CreateSolutionRequest;
+import com.codecollab.source.entity.JudgeResult;
 import com.codecollab.source.entity.Problem;
 import com.codecollab.source.entity.Solution;
+import com.codecollab.source.entity.Verdict;
 import com.codecollab.source.repository.ProblemRepository;
 import com.codecollab.source.repository.SolutionRepository;
+import com.codecollab.source.service.judge.JudgeService;
+import com.codecollab.source.service.manager.ExecutionScheduler;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 
+@Slf4j
 @Service
 @RequiredArgsConstructor
 public class SolutionService {
     
+    // Judging competes in the execution queue as one room, so it can't crowd out the rooms' runs
+    private static final String JUDGE_ROOM = "judge";
+    private static final String JUDGE_SESSION_PREFIX = "judge:";
+    
     private final SolutionRepository solutionRepository;
     private final ProblemRepository problemRepository;
+    private final JudgeService judgeService;
+    private final ExecutionScheduler executionScheduler;
     
     /**
      * Create a new solution for a problem
@@ -30,6 +43,8 @@ public class SolutionService {
             request.getTitle(),
             request.getContent()
         );
+        solution.setCode(request.getCode());
+        solution.setLanguage(request.getLanguage());
         
         Solution savedSolution = solutionRepository.save(solution);
         
@@ -74,6 +89,17 @@ public class SolutionService {
             Solution solution = solutionOpt.get();
             solution.setTitle(request.getTitle());
             solution.setContent(request.getContent());
+            // Changed code needs judging again
+            if (request.getCode() != null && !request.getCode().equals(solution.getCode())
+                    || request.getLanguage() != null && !request.getLanguage().equals(solution.getLanguage())) {
+                solution.setJudgeResult(null);
+            }
+            if (request.getCode() != null) {
+                solution.setCode(request.getCode());
+            }
+            if (request.getLanguage() != null) {
+                solution.setLanguage(request.getLanguage());
+            }
             solution.setUpdatedAt(LocalDateTime.now());
             return solutionRepository.save(solution);
         }
@@ -94,6 +120,63 @@ public class SolutionService {
         return null;
     }
     
+    /**
+     * Queue the solution's code to be judged against its problem's test cases.
+     * It is saved with a PENDING result right away; the real result replaces it once
+     * judging finished, and the solution is accepted exactly when that verdict is ACCEPTED.
+     * Returns null, leaving the solution as it was, when the execution queue is full.
+     */
+    public Solution judgeSolution(Solution solution, Boolean stopOnFirstFailure) {
+        Problem problem = problemRepository.findById(solution.getProblemId())
+                .orElseThrow(() -> new RuntimeException("Problem not found with id: " + solution.getProblemId()));
+        String solutionId = solution.getId();
+        String code = solution.getCode();
+        String language = solution.getLanguage();
+        JudgeResult previous = solution.getJudgeResult();
+        
+        // Saved before queueing, so a quick result can't be overwritten by it
+        JudgeResult pending = new JudgeResult();
+        pending.setVerdict(Verdict.PENDING);
+        pending.setTotal(problem.getTestCaseCount());
+        solution.setJudgeResult(pending);
+        solution.setUpdatedAt(LocalDateTime.now());
+        Solution saved = solutionRepository.save(solution);
+        
+        // A second request while this one still waits takes its place in the queue
+        boolean admitted = executionScheduler.submit(JUDGE_SESSION_PREFIX + solutionId, JUDGE_ROOM, solution.getUserId(),
+                position -> { }, () -> finishJudging(solutionId, problem, code, language, stopOnFirstFailure));
+        if (!admitted) {
+            solution.setJudgeResult(previous);
+            solutionRepository.save(solution);
+            return null;
+        }
+        return saved;
+    }
+    
+    // Runs on the execution scheduler once judging got its turn
+    private void finishJudging(String solutionId, Problem problem, String code, String language, Boolean stopOnFirstFailure) {
+        try {
+            JudgeResult result = stopOnFirstFailure != null
+                    ? judgeService.judge(problem, code, language, stopOnFirstFailure)
+                    : judgeService.judge(problem, code, language);
+            Optional<Solution> solutionOpt = solutionRepository.findById(solutionId);
+            if (solutionOpt.isEmpty()) {
+                return;
+            }
+            Solution solution = solutionOpt.get();
+            // Edited while it was judged, the result is for code it no longer has
+            if (!Objects.equals(code, solution.getCode()) || !Objects.equals(language, solution.getLanguage())) {
+                return;
+            }
+            solution.setJudgeResult(result);
+            solution.setAccepted(result.getVerdict() == Verdict.ACCEPTED);
+            solution.setUpdatedAt(LocalDateTime.now());
+            solutionRepository.save(solution);
+        } catch (RuntimeException e) {
+            log.error("Judging solution {} failed", solutionId, e);
+        }
+    }
+    
     /**
      * Delete a solution
      */
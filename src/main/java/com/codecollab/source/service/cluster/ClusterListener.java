@@ -0,0 +1,13 @@
+package com.codecollab.source.service.cluster;
+
+import java.util.Set;
+
+//Receives messages from other nodes, in the order each node sent them
+public interface ClusterListener {
+
+    void onMessage(ClusterMessage message);
+
+    //members always contains this node
+    default void onMembershipChange(Set<String> members) {
+    }
+}
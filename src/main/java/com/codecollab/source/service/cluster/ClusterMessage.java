@@ -0,0 +1,142 @@
+package com.codecollab.source.service.cluster;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Everything nodes say to each other.
+ * BROADCAST carries a broker message for local subscribers, FORWARD a
+ * client message for the node that owns its room; CLAIM, GRANT, RELEASE
+ * and HANDOFF move room ownership and carry the room's ownership epoch.
+ * HELLO and HEARTBEAT are transport only.
+ */
+public record ClusterMessage(Type type, String origin, String roomId, String target, String destination,
+                             Map<String, String> headers, String payloadType, byte[] payload, int hops) {
+
+    //Upper bound for a single frame on the wire
+    static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    static final String EPOCH_HEADER = "epoch";
+    //Set on a CLAIM from a node that already holds the room rather than asks for it
+    static final String HELD_HEADER = "held";
+
+    public enum Type {
+        BROADCAST,
+        FORWARD,
+        CLAIM,
+        RELEASE,
+        HANDOFF,
+        HELLO,
+        HEARTBEAT,
+        GRANT
+    }
+
+    public ClusterMessage {
+        headers = headers != null ? headers : Map.of();
+    }
+
+    public static ClusterMessage broadcast(String origin, String destination, Map<String, String> headers,
+                                           String payloadType, byte[] payload) {
+        return new ClusterMessage(Type.BROADCAST, origin, null, null, destination, headers, payloadType, payload, 0);
+    }
+
+    public static ClusterMessage forward(String origin, String roomId, String target, String destination,
+                                         Map<String, String> headers, byte[] payload, int hops) {
+        return new ClusterMessage(Type.FORWARD, origin, roomId, target, destination, headers, null, payload, hops);
+    }
+
+    public static ClusterMessage ownership(Type type, String origin, String roomId, String target, long epoch) {
+        return new ClusterMessage(type, origin, roomId, target, null,
+                Map.of(EPOCH_HEADER, String.valueOf(epoch)), null, null, 0);
+    }
+
+    public static ClusterMessage claim(String origin, String roomId, long epoch, boolean held) {
+        return new ClusterMessage(Type.CLAIM, origin, roomId, null, null,
+                Map.of(EPOCH_HEADER, String.valueOf(epoch), HELD_HEADER, String.valueOf(held)), null, null, 0);
+    }
+
+    public static ClusterMessage control(Type type, String origin) {
+        return new ClusterMessage(type, origin, null, null, null, null, null, null, 0);
+    }
+
+    public static ClusterMessage hello(String origin, Map<String, String> headers) {
+        return new ClusterMessage(Type.HELLO, origin, null, null, null, headers, null, null, 0);
+    }
+
+    public long epoch() {
+        String epoch = headers.get(EPOCH_HEADER);
+        return epoch != null ? Long.parseLong(epoch) : 0;
+    }
+
+    public boolean held() {
+        return Boolean.parseBoolean(headers.get(HELD_HEADER));
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(type.ordinal());
+        writeString(out, origin);
+        writeString(out, roomId);
+        writeString(out, target);
+        writeString(out, destination);
+        out.writeInt(headers.size());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            writeString(out, header.getKey());
+            writeString(out, header.getValue());
+        }
+        writeString(out, payloadType);
+        out.writeInt(payload != null ? payload.length : -1);
+        if (payload != null) {
+            out.write(payload);
+        }
+        out.writeInt(hops);
+    }
+
+    public static ClusterMessage readFrom(DataInputStream in) throws IOException {
+        Type type = Type.values()[in.readUnsignedByte()];
+        String origin = readString(in);
+        String roomId = readString(in);
+        String target = readString(in);
+        String destination = readString(in);
+        int headerCount = in.readInt();
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 0; i < headerCount; i++) {
+            headers.put(readString(in), readString(in));
+        }
+        String payloadType = readString(in);
+        byte[] payload = readBytes(in);
+        int hops = in.readInt();
+        return new ClusterMessage(type, origin, roomId, target, destination, headers, payloadType, payload, hops);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_FRAME_BYTES) {
+            throw new IOException("Cluster frame too large: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,37 @@
+package com.codecollab.source.service.cluster;
+
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Transport between application nodes.
+ * Messages from one node are delivered to each other node in the order
+ * they were sent. Picked with collab.cluster.transport: "loopback" keeps
+ * every node in this JVM (one node unless several contexts share a
+ * group), "tcp" connects to the configured peers.
+ */
+public interface ClusterMessageBus {
+
+    String nodeId();
+
+    //Live nodes, this one included
+    Set<String> members();
+
+    default boolean hasPeers() {
+        return members().size() > 1;
+    }
+
+    //To every other node
+    void publish(ClusterMessage message);
+
+    //To one node, dropped if it isn't reachable
+    void send(String nodeId, ClusterMessage message);
+
+    void addListener(ClusterListener listener);
+
+    static String resolveNodeId(String configured) {
+        return configured != null && !configured.isBlank()
+                ? configured.trim()
+                : UUID.randomUUID().toString().substring(0, 8);
+    }
+}
@@ -0,0 +1,279 @@
+package com.codecollab.source.service.cluster;
+
+import com.codecollab.source.service.codec.BinaryFrameCodec;
+import com.codecollab.source.service.codec.WireFormatConverter;
+import com.codecollab.source.service.codec.WirePayload;
+import com.codecollab.source.service.manager.OutboundSessionManager;
+import com.codecollab.source.service.manager.RoomDispatcher;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.broker.OrderedMessageChannelDecorator;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connects the local simple broker to the other nodes.
+ * Room, code and presence broadcasts published here are relayed to every
+ * node, and so are replies to sessions that live on another node; relayed
+ * messages are handed to the local broker as if they had been sent here.
+ * Client messages that need a room's live document are forwarded to the
+ * room's owner and run through its normal @MessageMapping handlers.
+ */
+@Slf4j
+@Component
+public class ClusterRelay implements ChannelInterceptor, ClusterListener {
+
+    //Marks messages that came from another node so they are not relayed again
+    public static final String ORIGIN_HEADER = "clusterOrigin";
+    public static final String HOPS_HEADER = "clusterHops";
+    private static final String SESSION_HEADER = "session";
+    private static final int MAX_HOPS = 8;
+
+    private static final List<String> RELAYED_PREFIXES = List.of("/topic/room/", "/topic/code/", "/topic/presence/");
+    private static final String USER_PREFIX = "/user/";
+
+    private final ClusterMessageBus bus;
+    private final RoomOwnershipService roomOwnershipService;
+    private final RoomDispatcher roomDispatcher;
+    private final OutboundSessionManager outboundSessionManager;
+    private final WireFormatConverter wireFormatConverter;
+    private final JsonMapper jsonMapper;
+    private final ObjectProvider<SimpMessageSendingOperations> messagingTemplate;
+    private final ObjectProvider<MessageChannel> clientInboundChannel;
+
+    //One ordered inbound per node, forwarded messages are handled in the order that node sent them
+    private final Map<String, MessageChannel> forwardedInbound = new ConcurrentHashMap<>();
+
+    private final Counter relayed;
+    private final Counter received;
+    private final Counter forwarded;
+
+    public ClusterRelay(ClusterMessageBus bus,
+                        RoomOwnershipService roomOwnershipService,
+                        RoomDispatcher roomDispatcher,
+                        OutboundSessionManager outboundSessionManager,
+                        WireFormatConverter wireFormatConverter,
+                        JsonMapper jsonMapper,
+                        ObjectProvider<SimpMessageSendingOperations> messagingTemplate,
+                        @Qualifier("clientInboundChannel") ObjectProvider<MessageChannel> clientInboundChannel,
+                        MeterRegistry meterRegistry) {
+        this.bus = bus;
+        this.roomOwnershipService = roomOwnershipService;
+        this.roomDispatcher = roomDispatcher;
+        this.outboundSessionManager = outboundSessionManager;
+        this.wireFormatConverter = wireFormatConverter;
+        this.jsonMapper = jsonMapper;
+        this.messagingTemplate = messagingTemplate;
+        this.clientInboundChannel = clientInboundChannel;
+
+        this.relayed = Counter.builder("codecollab.cluster.relayed")
+                .description("Broker messages sent to the other nodes")
+                .register(meterRegistry);
+        this.received = Counter.builder("codecollab.cluster.received")
+                .description("Broker messages received from other nodes")
+                .register(meterRegistry);
+        this.forwarded = Counter.builder("codecollab.cluster.forwarded")
+                .description("Client messages forwarded to the node that owns their room")
+                .register(meterRegistry);
+        meterRegistry.gauge("codecollab.cluster.members", bus, b -> b.members().size());
+    }
+
+    @PostConstruct
+    public void register() {
+        bus.addListener(this);
+    }
+
+    /**
+     * Forwards a client message to the room's owner when that isn't this
+     * node. Returns false when the caller should handle it itself.
+     * Messages that can't wait for an unsettled owner are dropped.
+     */
+    public boolean forwardIfRemote(String roomId, String destination, Object payload, SimpMessageHeaderAccessor headerAccessor) {
+        return forwardIfRemote(roomId, destination, payload, headerAccessor, null);
+    }
+
+    /**
+     * Same, but while the room's owner is still being claimed the message
+     * is held instead of dropped and retry is put back on the room's lane
+     * once the claim is settled. Returns true while it is held.
+     */
+    public boolean forwardIfRemote(String roomId, String destination, Object payload, SimpMessageHeaderAccessor headerAccessor,
+                                   Runnable retry) {
+        String owner = roomOwnershipService.ownerOf(roomId,
+                retry != null ? () -> roomDispatcher.dispatch(roomId, retry) : null);
+        if (owner == null) {
+            if (retry == null) {
+                //Claim still open, the client catches up on its next message
+                log.warn("Dropping {} for room {}, its owner isn't settled", destination, roomId);
+            }
+            return true;
+        }
+        if (owner.equals(bus.nodeId())) {
+            return false;
+        }
+
+        Integer hops = (Integer) headerAccessor.getHeader(HOPS_HEADER);
+        if (hops != null && hops >= MAX_HOPS) {
+            log.warn("Dropping {} for room {}, ownership keeps moving", destination, roomId);
+            return true;
+        }
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put(SESSION_HEADER, headerAccessor.getSessionId());
+        bus.send(owner, ClusterMessage.forward(bus.nodeId(), roomId, owner, destination, headers,
+                jsonMapper.writeValueAsBytes(payload), hops != null ? hops + 1 : 1));
+        forwarded.increment();
+        return true;
+    }
+
+    //brokerChannel: copy what other nodes' subscribers need onto the bus
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if (!bus.hasPeers() || message.getHeaders().containsKey(ORIGIN_HEADER)
+                || SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) != SimpMessageType.MESSAGE) {
+            return message;
+        }
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        if (destination == null || !isRelayed(destination)) {
+            return message;
+        }
+
+        String payloadType = null;
+        byte[] payload;
+        if (message.getPayload() instanceof WirePayload wirePayload) {
+            payloadType = wirePayload.getValue().getClass().getName();
+            payload = wirePayload.json();
+        } else if (message.getPayload() instanceof byte[] bytes) {
+            payload = bytes;
+        } else {
+            return message;
+        }
+
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(message);
+        Map<String, String> headers = new LinkedHashMap<>();
+        accessor.toNativeHeaderMap().forEach((name, values) -> {
+            if (!values.isEmpty()) {
+                headers.put(name, values.get(0));
+            }
+        });
+        MimeType contentType = accessor.getContentType();
+        if (contentType != null) {
+            headers.put(MessageHeaders.CONTENT_TYPE, contentType.toString());
+        }
+
+        bus.publish(ClusterMessage.broadcast(bus.nodeId(), destination, headers, payloadType, payload));
+        relayed.increment();
+        return message;
+    }
+
+    @Override
+    public void onMessage(ClusterMessage message) {
+        switch (message.type()) {
+            case BROADCAST -> deliverLocally(message);
+            case FORWARD -> handleForwarded(message);
+            default -> {
+            }
+        }
+    }
+
+    @Override
+    public void onMembershipChange(Set<String> members) {
+        forwardedInbound.keySet().retainAll(members);
+    }
+
+    private boolean isRelayed(String destination) {
+        for (String prefix : RELAYED_PREFIXES) {
+            if (destination.startsWith(prefix)) {
+                return true;
+            }
+        }
+        //Replies to a session on another node, e.g. a catch-up computed by the room owner
+        if (destination.startsWith(USER_PREFIX)) {
+            int end = destination.indexOf('/', USER_PREFIX.length());
+            return end > 0 && !outboundSessionManager.isLocal(destination.substring(USER_PREFIX.length(), end));
+        }
+        return false;
+    }
+
+    private void deliverLocally(ClusterMessage message) {
+        if (message.destination().startsWith(USER_PREFIX)) {
+            int end = message.destination().indexOf('/', USER_PREFIX.length());
+            if (end < 0 || !outboundSessionManager.isLocal(message.destination().substring(USER_PREFIX.length(), end))) {
+                return;
+            }
+        }
+
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        message.headers().forEach((name, value) -> {
+            if (MessageHeaders.CONTENT_TYPE.equals(name)) {
+                accessor.setContentType(MimeTypeUtils.parseMimeType(value));
+            } else {
+                accessor.setNativeHeader(name, value);
+            }
+        });
+        accessor.setHeader(ORIGIN_HEADER, message.origin());
+        accessor.setLeaveMutable(true);
+
+        Object payload = restorePayload(message);
+        messagingTemplate.getObject().send(message.destination(),
+                MessageBuilder.createMessage(payload, accessor.getMessageHeaders()));
+        received.increment();
+    }
+
+    //Sync and output messages go back into a WirePayload so binary clients here still get binary frames
+    private Object restorePayload(ClusterMessage message) {
+        if (message.payloadType() == null) {
+            return message.payload();
+        }
+        try {
+            Class<?> type = Class.forName(message.payloadType());
+            if (BinaryFrameCodec.supports(type)) {
+                return wireFormatConverter.wrap(jsonMapper.readValue(message.payload(), type));
+            }
+        } catch (ClassNotFoundException | RuntimeException e) {
+            log.warn("Could not restore {} from node {}: {}", message.payloadType(), message.origin(), e.getMessage());
+        }
+        return message.payload();
+    }
+
+    //Runs the client message through this node's handlers as if the client had sent it here
+    private void handleForwarded(ClusterMessage message) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setDestination("/app" + message.destination());
+        accessor.setSessionId(message.headers().get(SESSION_HEADER));
+        accessor.setSessionAttributes(new ConcurrentHashMap<>());
+        accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        accessor.setHeader(ORIGIN_HEADER, message.origin());
+        accessor.setHeader(HOPS_HEADER, message.hops());
+        //The ordered channel tags each message with its task, so the headers have to stay writable
+        accessor.setLeaveMutable(true);
+
+        Message<byte[]> forwardedMessage = MessageBuilder.createMessage(message.payload(), accessor.getMessageHeaders());
+        forwardedInbound.computeIfAbsent(message.origin(), origin -> {
+            MessageChannel channel = clientInboundChannel.getObject();
+            OrderedMessageChannelDecorator.configureInterceptor(channel, true);
+            return new OrderedMessageChannelDecorator(channel, LogFactory.getLog(ClusterRelay.class));
+        }).send(forwardedMessage);
+    }
+}
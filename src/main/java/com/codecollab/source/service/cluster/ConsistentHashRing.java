@@ -0,0 +1,76 @@
+package com.codecollab.source.service.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable hash ring over a set of node ids.
+ * Every node is placed at virtualNodes points, and a key belongs to the
+ * first point at or after its hash. Adding or removing a node only moves
+ * the keys next to that node's points, so a membership change moves about
+ * 1/N of the rooms. Plain value object, a ring can be built for any
+ * simulated node set.
+ */
+public final class ConsistentHashRing {
+
+    private final NavigableMap<Long, String> points;
+    private final Set<String> nodes;
+    private final int virtualNodes;
+
+    public ConsistentHashRing(Set<String> nodes, int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be at least 1");
+        }
+        this.virtualNodes = virtualNodes;
+        this.nodes = Collections.unmodifiableSet(new TreeSet<>(nodes));
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                //On the rare collision the lower id keeps the point so every node builds the same ring
+                ring.merge(hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+        this.points = Collections.unmodifiableNavigableMap(ring);
+    }
+
+    //Node that owns the key, null on an empty ring
+    public String nodeFor(String key) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = points.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : points.firstEntry().getValue();
+    }
+
+    public ConsistentHashRing withNodes(Set<String> members) {
+        return members.equals(nodes) ? this : new ConsistentHashRing(members, virtualNodes);
+    }
+
+    public Set<String> getNodes() {
+        return nodes;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    //FNV-1a over the UTF-8 bytes with a murmur3 finalizer, short ids like room codes still spread over the ring
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
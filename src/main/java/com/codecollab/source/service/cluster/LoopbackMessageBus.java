@@ -0,0 +1,126 @@
+package com.codecollab.source.service.cluster;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process bus. Every application context in the same JVM and group
+ * is a node, so a single instance behaves exactly like no cluster, and
+ * two contexts started side by side (e.g. in a test) share their rooms.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "collab.cluster.transport", havingValue = "loopback", matchIfMissing = true)
+public class LoopbackMessageBus implements ClusterMessageBus {
+
+    //group -> nodeId -> bus
+    private static final Map<String, Map<String, LoopbackMessageBus>> GROUPS = new ConcurrentHashMap<>();
+
+    private final String nodeId;
+    private final String group;
+    private final List<ClusterListener> listeners = new CopyOnWriteArrayList<>();
+
+    //One thread per node keeps delivery in send order and off the sender's stack
+    private final ExecutorService inbox;
+
+    public LoopbackMessageBus(@Value("${collab.cluster.node-id:}") String nodeId,
+                              @Value("${collab.cluster.group:default}") String group) {
+        this.nodeId = ClusterMessageBus.resolveNodeId(nodeId);
+        this.group = group;
+        this.inbox = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-loopback-" + this.nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void join() {
+        nodes().put(nodeId, this);
+        notifyMembership();
+        log.info("Node {} joined loopback cluster group {}", nodeId, group);
+    }
+
+    @PreDestroy
+    public void leave() {
+        nodes().remove(nodeId, this);
+        notifyMembership();
+        inbox.shutdown();
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public Set<String> members() {
+        return new TreeSet<>(nodes().keySet());
+    }
+
+    @Override
+    public boolean hasPeers() {
+        return nodes().size() > 1;
+    }
+
+    @Override
+    public void publish(ClusterMessage message) {
+        nodes().forEach((id, node) -> {
+            if (node != this) {
+                node.deliver(message);
+            }
+        });
+    }
+
+    @Override
+    public void send(String target, ClusterMessage message) {
+        LoopbackMessageBus node = nodes().get(target);
+        if (node != null && node != this) {
+            node.deliver(message);
+        }
+    }
+
+    @Override
+    public void addListener(ClusterListener listener) {
+        listeners.add(listener);
+    }
+
+    private void deliver(ClusterMessage message) {
+        if (inbox.isShutdown()) {
+            return;
+        }
+        inbox.execute(() -> listeners.forEach(listener -> {
+            try {
+                listener.onMessage(message);
+            } catch (RuntimeException e) {
+                log.error("Cluster listener failed on {} from {}", message.type(), message.origin(), e);
+            }
+        }));
+    }
+
+    private void notifyMembership() {
+        nodes().values().forEach(node -> {
+            Set<String> members = node.members();
+            if (!node.inbox.isShutdown()) {
+                node.inbox.execute(() -> node.listeners.forEach(listener -> listener.onMembershipChange(members)));
+            }
+        });
+    }
+
+    private Map<String, LoopbackMessageBus> nodes() {
+        return GROUPS.computeIfAbsent(group, g -> new ConcurrentHashMap<>());
+    }
+}
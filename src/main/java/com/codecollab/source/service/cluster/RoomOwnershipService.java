@@ -0,0 +1,404 @@
+package com.codecollab.source.service.cluster;
+
+import com.codecollab.source.service.RoomDocumentService;
+import com.codecollab.source.service.RoomOperationLogService;
+import com.codecollab.source.service.RoomPersistenceService;
+import com.codecollab.source.service.manager.RoomDispatcher;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Decides which node holds the live document of a room.
+ * A room lives on the node RoomPlacement puts it on; that node claims it
+ * when it first needs it and everyone else forwards the room's edits to
+ * it. On membership changes rooms move to their new placed node.
+ *
+ * Every change of owner bumps the room's epoch. A claim only takes effect
+ * once every other member granted it, and a node that still holds the
+ * room grants only after it flushed and evicted its copy, so the new
+ * owner never loads the document while another node has it live. Of two
+ * concurrent claims the higher epoch wins, then the placed node, then the
+ * lower node id; messages from an older epoch are ignored. Handing a room
+ * over runs on the room's dispatch lane: the document is flushed to the
+ * database and evicted before the new owner is announced.
+ */
+@Slf4j
+@Service
+public class RoomOwnershipService implements ClusterListener {
+
+    private final ClusterMessageBus bus;
+    private final RoomPlacement roomPlacement;
+    private final RoomDispatcher roomDispatcher;
+    private final RoomDocumentService roomDocumentService;
+    private final RoomPersistenceService roomPersistenceService;
+    private final RoomOperationLogService roomOperationLogService;
+    private final long claimTimeoutMillis;
+
+    //roomId -> owning node and epoch; a released room keeps its epoch with no node
+    private final Map<String, Ownership> owners = new ConcurrentHashMap<>();
+    //roomId -> our claim still waiting for grants
+    private final Map<String, PendingClaim> pendingClaims = new ConcurrentHashMap<>();
+
+    private final Counter handoffs;
+
+    public RoomOwnershipService(ClusterMessageBus bus,
+                                RoomPlacement roomPlacement,
+                                RoomDispatcher roomDispatcher,
+                                RoomDocumentService roomDocumentService,
+                                RoomPersistenceService roomPersistenceService,
+                                RoomOperationLogService roomOperationLogService,
+                                MeterRegistry meterRegistry,
+                                @Value("${collab.cluster.claim-timeout-ms:3000}") long claimTimeoutMillis) {
+        this.bus = bus;
+        this.roomPlacement = roomPlacement;
+        this.roomDispatcher = roomDispatcher;
+        this.roomDocumentService = roomDocumentService;
+        this.roomPersistenceService = roomPersistenceService;
+        this.roomOperationLogService = roomOperationLogService;
+        this.claimTimeoutMillis = claimTimeoutMillis;
+        this.handoffs = Counter.builder("codecollab.cluster.handoffs")
+                .description("Rooms this node handed over to another node")
+                .register(meterRegistry);
+        meterRegistry.gauge("codecollab.cluster.owned.rooms", owners,
+                o -> o.values().stream().filter(ownership -> bus.nodeId().equals(ownership.node())).count());
+    }
+
+    @PostConstruct
+    public void register() {
+        bus.addListener(this);
+    }
+
+    public String nodeId() {
+        return bus.nodeId();
+    }
+
+    /**
+     * Owner of the room, claiming it for this node if nobody has it yet and
+     * it is placed here. Never waits for the other nodes: while the claim
+     * is open this returns null and whenSettled (if given) runs once it is
+     * decided, in the order callers asked. A claim that times out drops
+     * its waiters.
+     */
+    public String ownerOf(String roomId, Runnable whenSettled) {
+        String key = normalize(roomId);
+        Ownership current = owners.get(key);
+        if (current != null && current.node() != null) {
+            return current.node();
+        }
+        String placed = roomPlacement.placedNode(key);
+        if (placed != null && !placed.equals(bus.nodeId()) && bus.members().contains(placed)) {
+            //The placed node claims it itself when the first forwarded message gets there
+            return placed;
+        }
+
+        PendingClaim claim = claim(key);
+        if (!claim.result().isDone() && whenSettled != null && claim.await(whenSettled)) {
+            return null;
+        }
+        //Settled in the meantime, or a caller that doesn't wait
+        return claim.result().exceptionally(failure -> null).getNow(null);
+    }
+
+    public boolean isLocal(String roomId) {
+        return bus.nodeId().equals(ownerOf(roomId, null));
+    }
+
+    //Owner without claiming, for routing hints
+    public String currentOwner(String roomId) {
+        String key = normalize(roomId);
+        Ownership current = owners.get(key);
+        return current != null && current.node() != null ? current.node() : roomPlacement.placedNode(key);
+    }
+
+    /**
+     * Moves a room this node owns to another node. Queued behind the
+     * room's pending work; edits that arrive afterwards are forwarded.
+     */
+    public void handOff(String roomId, String target) {
+        String key = normalize(roomId);
+        roomDispatcher.dispatch(key, () -> {
+            Ownership current = owners.get(key);
+            if (current == null || !bus.nodeId().equals(current.node()) || target.equals(bus.nodeId())) {
+                return;
+            }
+            release(key);
+            long epoch = current.epoch() + 1;
+            owners.put(key, new Ownership(target, epoch));
+            bus.publish(ClusterMessage.ownership(ClusterMessage.Type.HANDOFF, bus.nodeId(), key, target, epoch));
+            handoffs.increment();
+            log.info("Handed room {} over to node {} at epoch {}", key, target, epoch);
+        });
+    }
+
+    @Override
+    public void onMessage(ClusterMessage message) {
+        switch (message.type()) {
+            case CLAIM -> onClaim(message.roomId(), message.origin(), message.epoch(), message.held());
+            case GRANT -> onGrant(message.roomId(), message.origin(), message.target(), message.epoch());
+            case HANDOFF -> onHandOff(message.roomId(), message.target(), message.epoch());
+            case RELEASE -> owners.computeIfPresent(message.roomId(), (key, current) ->
+                    message.origin().equals(current.node()) && message.epoch() >= current.epoch()
+                            ? new Ownership(null, message.epoch())
+                            : current);
+            default -> {
+            }
+        }
+    }
+
+    @Override
+    public void onMembershipChange(Set<String> members) {
+        roomPlacement.update(members);
+        //Rooms of nodes that are gone get claimed again on next use
+        owners.replaceAll((roomId, current) -> current.node() != null && !members.contains(current.node())
+                ? new Ownership(null, current.epoch())
+                : current);
+        //Nodes that left can't grant anymore
+        pendingClaims.values().forEach(claim -> {
+            claim.waitingFor().retainAll(members);
+            completeIfGranted(claim);
+        });
+        owners.forEach((roomId, current) -> {
+            if (!bus.nodeId().equals(current.node())) {
+                return;
+            }
+            String placed = roomPlacement.placedNode(roomId);
+            if (placed != null && !placed.equals(bus.nodeId())) {
+                handOff(roomId, placed);
+            } else {
+                //Tell newcomers what we hold before they claim it themselves
+                bus.publish(ClusterMessage.claim(bus.nodeId(), roomId, current.epoch(), true));
+            }
+        });
+    }
+
+    //Release everything on the way down so other nodes can pick the rooms up from the database
+    @PreDestroy
+    public void releaseAll() {
+        List<String> owned = owners.entrySet().stream()
+                .filter(entry -> bus.nodeId().equals(entry.getValue().node()))
+                .map(Map.Entry::getKey)
+                .toList();
+        CountDownLatch released = new CountDownLatch(owned.size());
+        for (String roomId : owned) {
+            roomDispatcher.dispatch(roomId, () -> {
+                try {
+                    Ownership current = owners.get(roomId);
+                    if (current != null && bus.nodeId().equals(current.node())) {
+                        release(roomId);
+                        owners.put(roomId, new Ownership(null, current.epoch()));
+                        bus.publish(ClusterMessage.ownership(ClusterMessage.Type.RELEASE, bus.nodeId(), roomId, null,
+                                current.epoch()));
+                    }
+                } finally {
+                    released.countDown();
+                }
+            });
+        }
+        try {
+            released.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Our open claim on the room, started if there is none
+    private PendingClaim claim(String roomId) {
+        Ownership known = owners.get(roomId);
+        long epoch = (known != null ? known.epoch() : 0) + 1;
+        Set<String> peers = ConcurrentHashMap.newKeySet();
+        peers.addAll(bus.members());
+        peers.remove(bus.nodeId());
+
+        PendingClaim claim = new PendingClaim(epoch, peers, new CompletableFuture<>(), new ArrayList<>());
+        PendingClaim running = pendingClaims.putIfAbsent(roomId, claim);
+        if (running != null) {
+            return running;
+        }
+
+        claim.result().orTimeout(claimTimeoutMillis, TimeUnit.MILLISECONDS).whenComplete((owner, failure) -> {
+            List<Runnable> waiters = claim.settle();
+            if (failure == null) {
+                waiters.forEach(Runnable::run);
+                return;
+            }
+            pendingClaims.remove(roomId, claim);
+            if (failure instanceof TimeoutException) {
+                log.warn("Claim on room {} at epoch {} got no answer from {}, dropping {} waiting messages",
+                        roomId, claim.epoch(), claim.waitingFor(), waiters.size());
+            } else {
+                log.warn("Claim on room {} failed: {}", roomId, failure.getMessage());
+            }
+        });
+        if (peers.isEmpty()) {
+            completeIfGranted(roomId, claim);
+        } else {
+            bus.publish(ClusterMessage.claim(bus.nodeId(), roomId, epoch, false));
+        }
+        return claim;
+    }
+
+    private void onClaim(String roomId, String claimant, long epoch, boolean held) {
+        Ownership current = owners.get(roomId);
+        PendingClaim ours = pendingClaims.get(roomId);
+
+        if (current != null && bus.nodeId().equals(current.node())) {
+            if (epoch > current.epoch() || (held && epoch == current.epoch() && claimWins(roomId, claimant, bus.nodeId()))) {
+                yieldTo(roomId, claimant, epoch, current, !held);
+                return;
+            }
+            //Somebody who didn't know we hold it; tell them, and let the placed node have it
+            bus.send(claimant, ClusterMessage.claim(bus.nodeId(), roomId, current.epoch(), true));
+            String placed = roomPlacement.placedNode(roomId);
+            if (claimant.equals(placed)) {
+                log.info("Node {} also claimed room {}, handing it over", claimant, roomId);
+                handOff(roomId, claimant);
+            }
+            return;
+        }
+
+        if (ours != null) {
+            boolean theirsWins = held || epoch > ours.epoch()
+                    || (epoch == ours.epoch() && claimWins(roomId, claimant, bus.nodeId()));
+            if (!theirsWins) {
+                //They give up once they see ours
+                bus.send(claimant, ClusterMessage.claim(bus.nodeId(), roomId, ours.epoch(), false));
+                return;
+            }
+            pendingClaims.remove(roomId, ours);
+            ours.result().complete(claimant);
+        }
+
+        owners.compute(roomId, (key, known) -> known == null || epoch >= known.epoch() ? new Ownership(claimant, epoch) : known);
+        if (!held) {
+            bus.send(claimant, ClusterMessage.ownership(ClusterMessage.Type.GRANT, bus.nodeId(), roomId, claimant, epoch));
+        }
+    }
+
+    /**
+     * A newer epoch took the room. A claimant still waits for our grant, so
+     * our copy is flushed first; a node that already holds it loaded the
+     * database without us, and writing our copy now would overwrite its edits.
+     */
+    private void yieldTo(String roomId, String claimant, long epoch, Ownership ours, boolean grant) {
+        roomDispatcher.dispatch(roomId, () -> {
+            if (!ours.equals(owners.get(roomId))) {
+                return;
+            }
+            if (grant) {
+                release(roomId);
+            } else {
+                log.warn("Node {} holds room {} at epoch {}, dropping our copy from epoch {}",
+                        claimant, roomId, epoch, ours.epoch());
+                roomDocumentService.evict(roomId);
+            }
+            owners.put(roomId, new Ownership(claimant, epoch));
+            if (grant) {
+                bus.send(claimant, ClusterMessage.ownership(ClusterMessage.Type.GRANT, bus.nodeId(), roomId, claimant, epoch));
+            }
+        });
+    }
+
+    private void onGrant(String roomId, String granter, String claimant, long epoch) {
+        PendingClaim ours = pendingClaims.get(roomId);
+        if (ours == null || ours.epoch() != epoch || !bus.nodeId().equals(claimant)) {
+            return;
+        }
+        ours.waitingFor().remove(granter);
+        completeIfGranted(roomId, ours);
+    }
+
+    private void onHandOff(String roomId, String target, long epoch) {
+        owners.compute(roomId, (key, known) -> known == null || epoch >= known.epoch() ? new Ownership(target, epoch) : known);
+        PendingClaim ours = pendingClaims.remove(roomId);
+        if (ours != null) {
+            ours.result().complete(target);
+        }
+    }
+
+    private void completeIfGranted(PendingClaim claim) {
+        pendingClaims.forEach((roomId, pending) -> {
+            if (pending == claim) {
+                completeIfGranted(roomId, claim);
+            }
+        });
+    }
+
+    private void completeIfGranted(String roomId, PendingClaim claim) {
+        if (!claim.waitingFor().isEmpty() || !pendingClaims.remove(roomId, claim)) {
+            return;
+        }
+        Ownership settled = owners.compute(roomId, (key, known) -> known == null || claim.epoch() >= known.epoch()
+                ? new Ownership(bus.nodeId(), claim.epoch())
+                : known);
+        claim.result().complete(settled.node());
+    }
+
+    //The placed node wins a contested room, otherwise the lower id
+    private boolean claimWins(String roomId, String claimant, String current) {
+        if (claimant.equals(current)) {
+            return false;
+        }
+        String placed = roomPlacement.placedNode(roomId);
+        if (claimant.equals(placed) || current.equals(placed)) {
+            return claimant.equals(placed);
+        }
+        return claimant.compareTo(current) < 0;
+    }
+
+    //Called on the room's lane
+    private void release(String roomId) {
+        roomPersistenceService.flushRoom(roomId);
+        roomOperationLogService.flush();
+        roomDocumentService.evict(roomId);
+    }
+
+    private String normalize(String roomId) {
+        if (roomId == null || roomId.isBlank()) {
+            throw new IllegalArgumentException("Room ID is required");
+        }
+        return roomId.toUpperCase().trim();
+    }
+
+    private record Ownership(String node, long epoch) {
+    }
+
+    //waiters is guarded by itself
+    private record PendingClaim(long epoch, Set<String> waitingFor, CompletableFuture<String> result,
+                                List<Runnable> waiters) {
+
+        //False once the claim is decided, the caller then reads the result itself
+        boolean await(Runnable waiter) {
+            synchronized (waiters) {
+                if (result.isDone()) {
+                    return false;
+                }
+                waiters.add(waiter);
+                return true;
+            }
+        }
+
+        //Called after result completed, so nobody is added afterwards
+        List<Runnable> settle() {
+            synchronized (waiters) {
+                List<Runnable> settled = List.copyOf(waiters);
+                waiters.clear();
+                return settled;
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.codecollab.source.service.cluster;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+
+/**
+ * Where a room should live given the current cluster members.
+ * Keyed on the normalized 6-character room code. RoomOwnershipService
+ * updates the ring on every membership change and hands rooms over to
+ * their placed node.
+ */
+@Slf4j
+@Component
+public class RoomPlacement {
+
+    private volatile ConsistentHashRing ring;
+
+    public RoomPlacement(ClusterMessageBus bus,
+                         @Value("${collab.cluster.virtual-nodes:128}") int virtualNodes) {
+        this.ring = new ConsistentHashRing(bus.members(), virtualNodes);
+    }
+
+    public String placedNode(String roomId) {
+        return ring.nodeFor(roomId.toUpperCase().trim());
+    }
+
+    //Returns true when the node set changed
+    public boolean update(Set<String> members) {
+        ConsistentHashRing current = ring;
+        ConsistentHashRing updated = current.withNodes(members);
+        if (updated == current) {
+            return false;
+        }
+        ring = updated;
+        log.info("Room placement ring now has nodes {}", updated.getNodes());
+        return true;
+    }
+
+    public Set<String> nodes() {
+        return ring.getNodes();
+    }
+}
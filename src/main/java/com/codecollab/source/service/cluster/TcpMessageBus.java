@@ -0,0 +1,356 @@
+package com.codecollab.source.service.cluster;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Full mesh of TCP links between the nodes listed in collab.cluster.peers.
+ * Every node dials every peer and only writes on the links it dialled;
+ * links it accepted are only read from. A peer is a member while our link
+ * to it is up. Idle links carry heartbeats, and a reader that hears
+ * nothing for three heartbeats drops the link, which the dialling side
+ * notices on its next write and redials.
+ *
+ * The listener binds to collab.cluster.bind-address, loopback unless set.
+ * Both ends of a link prove they know collab.cluster.secret before any
+ * other frame is read: each sends a nonce in its HELLO and the other
+ * answers with an HMAC of it, so the secret itself never crosses the wire.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "collab.cluster.transport", havingValue = "tcp")
+public class TcpMessageBus implements ClusterMessageBus {
+
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final String NONCE_HEADER = "nonce";
+    private static final String PROOF_HEADER = "proof";
+
+    private final String nodeId;
+    private final String bindAddress;
+    private final int port;
+    private final byte[] secret;
+    private final SecureRandom random = new SecureRandom();
+    private final List<InetSocketAddress> peerAddresses = new ArrayList<>();
+    private final long heartbeatMillis;
+
+    private final List<ClusterListener> listeners = new CopyOnWriteArrayList<>();
+    //nodeId -> link we dialled and write on
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+    private final ExecutorService threads =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("cluster-tcp-", 0).factory());
+
+    private volatile ServerSocket serverSocket;
+    private volatile boolean running;
+
+    public TcpMessageBus(@Value("${collab.cluster.node-id:}") String nodeId,
+                         @Value("${collab.cluster.bind-address:127.0.0.1}") String bindAddress,
+                         @Value("${collab.cluster.port:7700}") int port,
+                         @Value("${collab.cluster.secret:}") String secret,
+                         @Value("${collab.cluster.peers:}") String peers,
+                         @Value("${collab.cluster.heartbeat-ms:1000}") long heartbeatMillis) {
+        this.nodeId = ClusterMessageBus.resolveNodeId(nodeId);
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.heartbeatMillis = heartbeatMillis;
+        for (String peer : peers.split(",")) {
+            if (peer.isBlank()) {
+                continue;
+            }
+            String[] hostPort = peer.trim().split(":");
+            peerAddresses.add(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])));
+        }
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (secret.length == 0) {
+            throw new IllegalStateException("collab.cluster.secret must be set for the tcp cluster transport");
+        }
+        running = true;
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+        threads.execute(this::acceptLoop);
+        for (InetSocketAddress address : peerAddresses) {
+            threads.execute(() -> dialLoop(address));
+        }
+        log.info("Node {} listening for cluster peers on {}:{}", nodeId, bindAddress, getPort());
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.debug("Failed to close cluster server socket: {}", e.getMessage());
+        }
+        links.values().forEach(PeerLink::close);
+        threads.shutdownNow();
+    }
+
+    //The bound port, useful when configured with 0
+    public int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : port;
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public Set<String> members() {
+        Set<String> members = new TreeSet<>(links.keySet());
+        members.add(nodeId);
+        return members;
+    }
+
+    @Override
+    public boolean hasPeers() {
+        return !links.isEmpty();
+    }
+
+    @Override
+    public void publish(ClusterMessage message) {
+        links.values().forEach(link -> link.outbox.offer(message));
+    }
+
+    @Override
+    public void send(String target, ClusterMessage message) {
+        PeerLink link = links.get(target);
+        if (link != null) {
+            link.outbox.offer(message);
+        } else {
+            log.debug("No link to node {}, dropping {}", target, message.type());
+        }
+    }
+
+    @Override
+    public void addListener(ClusterListener listener) {
+        listeners.add(listener);
+    }
+
+    private void dialLoop(InetSocketAddress address) {
+        while (running) {
+            PeerLink link = null;
+            try (Socket socket = new Socket()) {
+                socket.connect(address, (int) Math.max(heartbeatMillis * 3, 1000));
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                String nonce = nonce();
+                write(out, ClusterMessage.hello(nodeId, Map.of(NONCE_HEADER, nonce)));
+                ClusterMessage hello = readHello(in);
+                String peerId = hello.origin();
+                if (!verify(hello.headers().get(PROOF_HEADER), nonce, peerId)) {
+                    log.warn("Cluster node at {} failed to prove the cluster secret", address);
+                    throw new IOException("Peer failed the handshake");
+                }
+                if (peerId.equals(nodeId)) {
+                    //Our own address is in the peer list
+                    return;
+                }
+                write(out, ClusterMessage.hello(nodeId, Map.of(PROOF_HEADER, proof(hello.headers().get(NONCE_HEADER), nodeId))));
+
+                link = new PeerLink(peerId, socket, out);
+                PeerLink previous = links.put(peerId, link);
+                if (previous != null) {
+                    previous.close();
+                }
+                log.info("Connected to cluster node {} at {}", peerId, address);
+                notifyMembership();
+                link.writeLoop();
+            } catch (IOException | RuntimeException e) {
+                log.debug("Cluster link to {} failed: {}", address, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                if (link != null && links.remove(link.peerId, link)) {
+                    log.info("Lost cluster node {}", link.peerId);
+                    notifyMembership();
+                }
+            }
+
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                threads.execute(() -> readLoop(socket));
+            } catch (IOException e) {
+                if (running) {
+                    log.warn("Failed to accept cluster connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        try (socket) {
+            socket.setSoTimeout((int) (heartbeatMillis * 3));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            //Nothing from an unauthenticated peer reaches the listeners
+            ClusterMessage hello = readHello(in);
+            String peerId = hello.origin();
+            String nonce = nonce();
+            write(out, ClusterMessage.hello(nodeId, Map.of(NONCE_HEADER, nonce,
+                    PROOF_HEADER, proof(hello.headers().get(NONCE_HEADER), nodeId))));
+            if (!verify(readHello(in).headers().get(PROOF_HEADER), nonce, peerId)) {
+                log.warn("Rejected cluster connection from {}, it did not prove the cluster secret",
+                        socket.getRemoteSocketAddress());
+                return;
+            }
+
+            while (running) {
+                ClusterMessage message = read(in);
+                if (message.type() == ClusterMessage.Type.HEARTBEAT) {
+                    continue;
+                }
+                //Delivered on this reader thread, so each peer's messages stay in order
+                for (ClusterListener listener : listeners) {
+                    try {
+                        listener.onMessage(message);
+                    } catch (RuntimeException e) {
+                        log.error("Cluster listener failed on {} from {}", message.type(), peerId, e);
+                    }
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            log.info("Cluster peer went quiet, dropping its link");
+        } catch (IOException | RuntimeException e) {
+            log.debug("Cluster read link closed: {}", e.getMessage());
+        }
+    }
+
+    private void notifyMembership() {
+        Set<String> members = members();
+        listeners.forEach(listener -> listener.onMembershipChange(members));
+    }
+
+    private static void write(DataOutputStream out, ClusterMessage message) throws IOException {
+        message.writeTo(out);
+        out.flush();
+    }
+
+    private static ClusterMessage read(DataInputStream in) throws IOException {
+        return ClusterMessage.readFrom(in);
+    }
+
+    private static ClusterMessage readHello(DataInputStream in) throws IOException {
+        ClusterMessage hello = read(in);
+        if (hello.type() != ClusterMessage.Type.HELLO || hello.origin() == null || hello.origin().isBlank()) {
+            throw new IOException("Expected HELLO, got " + hello.type());
+        }
+        return hello;
+    }
+
+    private String nonce() {
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        return Base64.getEncoder().encodeToString(nonce);
+    }
+
+    //HMAC-SHA256 over the other side's nonce and our id
+    private String proof(String nonce, String prover) throws IOException {
+        if (nonce == null) {
+            throw new IOException("HELLO without a nonce");
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return HexFormat.of().formatHex(mac.doFinal((nonce + ":" + prover).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private boolean verify(String proof, String nonce, String prover) throws IOException {
+        return proof != null && MessageDigest.isEqual(proof.getBytes(StandardCharsets.UTF_8),
+                proof(nonce, prover).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private final class PeerLink {
+        private final String peerId;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final BlockingQueue<ClusterMessage> outbox = new LinkedBlockingQueue<>();
+
+        PeerLink(String peerId, Socket socket, DataOutputStream out) {
+            this.peerId = peerId;
+            this.socket = socket;
+            this.out = out;
+        }
+
+        //Runs until the link fails; sends a heartbeat whenever it has been idle for a beat
+        void writeLoop() throws IOException, InterruptedException {
+            while (running && !socket.isClosed()) {
+                ClusterMessage message = outbox.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                if (message == null) {
+                    write(out, ClusterMessage.control(ClusterMessage.Type.HEARTBEAT, nodeId));
+                    continue;
+                }
+                message.writeTo(out);
+                //Batch whatever else is already queued into the same flush
+                while ((message = outbox.poll()) != null) {
+                    message.writeTo(out);
+                }
+                out.flush();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Failed to close link to {}: {}", peerId, e.getMessage());
+            }
+        }
+    }
+}
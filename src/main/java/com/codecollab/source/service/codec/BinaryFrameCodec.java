@@ -0,0 +1,173 @@
+package com.codecollab.source.service.codec;
+
+import com.codecollab.source.dto.CodeDeltaMessage;
+import com.codecollab.source.dto.ExecuteCodeResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary body for the frames that dominate the broadcast path.
+ *
+ * Layout: one kind byte, then fields in a fixed order. Numbers are
+ * varints (signed ones zig-zagged), strings are varint(length + 1)
+ * followed by UTF-8, 0 meaning null. An op component is
+ * varint(n << 2 | tag) with tag 0 = retain n, 1 = delete n, 2 = insert of
+ * n UTF-8 bytes that follow.
+ *
+ * STOMP clients split frames on NUL, so the finished body is escaped:
+ * 0x00 is written as 0x01 0x01 and 0x01 as 0x01 0x02.
+ */
+public final class BinaryFrameCodec {
+
+    static final byte DELTA = 1;
+    static final byte CATCHUP = 2;
+    static final byte RESYNC = 3;
+    static final byte OUTPUT = 4;
+
+    private static final int ESCAPE = 0x01;
+
+    private BinaryFrameCodec() {
+    }
+
+    public static boolean supports(Class<?> type) {
+        return CodeDeltaMessage.class.isAssignableFrom(type) || ExecuteCodeResponse.class.isAssignableFrom(type);
+    }
+
+    public static byte[] encode(Object payload) {
+        Writer out = new Writer();
+        if (payload instanceof CodeDeltaMessage message) {
+            writeMessage(out, message);
+        } else if (payload instanceof ExecuteCodeResponse response) {
+            out.writeByte(OUTPUT);
+            out.writeByte(response.isError() ? 1 : 0);
+            out.writeString(response.getOutput());
+        } else {
+            throw new IllegalArgumentException("No binary encoding for " + payload.getClass().getSimpleName());
+        }
+        return out.toEscapedBytes();
+    }
+
+    private static void writeMessage(Writer out, CodeDeltaMessage message) {
+        CodeDeltaMessage.MessageType type = message.getType() != null ? message.getType() : CodeDeltaMessage.MessageType.DELTA;
+        switch (type) {
+            case DELTA -> {
+                out.writeByte(DELTA);
+                writeDelta(out, message);
+            }
+            case CATCHUP -> {
+                out.writeByte(CATCHUP);
+                out.writeString(message.getRoomId());
+                out.writeSigned(message.getBaseRevision());
+                out.writeSigned(message.getRevision());
+                out.writeString(message.getCode());
+                out.writeString(message.getLanguage());
+                List<CodeDeltaMessage> backlog = message.getBacklog() != null ? message.getBacklog() : List.of();
+                out.writeVarint(backlog.size());
+                for (CodeDeltaMessage delta : backlog) {
+                    writeDelta(out, delta);
+                }
+            }
+            case RESYNC -> {
+                out.writeByte(RESYNC);
+                out.writeString(message.getRoomId());
+            }
+        }
+    }
+
+    private static void writeDelta(Writer out, CodeDeltaMessage delta) {
+        out.writeString(delta.getSender());
+        out.writeString(delta.getClientId());
+        out.writeString(delta.getRoomId());
+        out.writeSigned(delta.getBaseRevision());
+        out.writeSigned(delta.getRevision());
+
+        List<Object> ops = delta.getOps() != null ? delta.getOps() : List.of();
+        out.writeVarint(ops.size());
+        for (Object op : ops) {
+            if (op instanceof String insert) {
+                byte[] bytes = insert.getBytes(StandardCharsets.UTF_8);
+                out.writeVarint(((long) bytes.length << 2) | 2);
+                out.writeBytes(bytes);
+            } else if (op instanceof Number number && number.longValue() < 0) {
+                out.writeVarint((-number.longValue() << 2) | 1);
+            } else if (op instanceof Number number) {
+                out.writeVarint(number.longValue() << 2);
+            } else {
+                throw new IllegalArgumentException("Unknown op component: " + op);
+            }
+        }
+    }
+
+    //Growable buffer, cheaper than a stream for these small frames
+    private static final class Writer {
+        private byte[] buf = new byte[64];
+        private int size;
+        private int escapes;
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+            if ((b & 0xFF) <= ESCAPE) {
+                escapes++;
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            for (byte b : bytes) {
+                buf[size++] = b;
+                if ((b & 0xFF) <= ESCAPE) {
+                    escapes++;
+                }
+            }
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        void writeSigned(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length + 1L);
+            writeBytes(bytes);
+        }
+
+        byte[] toEscapedBytes() {
+            if (escapes == 0) {
+                return Arrays.copyOf(buf, size);
+            }
+            byte[] escaped = new byte[size + escapes];
+            int j = 0;
+            for (int i = 0; i < size; i++) {
+                int b = buf[i] & 0xFF;
+                if (b <= ESCAPE) {
+                    escaped[j++] = ESCAPE;
+                    escaped[j++] = (byte) (b + 1);
+                } else {
+                    escaped[j++] = buf[i];
+                }
+            }
+            return escaped;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.codecollab.source.service.codec;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.AbstractMessageConverter;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+import tools.jackson.databind.json.JsonMapper;
+
+/**
+ * Wraps outgoing code sync and compiler output messages in a WirePayload
+ * instead of writing JSON straight away. WireFormatInterceptor picks the
+ * encoding per session on the way out. Incoming frames are left to the
+ * regular JSON converter.
+ */
+@Component
+public class WireFormatConverter extends AbstractMessageConverter {
+
+    private final JsonMapper jsonMapper;
+
+    public WireFormatConverter(JsonMapper jsonMapper) {
+        super(MimeTypeUtils.APPLICATION_JSON);
+        this.jsonMapper = jsonMapper;
+    }
+
+    public WirePayload wrap(Object value) {
+        return new WirePayload(value, jsonMapper);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return BinaryFrameCodec.supports(clazz);
+    }
+
+    @Override
+    protected boolean canConvertFrom(Message<?> message, Class<?> targetClass) {
+        return false;
+    }
+
+    @Override
+    protected Object convertToInternal(Object payload, MessageHeaders headers, Object conversionHint) {
+        return new WirePayload(payload, jsonMapper);
+    }
+}
@@ -0,0 +1,92 @@
+package com.codecollab.source.service.codec;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Negotiates the wire format per client and encodes WirePayloads for it.
+ * A client on the raw WebSocket endpoint can ask for binary frames with a
+ * "sync-encoding:binary" header on CONNECT; everyone else, including
+ * every SockJS client, keeps getting JSON.
+ */
+@Slf4j
+@Component
+public class WireFormatInterceptor implements ChannelInterceptor {
+
+    public static final String ENCODING_HEADER = "sync-encoding";
+    public static final String BINARY = "binary";
+    //Set by the raw endpoint's handshake; SockJS can only carry text frames
+    public static final String RAW_TRANSPORT_ATTRIBUTE = "rawWebSocket";
+
+    private final Set<String> binarySessions = ConcurrentHashMap.newKeySet();
+    private final DistributionSummary jsonBytes;
+    private final DistributionSummary binaryBytes;
+
+    public WireFormatInterceptor(MeterRegistry meterRegistry) {
+        this.jsonBytes = DistributionSummary.builder("codecollab.wire.frame.bytes")
+                .description("Body size of encoded sync and output frames")
+                .baseUnit("bytes")
+                .tag("encoding", "json")
+                .register(meterRegistry);
+        this.binaryBytes = DistributionSummary.builder("codecollab.wire.frame.bytes")
+                .description("Body size of encoded sync and output frames")
+                .baseUnit("bytes")
+                .tag("encoding", BINARY)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if (message.getPayload() instanceof WirePayload payload) {
+            return encode(message, payload);
+        }
+
+        SimpMessageType type = SimpMessageHeaderAccessor.getMessageType(message.getHeaders());
+        if (type == SimpMessageType.CONNECT) {
+            negotiate(StompHeaderAccessor.wrap(message));
+        } else if (type == SimpMessageType.DISCONNECT) {
+            String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+            if (sessionId != null) {
+                binarySessions.remove(sessionId);
+            }
+        }
+        return message;
+    }
+
+    private void negotiate(StompHeaderAccessor accessor) {
+        Map<String, Object> attributes = accessor.getSessionAttributes();
+        boolean raw = attributes != null && Boolean.TRUE.equals(attributes.get(RAW_TRANSPORT_ATTRIBUTE));
+        if (raw && BINARY.equals(accessor.getFirstNativeHeader(ENCODING_HEADER))) {
+            binarySessions.add(accessor.getSessionId());
+            log.debug("Session {} uses binary sync frames", accessor.getSessionId());
+        }
+    }
+
+    private Message<?> encode(Message<?> message, WirePayload payload) {
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+        boolean binary = sessionId != null && binarySessions.contains(sessionId);
+        byte[] body = binary ? payload.binary() : payload.json();
+        (binary ? binaryBytes : jsonBytes).record(body.length);
+
+        MessageHeaderAccessor accessor = MessageHeaderAccessor.getMutableAccessor(message);
+        if (binary) {
+            accessor.setContentType(MimeTypeUtils.APPLICATION_OCTET_STREAM);
+        }
+        return MessageBuilder.createMessage(body, accessor.getMessageHeaders());
+    }
+}
@@ -0,0 +1,45 @@
+package com.codecollab.source.service.codec;
+
+import tools.jackson.databind.json.JsonMapper;
+
+/**
+ * Outbound payload that is only serialized once it is known who receives it.
+ * The broker hands the same instance to every subscriber, so each encoding
+ * is produced at most once per broadcast no matter how many sessions get it.
+ */
+public final class WirePayload {
+
+    private final Object value;
+    private final JsonMapper jsonMapper;
+
+    //Benign races: at worst two threads encode the same value
+    private volatile byte[] json;
+    private volatile byte[] binary;
+
+    WirePayload(Object value, JsonMapper jsonMapper) {
+        this.value = value;
+        this.jsonMapper = jsonMapper;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public byte[] json() {
+        byte[] bytes = json;
+        if (bytes == null) {
+            bytes = jsonMapper.writeValueAsBytes(value);
+            json = bytes;
+        }
+        return bytes;
+    }
+
+    public byte[] binary() {
+        byte[] bytes = binary;
+        if (bytes == null) {
+            bytes = BinaryFrameCodec.encode(value);
+            binary = bytes;
+        }
+        return bytes;
+    }
+}
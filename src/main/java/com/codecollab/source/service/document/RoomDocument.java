@@ -0,0 +1,207 @@
+package com.codecollab.source.service.document;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Live, server-authoritative copy of one room's code.
+ * All mutations go through the synchronized methods so a room's revisions
+ * are always applied one after the other.
+ *
+ * Besides the live rope it keeps a compacted snapshot that is refreshed
+ * every snapshotInterval revisions and a bounded log of the ops applied
+ * since, so a joining or reconnecting client can be brought up to date
+ * from (snapshot + log tail) or from the log tail alone.
+ */
+public class RoomDocument {
+
+    private final String roomId;
+    private final int historySize;
+    private final int snapshotInterval;
+
+    private Rope text;
+    private String language;
+    private int revision;
+
+    //Ops applied in the last historySize revisions, oldest first
+    private final Deque<LoggedOperation> history = new ArrayDeque<>();
+
+    //Materialised text of an earlier revision, shared by every joiner
+    private String compactedCode;
+    private int compactedRevision;
+
+    //Last edit or catch-up, idle documents get unloaded
+    private volatile long lastUsedNanos = System.nanoTime();
+
+    public RoomDocument(String roomId, String code, String language, int revision,
+                        int historySize, int snapshotInterval) {
+        this.roomId = roomId;
+        this.text = Rope.of(code);
+        this.language = language;
+        this.revision = revision;
+        //The log has to reach back to the compacted snapshot
+        this.historySize = Math.max(historySize, snapshotInterval);
+        this.snapshotInterval = snapshotInterval;
+        this.compactedCode = code != null ? code : "";
+        this.compactedRevision = revision;
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    /**
+     * Transforms an op made against baseRevision over everything applied
+     * since then and applies it. Returns the op as it was applied together
+     * with its new revision, or null if baseRevision is no longer covered by
+     * the history.
+     */
+    public synchronized LoggedOperation apply(int baseRevision, TextOperation operation,
+                                              String clientId, String sender) {
+        if (baseRevision > revision || baseRevision < revision - history.size()) {
+            return null;
+        }
+
+        int skip = history.size() - (revision - baseRevision);
+        Iterator<LoggedOperation> concurrent = history.iterator();
+        for (int i = 0; i < skip; i++) {
+            concurrent.next();
+        }
+        while (concurrent.hasNext()) {
+            operation = TextOperation.transform(operation, concurrent.next().operation())[0];
+        }
+
+        text = text.apply(operation);
+        revision++;
+        lastUsedNanos = System.nanoTime();
+
+        LoggedOperation logged = new LoggedOperation(operation, revision, clientId, sender);
+        history.addLast(logged);
+        if (history.size() > historySize) {
+            history.removeFirst();
+        }
+
+        if (revision - compactedRevision >= snapshotInterval) {
+            compact();
+        }
+        return logged;
+    }
+
+    /**
+     * Re-applies ops that were already transformed and logged, e.g. from the
+     * persisted op log after a restart. Stops at the first gap or at an op
+     * that doesn't fit the text, and returns how many ops were applied.
+     */
+    public synchronized int replay(List<LoggedOperation> operations) {
+        int applied = 0;
+        for (LoggedOperation logged : operations) {
+            if (logged.revision() != revision + 1 || logged.operation().getBaseLength() != text.length()) {
+                break;
+            }
+            text = text.apply(logged.operation());
+            revision = logged.revision();
+            history.addLast(logged);
+            if (history.size() > historySize) {
+                history.removeFirst();
+            }
+            applied++;
+        }
+        compact();
+        return applied;
+    }
+
+    /**
+     * Replaces the whole text, e.g. for a legacy full document update. The
+     * change is applied as a normal op at the current revision, so it is
+     * logged and clients catch up on it like on any other edit. Returns
+     * null when the text didn't change.
+     */
+    public synchronized LoggedOperation replace(String code, String language, String clientId, String sender) {
+        if (language != null) {
+            this.language = language;
+        }
+        TextOperation operation = TextOperation.diff(text.toString(), code != null ? code : "");
+        if (operation.isNoop()) {
+            return null;
+        }
+        return apply(revision, operation, clientId, sender);
+    }
+
+    /**
+     * What a client at lastRevision needs to catch up. Clients whose
+     * revision is still covered by the log only get the missing ops, anyone
+     * else (new joiners pass -1) gets the compacted snapshot plus the ops
+     * applied after it.
+     */
+    public synchronized CatchUp catchUp(int lastRevision) {
+        lastUsedNanos = System.nanoTime();
+        if (lastRevision >= 0 && lastRevision <= revision && lastRevision >= revision - history.size()) {
+            return new CatchUp(null, language, lastRevision, opsAfter(lastRevision), revision);
+        }
+        return new CatchUp(compactedCode, language, compactedRevision, opsAfter(compactedRevision), revision);
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(text, language, revision);
+    }
+
+    public synchronized int getRevision() {
+        return revision;
+    }
+
+    public long idleNanos() {
+        return System.nanoTime() - lastUsedNanos;
+    }
+
+    public synchronized long memoryBytes() {
+        long bytes = text.memoryBytes() + 40L + compactedCode.length() * 2L;
+        for (LoggedOperation logged : history) {
+            for (Object op : logged.operation().toJson()) {
+                bytes += op instanceof String insert ? 40L + insert.length() * 2L : 16L;
+            }
+        }
+        return bytes;
+    }
+
+    private List<LoggedOperation> opsAfter(int fromRevision) {
+        List<LoggedOperation> ops = new ArrayList<>(revision - fromRevision);
+        for (LoggedOperation logged : history) {
+            if (logged.revision() > fromRevision) {
+                ops.add(logged);
+            }
+        }
+        return ops;
+    }
+
+    //Flattens the rope back into full leaves and remembers the text for joiners
+    private void compact() {
+        compactedCode = text.toString();
+        compactedRevision = revision;
+        text = Rope.of(compactedCode);
+    }
+
+    public record LoggedOperation(TextOperation operation, int revision, String clientId, String sender) {
+    }
+
+    /**
+     * Catch-up payload. code is null when the client only needs the ops,
+     * otherwise it is the text at baseRevision.
+     */
+    public record CatchUp(String code, String language, int baseRevision,
+                          List<LoggedOperation> ops, int revision) {
+    }
+
+    /**
+     * Point-in-time view of the document. Ropes are immutable, so taking
+     * one is O(1) and the text is only copied out if someone asks for it.
+     */
+    public record Snapshot(Rope text, String language, int revision) {
+
+        public String code() {
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.codecollab.source.service.document;
+
+/**
+ * Immutable rope used to hold live room documents.
+ * Text sits in small leaves under a height balanced tree, so inserts and
+ * deletes only rebuild one path (O(log n)) and every version can be kept
+ * as a snapshot for free because old nodes are never modified.
+ */
+public final class Rope {
+
+    //Leaves are merged up to this size, bigger pieces are split on creation
+    static final int MAX_LEAF = 512;
+
+    //Rough JVM cost of one node object plus the String/array headers of a leaf
+    private static final int NODE_OVERHEAD_BYTES = 40;
+    private static final int LEAF_OVERHEAD_BYTES = 56;
+
+    private static final Rope EMPTY = new Rope(null);
+
+    private final Node root;
+
+    private Rope(Node root) {
+        this.root = root;
+    }
+
+    public static Rope empty() {
+        return EMPTY;
+    }
+
+    public static Rope of(String text) {
+        if (text == null || text.isEmpty()) {
+            return EMPTY;
+        }
+        return new Rope(build(text, 0, text.length()));
+    }
+
+    public int length() {
+        return root == null ? 0 : root.length;
+    }
+
+    public Rope insert(int index, String text) {
+        checkIndex(index);
+        if (text == null || text.isEmpty()) {
+            return this;
+        }
+        Node inserted = build(text, 0, text.length());
+        if (root == null) {
+            return new Rope(inserted);
+        }
+        Node[] parts = split(root, index);
+        return new Rope(join(join(parts[0], inserted), parts[1]));
+    }
+
+    public Rope delete(int start, int end) {
+        checkIndex(start);
+        checkIndex(end);
+        if (start > end) {
+            throw new IllegalArgumentException("Delete start " + start + " is after end " + end);
+        }
+        if (start == end) {
+            return this;
+        }
+        Node[] head = split(root, start);
+        Node[] tail = split(head[1], end - start);
+        return new Rope(join(head[0], tail[1]));
+    }
+
+    /**
+     * Applies an operation component by component, so the cost is
+     * O(components * log n) instead of copying the whole text.
+     */
+    public Rope apply(TextOperation operation) {
+        if (operation.getBaseLength() != length()) {
+            throw new IllegalArgumentException("Operation base length " + operation.getBaseLength()
+                    + " does not match document length " + length());
+        }
+
+        Rope result = this;
+        int index = 0;
+        for (Object op : operation.toJson()) {
+            if (op instanceof String text) {
+                result = result.insert(index, text);
+                index += text.length();
+            } else {
+                int count = (Integer) op;
+                if (count > 0) {
+                    index += count;
+                } else {
+                    result = result.delete(index, index - count);
+                }
+            }
+        }
+        return result;
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        Node node = root;
+        while (node.text == null) {
+            if (index < node.left.length) {
+                node = node.left;
+            } else {
+                index -= node.left.length;
+                node = node.right;
+            }
+        }
+        return node.text.charAt(index);
+    }
+
+    //Estimated heap taken by this version of the text
+    public long memoryBytes() {
+        if (root == null) {
+            return 0;
+        }
+        return (long) root.length * Character.BYTES
+                + (long) root.leaves * LEAF_OVERHEAD_BYTES
+                + (long) (root.leaves - 1) * NODE_OVERHEAD_BYTES;
+    }
+
+    public int leafCount() {
+        return root == null ? 0 : root.leaves;
+    }
+
+    @Override
+    public String toString() {
+        if (root == null) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder(root.length);
+        appendTo(root, builder);
+        return builder.toString();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index > length()) {
+            throw new IndexOutOfBoundsException("Index " + index + " outside document of length " + length());
+        }
+    }
+
+    private static void appendTo(Node node, StringBuilder builder) {
+        //Walk down the right spine iteratively, recursion only goes left
+        while (node.text == null) {
+            appendTo(node.left, builder);
+            node = node.right;
+        }
+        builder.append(node.text);
+    }
+
+    private static Node build(String text, int start, int end) {
+        int length = end - start;
+        if (length <= MAX_LEAF) {
+            return new Node(text.substring(start, end));
+        }
+        int middle = start + length / 2;
+        return new Node(build(text, start, middle), build(text, middle, end));
+    }
+
+    private static Node[] split(Node node, int index) {
+        if (node == null) {
+            return new Node[]{null, null};
+        }
+        if (index <= 0) {
+            return new Node[]{null, node};
+        }
+        if (index >= node.length) {
+            return new Node[]{node, null};
+        }
+        if (node.text != null) {
+            return new Node[]{new Node(node.text.substring(0, index)), new Node(node.text.substring(index))};
+        }
+        if (index < node.left.length) {
+            Node[] parts = split(node.left, index);
+            return new Node[]{parts[0], join(parts[1], node.right)};
+        }
+        Node[] parts = split(node.right, index - node.left.length);
+        return new Node[]{join(node.left, parts[0]), parts[1]};
+    }
+
+    //AVL style join, only rebuilds the spine of the taller tree
+    private static Node join(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.text != null && right.text != null && left.length + right.length <= MAX_LEAF) {
+            return new Node(left.text + right.text);
+        }
+
+        if (left.height > right.height + 1) {
+            return rebalance(left.left, join(left.right, right));
+        }
+        if (right.height > left.height + 1) {
+            return rebalance(join(left, right.left), right.right);
+        }
+        return new Node(left, right);
+    }
+
+    private static Node rebalance(Node left, Node right) {
+        if (left.height > right.height + 1) {
+            if (left.left.height >= left.right.height) {
+                return new Node(left.left, new Node(left.right, right));
+            }
+            return new Node(new Node(left.left, left.right.left), new Node(left.right.right, right));
+        }
+        if (right.height > left.height + 1) {
+            if (right.right.height >= right.left.height) {
+                return new Node(new Node(left, right.left), right.right);
+            }
+            return new Node(new Node(left, right.left.left), new Node(right.left.right, right.right));
+        }
+        return new Node(left, right);
+    }
+
+    private static final class Node {
+        private final Node left;
+        private final Node right;
+        private final String text;  // Only set on leaves
+        private final int length;
+        private final int height;
+        private final int leaves;
+
+        private Node(String text) {
+            this.left = null;
+            this.right = null;
+            this.text = text;
+            this.length = text.length();
+            this.height = 0;
+            this.leaves = 1;
+        }
+
+        private Node(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+            this.text = null;
+            this.length = left.length + right.length;
+            this.height = Math.max(left.height, right.height) + 1;
+            this.leaves = left.leaves + right.leaves;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.codecollab.source.service.document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single edit to a text document, expressed as a sequence of components
+ * that walk the whole document:
+ * - positive Integer : retain (skip) that many characters
+ * - negative Integer : delete that many characters
+ * - String           : insert the given text
+ *
+ * This is the same wire shape the browser sends, e.g. [5, "abc", -2, 10]
+ */
+public class TextOperation {
+
+    private final List<Object> ops = new ArrayList<>();
+
+    //Length of the document this operation can be applied to
+    private int baseLength;
+
+    //Length of the document after the operation was applied
+    private int targetLength;
+
+    public static TextOperation fromJson(List<?> components) {
+        if (components == null) {
+            throw new IllegalArgumentException("Operation is missing");
+        }
+
+        TextOperation operation = new TextOperation();
+        for (Object component : components) {
+            if (component instanceof String text) {
+                operation.insert(text);
+            } else if (component instanceof Number number) {
+                int count = number.intValue();
+                if (count > 0) {
+                    operation.retain(count);
+                } else if (count < 0) {
+                    operation.delete(-count);
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown operation component: " + component);
+            }
+        }
+        return operation;
+    }
+
+    /**
+     * Smallest single-range edit that turns from into to: the common prefix
+     * and suffix are retained, everything between is replaced.
+     */
+    public static TextOperation diff(String from, String to) {
+        int max = Math.min(from.length(), to.length());
+        int prefix = 0;
+        while (prefix < max && from.charAt(prefix) == to.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && from.charAt(from.length() - 1 - suffix) == to.charAt(to.length() - 1 - suffix)) {
+            suffix++;
+        }
+        return new TextOperation()
+                .retain(prefix)
+                .delete(from.length() - prefix - suffix)
+                .insert(to.substring(prefix, to.length() - suffix))
+                .retain(suffix);
+    }
+
+    public List<Object> toJson() {
+        return Collections.unmodifiableList(ops);
+    }
+
+    public int getBaseLength() {
+        return baseLength;
+    }
+
+    public int getTargetLength() {
+        return targetLength;
+    }
+
+    public boolean isNoop() {
+        return ops.isEmpty() || (ops.size() == 1 && isRetain(ops.get(0)));
+    }
+
+    public TextOperation retain(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Retain count must be positive");
+        }
+        if (count == 0) {
+            return this;
+        }
+        baseLength += count;
+        targetLength += count;
+
+        //Merge with the previous retain so the operation stays compact
+        if (!ops.isEmpty() && isRetain(last())) {
+            ops.set(ops.size() - 1, (Integer) last() + count);
+        } else {
+            ops.add(count);
+        }
+        return this;
+    }
+
+    public TextOperation insert(String text) {
+        if (text == null || text.isEmpty()) {
+            return this;
+        }
+        targetLength += text.length();
+
+        int size = ops.size();
+        if (size > 0 && isInsert(ops.get(size - 1))) {
+            ops.set(size - 1, ops.get(size - 1) + text);
+        } else if (size > 0 && isDelete(ops.get(size - 1))) {
+            //Keep inserts before deletes, otherwise two equal edits
+            //could end up with different component orders
+            if (size > 1 && isInsert(ops.get(size - 2))) {
+                ops.set(size - 2, ops.get(size - 2) + text);
+            } else {
+                ops.add(size - 1, text);
+            }
+        } else {
+            ops.add(text);
+        }
+        return this;
+    }
+
+    public TextOperation delete(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Delete count must be positive");
+        }
+        if (count == 0) {
+            return this;
+        }
+        baseLength += count;
+
+        if (!ops.isEmpty() && isDelete(last())) {
+            ops.set(ops.size() - 1, (Integer) last() - count);
+        } else {
+            ops.add(-count);
+        }
+        return this;
+    }
+
+    public String apply(String document) {
+        if (document.length() != baseLength) {
+            throw new IllegalArgumentException("Operation base length " + baseLength
+                    + " does not match document length " + document.length());
+        }
+
+        StringBuilder result = new StringBuilder(targetLength);
+        int index = 0;
+        for (Object op : ops) {
+            if (isRetain(op)) {
+                int count = (Integer) op;
+                result.append(document, index, index + count);
+                index += count;
+            } else if (isInsert(op)) {
+                result.append((String) op);
+            } else {
+                index -= (Integer) op;
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Transforms two operations that were both applied to the same document
+     * revision. Returns [a', b'] such that apply(apply(doc, a), b') equals
+     * apply(apply(doc, b), a'). When both insert at the same spot, a's text
+     * ends up first.
+     */
+    public static TextOperation[] transform(TextOperation a, TextOperation b) {
+        if (a.baseLength != b.baseLength) {
+            throw new IllegalArgumentException("Both operations have to have the same base length");
+        }
+
+        TextOperation aPrime = new TextOperation();
+        TextOperation bPrime = new TextOperation();
+        List<Object> opsA = a.ops;
+        List<Object> opsB = b.ops;
+        int i = 0;
+        int j = 0;
+        Object op1 = i < opsA.size() ? opsA.get(i++) : null;
+        Object op2 = j < opsB.size() ? opsB.get(j++) : null;
+
+        while (op1 != null || op2 != null) {
+            //Inserts never conflict, they just shift the other side
+            if (isInsert(op1)) {
+                aPrime.insert((String) op1);
+                bPrime.retain(((String) op1).length());
+                op1 = i < opsA.size() ? opsA.get(i++) : null;
+                continue;
+            }
+            if (isInsert(op2)) {
+                aPrime.retain(((String) op2).length());
+                bPrime.insert((String) op2);
+                op2 = j < opsB.size() ? opsB.get(j++) : null;
+                continue;
+            }
+
+            if (op1 == null || op2 == null) {
+                throw new IllegalArgumentException("Operations do not cover the same document");
+            }
+
+            int n1 = (Integer) op1;
+            int n2 = (Integer) op2;
+            int min;
+
+            if (n1 > 0 && n2 > 0) {
+                //retain / retain
+                min = Math.min(n1, n2);
+                aPrime.retain(min);
+                bPrime.retain(min);
+            } else if (n1 < 0 && n2 < 0) {
+                //delete / delete, the text is already gone on both sides
+                min = Math.min(-n1, -n2);
+            } else if (n1 < 0) {
+                //delete / retain
+                min = Math.min(-n1, n2);
+                aPrime.delete(min);
+            } else {
+                //retain / delete
+                min = Math.min(n1, -n2);
+                bPrime.delete(min);
+            }
+
+            int rest1 = Math.abs(n1) - min;
+            int rest2 = Math.abs(n2) - min;
+            op1 = rest1 > 0 ? (Integer) (n1 > 0 ? rest1 : -rest1) : (i < opsA.size() ? opsA.get(i++) : null);
+            op2 = rest2 > 0 ? (Integer) (n2 > 0 ? rest2 : -rest2) : (j < opsB.size() ? opsB.get(j++) : null);
+        }
+
+        return new TextOperation[]{aPrime, bPrime};
+    }
+
+    private Object last() {
+        return ops.get(ops.size() - 1);
+    }
+
+    private static boolean isRetain(Object op) {
+        return op instanceof Integer count && count > 0;
+    }
+
+    private static boolean isDelete(Object op) {
+        return op instanceof Integer count && count < 0;
+    }
+
+    private static boolean isInsert(Object op) {
+        return op instanceof String;
+    }
+
+    @Override
+    public String toString() {
+        return ops.toString();
+    }
+}
@@ -0,0 +1,377 @@
+package com.codecollab.source.service.judge;
+
+import com.codecollab.source.entity.JudgeResult;
+import com.codecollab.source.entity.TestCase;
+import com.codecollab.source.entity.TestCaseResult;
+import com.codecollab.source.entity.Verdict;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Judge results of earlier submissions, so judging the same program on
+ * the same tests under the same limits again doesn't run anything.
+ * Keyed by a SHA-256 of the built artifact, the test cases and the limits
+ * profile. Recently used results are kept serialized in memory, all of
+ * them on disk under a directory per problem; both tiers evict the least
+ * recently used entries past their bounds. Only results that don't depend
+ * on timing are kept, see isCacheable.
+ */
+@Slf4j
+@Service
+public class JudgeResultCache {
+
+    private static final String SUFFIX = ".json";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final JsonMapper jsonMapper;
+    private final MeterRegistry meterRegistry;
+    private final Path cacheDir;
+    private final long memoryMaxBytes;
+    private final long diskMaxBytes;
+    private final int diskMaxEntries;
+
+    //key -> serialized result, in access order; both tiers are guarded by the memory map
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    //key -> file on disk, in access order
+    private final LinkedHashMap<String, DiskEntry> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes;
+
+    private final Counter memoryHits;
+    private final Counter diskHits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    public JudgeResultCache(JsonMapper jsonMapper,
+                            MeterRegistry meterRegistry,
+                            @Value("${collab.judge-cache.dir:${java.io.tmpdir}/codecollab-judge-cache}") String cacheDir,
+                            @Value("${collab.judge-cache.memory-max-bytes:16777216}") long memoryMaxBytes,
+                            @Value("${collab.judge-cache.disk-max-bytes:268435456}") long diskMaxBytes,
+                            @Value("${collab.judge-cache.disk-max-entries:50000}") int diskMaxEntries) {
+        this.jsonMapper = jsonMapper;
+        this.meterRegistry = meterRegistry;
+        this.cacheDir = Paths.get(cacheDir).toAbsolutePath().normalize();
+        this.memoryMaxBytes = memoryMaxBytes;
+        this.diskMaxBytes = diskMaxBytes;
+        this.diskMaxEntries = diskMaxEntries;
+
+        try {
+            Files.createDirectories(this.cacheDir);
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not create the judge cache directory " + this.cacheDir, ex);
+        }
+
+        this.memoryHits = Counter.builder("codecollab.judge.cache.requests").tag("result", "memory")
+                .description("Judge result cache lookups")
+                .register(meterRegistry);
+        this.diskHits = Counter.builder("codecollab.judge.cache.requests").tag("result", "disk")
+                .description("Judge result cache lookups")
+                .register(meterRegistry);
+        this.misses = Counter.builder("codecollab.judge.cache.requests").tag("result", "miss")
+                .description("Judge result cache lookups")
+                .register(meterRegistry);
+        this.evictions = Counter.builder("codecollab.judge.cache.evictions")
+                .description("Judge results evicted from the disk tier")
+                .register(meterRegistry);
+
+        loadIndex();
+    }
+
+    @PostConstruct
+    public void registerGauges() {
+        meterRegistry.gauge("codecollab.judge.cache.memory.bytes", this, JudgeResultCache::memoryBytes);
+        meterRegistry.gauge("codecollab.judge.cache.disk.bytes", this, JudgeResultCache::diskBytes);
+    }
+
+    //Cache key for one judging; everything that can change a verdict has to be part of it
+    public String key(String artifactHash, String testCasesHash, String limitsProfile) {
+        return sha256(List.of(artifactHash, testCasesHash, limitsProfile));
+    }
+
+    //SHA-256 of what is being judged, the built file for compiled languages
+    public static String hashFile(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public static String hashSource(String language, String code) {
+        return sha256(List.of(language, code));
+    }
+
+    public static String hashTestCases(List<TestCase> testCases) {
+        MessageDigest digest = newDigest();
+        for (TestCase testCase : testCases) {
+            for (String part : new String[] {testCase.getInput(), testCase.getExpectedOutput()}) {
+                //Null and empty are judged the same
+                digest.update((part != null ? part : "").getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Results that would come out the same when judged again. Judge
+     * errors may not, and neither may anything decided by a limit: TLEs,
+     * MLEs and runtime errors of programs killed at a limit depend on how
+     * busy the machine was, or on what the watchdog happened to sample.
+     */
+    public static boolean isCacheable(JudgeResult result) {
+        if (result.getVerdict() == Verdict.JUDGE_ERROR || result.getVerdict() == Verdict.COMPILATION_ERROR) {
+            return false;
+        }
+        for (TestCaseResult testCase : result.getCases()) {
+            if (testCase.getVerdict() == Verdict.TIME_LIMIT_EXCEEDED || testCase.getVerdict() == Verdict.MEMORY_LIMIT_EXCEEDED
+                    || testCase.getVerdict() == Verdict.JUDGE_ERROR || testCase.isKilled()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //A copy of the cached result, null on a miss
+    public JudgeResult get(String key) {
+        byte[] json;
+        Path file = null;
+        synchronized (memory) {
+            json = memory.get(key);
+            //Also on a memory hit, so a hot result isn't the first one evicted from disk
+            DiskEntry entry = disk.get(key);
+            if (json == null) {
+                if (entry == null) {
+                    misses.increment();
+                    return null;
+                }
+                file = entry.file();
+            }
+        }
+
+        if (json == null) {
+            try {
+                json = Files.readAllBytes(file);
+            } catch (IOException e) {
+                //Evicted or invalidated meanwhile
+                misses.increment();
+                return null;
+            }
+            diskHits.increment();
+            synchronized (memory) {
+                putInMemory(key, json);
+            }
+        } else {
+            memoryHits.increment();
+        }
+
+        try {
+            return jsonMapper.readValue(json, JudgeResult.class);
+        } catch (RuntimeException e) {
+            log.warn("Dropping unreadable judge cache entry {}: {}", key, e.getMessage());
+            synchronized (memory) {
+                removeKey(key);
+            }
+            return null;
+        }
+    }
+
+    public void put(String problemId, String key, JudgeResult result) {
+        byte[] json = jsonMapper.writeValueAsBytes(result);
+        Path problemDir = cacheDir.resolve(directoryName(problemId));
+        Path file = problemDir.resolve(key + SUFFIX);
+        Path temp = problemDir.resolve(key + TEMP_SUFFIX + Thread.currentThread().threadId());
+        try {
+            Files.createDirectories(problemDir);
+            Files.write(temp, json);
+            synchronized (memory) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                DiskEntry previous = disk.put(key, new DiskEntry(directoryName(problemId), file, json.length));
+                diskBytes += json.length - (previous != null ? previous.size() : 0L);
+                putInMemory(key, json);
+                evictFromDisk();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to store {} in the judge cache: {}", key, e.getMessage());
+            deleteQuietly(temp);
+        }
+    }
+
+    //Drops every result for the problem, e.g. after its tests changed
+    public void invalidate(String problemId) {
+        if (problemId == null) {
+            return;
+        }
+        String directory = directoryName(problemId);
+        int removed = 0;
+        synchronized (memory) {
+            var iterator = disk.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, DiskEntry> entry = iterator.next();
+                if (directory.equals(entry.getValue().problemDir())) {
+                    iterator.remove();
+                    diskBytes -= entry.getValue().size();
+                    byte[] json = memory.remove(entry.getKey());
+                    if (json != null) {
+                        memoryBytes -= json.length;
+                    }
+                    deleteQuietly(entry.getValue().file());
+                    removed++;
+                }
+            }
+        }
+        deleteQuietly(cacheDir.resolve(directory));
+        if (removed > 0) {
+            log.debug("Invalidated {} judge results of problem {}", removed, problemId);
+        }
+    }
+
+    public long memoryBytes() {
+        synchronized (memory) {
+            return memoryBytes;
+        }
+    }
+
+    public long diskBytes() {
+        synchronized (memory) {
+            return diskBytes;
+        }
+    }
+
+    //Under the memory lock
+    private void putInMemory(String key, byte[] json) {
+        if (json.length > memoryMaxBytes) {
+            return;
+        }
+        byte[] previous = memory.put(key, json);
+        memoryBytes += json.length - (previous != null ? previous.length : 0L);
+        var iterator = memory.entrySet().iterator();
+        while (memoryBytes > memoryMaxBytes && iterator.hasNext()) {
+            memoryBytes -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+
+    //Under the memory lock
+    private void evictFromDisk() {
+        var iterator = disk.entrySet().iterator();
+        while ((diskBytes > diskMaxBytes || disk.size() > diskMaxEntries) && iterator.hasNext()) {
+            Map.Entry<String, DiskEntry> eldest = iterator.next();
+            iterator.remove();
+            diskBytes -= eldest.getValue().size();
+            byte[] json = memory.remove(eldest.getKey());
+            if (json != null) {
+                memoryBytes -= json.length;
+            }
+            deleteQuietly(eldest.getValue().file());
+            evictions.increment();
+        }
+    }
+
+    //Under the memory lock
+    private void removeKey(String key) {
+        byte[] json = memory.remove(key);
+        if (json != null) {
+            memoryBytes -= json.length;
+        }
+        DiskEntry entry = disk.remove(key);
+        if (entry != null) {
+            diskBytes -= entry.size();
+            deleteQuietly(entry.file());
+        }
+    }
+
+    private void loadIndex() {
+        try (Stream<Path> files = Files.walk(cacheDir, 2)) {
+            //Oldest first, so the access order roughly matches last use
+            files.filter(Files::isRegularFile)
+                    .sorted(Comparator.comparingLong(JudgeResultCache::lastModified))
+                    .forEach(file -> {
+                        String name = file.getFileName().toString();
+                        if (!name.endsWith(SUFFIX) || file.getParent().equals(cacheDir)) {
+                            //Left behind by a crash mid-store
+                            deleteQuietly(file);
+                            return;
+                        }
+                        try {
+                            long size = Files.size(file);
+                            String problemDir = file.getParent().getFileName().toString();
+                            disk.put(name.substring(0, name.length() - SUFFIX.length()), new DiskEntry(problemDir, file, size));
+                            diskBytes += size;
+                        } catch (IOException e) {
+                            deleteQuietly(file);
+                        }
+                    });
+            evictFromDisk();
+        } catch (IOException e) {
+            log.warn("Could not read judge cache directory {}: {}", cacheDir, e.getMessage());
+        }
+        log.info("Judge cache at {} has {} results ({} bytes)", cacheDir, disk.size(), diskBytes);
+    }
+
+    //Problem ids are ObjectId hex, anything else is made safe for a file name
+    private static String directoryName(String problemId) {
+        return problemId.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+    private static String sha256(List<String> parts) {
+        MessageDigest digest = newDigest();
+        for (String part : parts) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debug("Failed to delete {}: {}", file, e.getMessage());
+        }
+    }
+
+    private record DiskEntry(String problemDir, Path file, long size) {
+    }
+}
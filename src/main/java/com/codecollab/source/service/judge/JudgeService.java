@@ -0,0 +1,431 @@
+package com.codecollab.source.service.judge;
+
+import com.codecollab.source.entity.JudgeResult;
+import com.codecollab.source.entity.Problem;
+import com.codecollab.source.entity.TestCase;
+import com.codecollab.source.entity.TestCaseResult;
+import com.codecollab.source.entity.Verdict;
+import com.codecollab.source.service.CompileCacheService;
+import com.codecollab.source.service.CompilerService;
+import com.codecollab.source.service.manager.ResourceLimiter;
+import com.codecollab.source.service.manager.WorkspacePool;
+import com.codecollab.source.service.runtime.CompileSinks;
+import com.codecollab.source.service.runtime.LanguageRuntime;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Judges a solution against its problem's test cases: the code is built
+ * once (through the compile cache), then every case runs in its own
+ * workspace on a bounded pool shared by all submissions. Output is
+ * compared while the program prints it, so a wrong answer is stopped at
+ * the first differing line. With stopOnFirstFailure the remaining cases
+ * are cancelled or skipped as soon as one fails.
+ */
+@Slf4j
+@Service
+public class JudgeService {
+
+    //Beyond what is expected, enough for a few extra blank lines but not for a runaway loop
+    private static final int OUTPUT_SLACK_CHARS = 64 * 1024;
+    private static final int STDERR_EXCERPT_CHARS = 512;
+    private static final int READ_CHUNK_CHARS = 8192;
+    //Part of the cache key, bumped when what a result holds or which results are kept changes
+    private static final String RESULT_FORMAT = "3";
+    //What C++, Python and Java print when an allocation fails
+    private static final Pattern OUT_OF_MEMORY = Pattern.compile("std::bad_alloc|MemoryError|java\\.lang\\.OutOfMemoryError");
+
+    private final CompilerService compilerService;
+    private final WorkspacePool workspacePool;
+    private final ResourceLimiter resourceLimiter;
+    private final JudgeResultCache judgeResultCache;
+    private final boolean stopOnFirstFailureByDefault;
+    private final ExecutorService casePool;
+    private final MeterRegistry meterRegistry;
+    private final Timer submissionTimer;
+
+    public JudgeService(CompilerService compilerService,
+                        WorkspacePool workspacePool,
+                        ResourceLimiter resourceLimiter,
+                        JudgeResultCache judgeResultCache,
+                        MeterRegistry meterRegistry,
+                        @Value("${collab.judge.parallelism:0}") int parallelism,
+                        @Value("${collab.judge.stop-on-first-failure:true}") boolean stopOnFirstFailure) {
+        this.compilerService = compilerService;
+        this.workspacePool = workspacePool;
+        this.resourceLimiter = resourceLimiter;
+        this.judgeResultCache = judgeResultCache;
+        this.meterRegistry = meterRegistry;
+        this.stopOnFirstFailureByDefault = stopOnFirstFailure;
+
+        //0 = half the cores, so judging leaves room for interactive runs
+        int threads = parallelism > 0 ? parallelism : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger threadIds = new AtomicInteger();
+        this.casePool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "judge-" + threadIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.submissionTimer = Timer.builder("codecollab.judge.submission")
+                .description("Time to judge a solution, compile included")
+                .register(meterRegistry);
+        log.info("Judging with {} parallel test cases", threads);
+    }
+
+    public JudgeResult judge(Problem problem, String code, String language) {
+        return judge(problem, code, language, stopOnFirstFailureByDefault);
+    }
+
+    public JudgeResult judge(Problem problem, String code, String language, boolean stopOnFirstFailure) {
+        long start = System.nanoTime();
+        JudgeResult result = judgeSubmission(problem, code, language, stopOnFirstFailure);
+        result.setJudgedAt(LocalDateTime.now());
+        submissionTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        meterRegistry.counter("codecollab.judge.verdicts", "verdict", result.getVerdict().name()).increment();
+        return result;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        casePool.shutdownNow();
+    }
+
+    private JudgeResult judgeSubmission(Problem problem, String code, String language, boolean stopOnFirstFailure) {
+        List<TestCase> testCases = problem.getTestCases() != null ? problem.getTestCases() : List.of();
+        if (testCases.isEmpty()) {
+            return failure(Verdict.JUDGE_ERROR, 0, "This problem has no test cases.");
+        }
+        if (code == null || code.isBlank()) {
+            return failure(Verdict.JUDGE_ERROR, testCases.size(), "The solution has no code to run.");
+        }
+        LanguageRuntime runtime = compilerService.findRuntime(language);
+        if (runtime == null || !runtime.isAvailable()) {
+            return failure(Verdict.JUDGE_ERROR, testCases.size(), "Language '" + language
+                    + "' can't be judged. Supported: " + String.join(", ", compilerService.supportedLanguages()) + ".");
+        }
+
+        Path buildDir = null;
+        try {
+            buildDir = workspacePool.acquire();
+            StringBuilder compileOutput = new StringBuilder();
+            long compileStart = System.nanoTime();
+            boolean built = compilerService.build(runtime, code, buildDir,
+                    new CompileSinks(compileOutput::append, diagnostic -> { }));
+            long compileMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - compileStart);
+            if (!built) {
+                JudgeResult result = failure(Verdict.COMPILATION_ERROR, testCases.size(), compileOutput.toString());
+                result.setCompileTimeMs(compileMillis);
+                return result;
+            }
+
+            //Hashed before any case runs, so the key is that of the binary as it was built
+            String artifactHash = artifactHash(runtime, code, buildDir);
+            //The same binary on the same tests under the same limits was judged before
+            String cacheKey = problem.getId() != null
+                    ? judgeResultCache.key(artifactHash,
+                            JudgeResultCache.hashTestCases(testCases), limitsProfile(problem, runtime, stopOnFirstFailure))
+                    : null;
+            JudgeResult cached = cacheKey != null ? judgeResultCache.get(cacheKey) : null;
+            if (cached != null) {
+                cached.setCached(true);
+                cached.setCompileTimeMs(compileMillis);
+                return cached;
+            }
+
+            JudgeResult result = runCases(problem, testCases, runtime, code, buildDir, stopOnFirstFailure);
+            result.setCompileTimeMs(compileMillis);
+            if (cacheKey != null && JudgeResultCache.isCacheable(result)) {
+                judgeResultCache.put(problem.getId(), cacheKey, result);
+            }
+            return result;
+        } catch (IOException e) {
+            log.error("Judging failed", e);
+            return failure(Verdict.JUDGE_ERROR, testCases.size(), "Judging failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failure(Verdict.JUDGE_ERROR, testCases.size(), "Judging was interrupted.");
+        } finally {
+            workspacePool.release(buildDir);
+        }
+    }
+
+    private JudgeResult runCases(Problem problem, List<TestCase> testCases, LanguageRuntime runtime, String code,
+                                 Path buildDir, boolean stopOnFirstFailure) throws InterruptedException {
+        long timeLimitMillis = problem.getTimeLimitMs();
+        //CPU time is what's judged; wall time only catches programs stuck waiting (e.g. for input)
+        ResourceLimiter.Limits limits = new ResourceLimiter.Limits(
+                Math.max(3 * timeLimitMillis, timeLimitMillis + 2000), timeLimitMillis,
+                problem.getMemoryLimitMb() * 1024L * 1024L);
+
+        CaseRun submission = new CaseRun(runtime, code, buildDir, limits, stopOnFirstFailure);
+        List<Future<TestCaseResult>> futures = new ArrayList<>(testCases.size());
+        for (int i = 0; i < testCases.size(); i++) {
+            int index = i;
+            TestCase testCase = testCases.get(i);
+            futures.add(casePool.submit(() -> submission.run(index, testCase)));
+        }
+
+        List<TestCaseResult> results = new ArrayList<>(testCases.size());
+        int firstFailure;
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    log.error("Test case {} could not be judged", i + 1, e.getCause());
+                    results.add(new TestCaseResult(i + 1, Verdict.JUDGE_ERROR, -1, -1, -1, -1,
+                            "Could not run: " + e.getCause().getMessage(), false));
+                }
+            }
+            firstFailure = submission.firstFailure.get();
+        } finally {
+            //Only left running when this thread was interrupted
+            submission.firstFailure.set(-1);
+            futures.forEach(future -> future.cancel(true));
+            submission.cancelAfter(-1);
+        }
+        if (stopOnFirstFailure) {
+            //Whatever ran after the first failure was cut short, so the result doesn't depend on timing
+            for (int i = Math.min(firstFailure, results.size()) + 1; i < results.size(); i++) {
+                results.set(i, CaseRun.skipped(i));
+            }
+        }
+
+        JudgeResult result = new JudgeResult();
+        result.setTotal(testCases.size());
+        result.setCases(results);
+        result.setPassed((int) results.stream().filter(r -> r.getVerdict() == Verdict.ACCEPTED).count());
+        //The first failure by position, not the first to finish
+        result.setVerdict(results.stream()
+                .map(TestCaseResult::getVerdict)
+                .filter(verdict -> verdict != Verdict.ACCEPTED && verdict != Verdict.SKIPPED)
+                .findFirst()
+                .orElse(Verdict.ACCEPTED));
+        return result;
+    }
+
+    //What actually runs: the built file, or the source for interpreted languages
+    private static String artifactHash(LanguageRuntime runtime, String code, Path buildDir) throws IOException {
+        return runtime.toolchain() != null
+                ? runtime.language() + ":" + JudgeResultCache.hashFile(buildDir.resolve(runtime.artifactName()))
+                : JudgeResultCache.hashSource(runtime.language(), code);
+    }
+
+    //Everything besides the program and tests that a verdict depends on
+    private static String limitsProfile(Problem problem, LanguageRuntime runtime, boolean stopOnFirstFailure) {
+        return "time=" + problem.getTimeLimitMs() + ";memory=" + problem.getMemoryLimitMb()
+                + ";stop=" + stopOnFirstFailure + ";runtime=" + runtime.language() + " " + runtime.toolchain()
+                + ";format=" + RESULT_FORMAT;
+    }
+
+    private static JudgeResult failure(Verdict verdict, int total, String message) {
+        JudgeResult result = new JudgeResult();
+        result.setVerdict(verdict);
+        result.setTotal(total);
+        result.setCompileOutput(message);
+        return result;
+    }
+
+    //One submission's cases; shared by the pool threads running them
+    private final class CaseRun {
+        private final LanguageRuntime runtime;
+        private final String code;
+        private final Path buildDir;
+        private final ResourceLimiter.Limits limits;
+        private final boolean stopOnFirstFailure;
+
+        //Lowest index that failed; cases after it are cancelled, the ones before always finish
+        private final AtomicInteger firstFailure = new AtomicInteger(Integer.MAX_VALUE);
+        private final Map<Integer, ResourceLimiter.LimitedProcess> running = new ConcurrentHashMap<>();
+
+        CaseRun(LanguageRuntime runtime, String code, Path buildDir, ResourceLimiter.Limits limits,
+                boolean stopOnFirstFailure) {
+            this.runtime = runtime;
+            this.code = code;
+            this.buildDir = buildDir;
+            this.limits = limits;
+            this.stopOnFirstFailure = stopOnFirstFailure;
+        }
+
+        TestCaseResult run(int index, TestCase testCase) throws IOException, InterruptedException {
+            if (stopOnFirstFailure && index > firstFailure.get()) {
+                return skipped(index);
+            }
+            Path workspace = workspacePool.acquire();
+            try {
+                if (runtime.toolchain() != null) {
+                    //Its own copy: a case that writes to its binary must not change the next case's
+                    CompileCacheService.copyArtifact(buildDir.resolve(runtime.artifactName()),
+                            workspace.resolve(runtime.artifactName()));
+                }
+                TestCaseResult result = execute(index, testCase, workspace);
+                if (result.getVerdict() != Verdict.ACCEPTED && result.getVerdict() != Verdict.SKIPPED) {
+                    firstFailure.accumulateAndGet(index, Math::min);
+                    if (stopOnFirstFailure) {
+                        cancelAfter(firstFailure.get());
+                    }
+                }
+                return result;
+            } finally {
+                workspacePool.release(workspace);
+            }
+        }
+
+        void cancelAfter(int index) {
+            running.forEach((caseIndex, limited) -> {
+                if (caseIndex > index) {
+                    limited.cancel();
+                }
+            });
+        }
+
+        private TestCaseResult execute(int index, TestCase testCase, Path workspace)
+                throws IOException, InterruptedException {
+            String input = testCase.getInput() != null ? testCase.getInput() : "";
+            String expectedOutput = testCase.getExpectedOutput() != null ? testCase.getExpectedOutput() : "";
+            OutputComparator comparator = new OutputComparator(expectedOutput);
+            long maxOutputChars = 2L * expectedOutput.length() + OUTPUT_SLACK_CHARS;
+
+            ResourceLimiter.LimitedProcess limited = resourceLimiter.start(
+                    runtime.prepareRun(code, workspace), workspace, runtime.limitAddressSpace(), limits);
+            running.put(index, limited);
+            //An earlier case failed between the check in run() and now
+            if (stopOnFirstFailure && index > firstFailure.get()) {
+                limited.cancel();
+            }
+            Process process = limited.process();
+
+            //Input and stderr on their own threads, so neither pipe can fill up and stall the program
+            Thread stdin = Thread.ofVirtual().name("judge-stdin").start(() -> writeInput(process.getOutputStream(), input));
+            StringBuffer stderr = new StringBuffer();
+            Thread stderrReader = Thread.ofVirtual().name("judge-stderr")
+                    .start(() -> readExcerpt(process.getErrorStream(), stderr));
+
+            boolean outputMatches = true;
+            String outputProblem = null;
+            try (Reader stdout = new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)) {
+                char[] buffer = new char[READ_CHUNK_CHARS];
+                long total = 0;
+                int read;
+                while ((read = stdout.read(buffer)) != -1) {
+                    total += read;
+                    if (total > maxOutputChars) {
+                        outputMatches = false;
+                        outputProblem = "Output limit exceeded";
+                        limited.cancel();
+                        break;
+                    }
+                    if (!comparator.accept(CharBuffer.wrap(buffer, 0, read))) {
+                        //Nothing it prints from here on can make it right
+                        outputMatches = false;
+                        outputProblem = comparator.mismatch();
+                        limited.cancel();
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                //The pipe closes under us when the program is cancelled
+                log.debug("Test case {} output ended early: {}", index + 1, e.getMessage());
+            }
+
+            ResourceLimiter.Usage usage;
+            try {
+                usage = limited.waitFor();
+            } finally {
+                running.remove(index);
+            }
+            stdin.join();
+            stderrReader.join(1000);
+
+            long memoryKb = usage.peakRssBytes() >= 0 ? usage.peakRssBytes() / 1024 : -1;
+            Verdict verdict;
+            String message;
+            if (usage.limit() == ResourceLimiter.Limit.WALL_TIME || usage.limit() == ResourceLimiter.Limit.CPU_TIME
+                    || usage.cpuMillis() > limits.cpuTimeMillis()) {
+                verdict = Verdict.TIME_LIMIT_EXCEEDED;
+                message = usage.limitExceeded() != null ? usage.limitExceeded() + " exceeded"
+                        : "CPU time limit of " + limits.cpuTimeMillis() + " ms exceeded";
+            } else if (usage.limit() == ResourceLimiter.Limit.MEMORY) {
+                verdict = Verdict.MEMORY_LIMIT_EXCEEDED;
+                message = usage.limitExceeded() + " exceeded";
+            } else if (usage.exitCode() != 0 && OUT_OF_MEMORY.matcher(stderr).find()) {
+                //Under the address space limit an allocation fails instead of the program being killed
+                verdict = Verdict.MEMORY_LIMIT_EXCEEDED;
+                message = "Memory limit of " + problemMemoryMb(limits) + " MB exceeded";
+            } else if (!outputMatches) {
+                verdict = Verdict.WRONG_ANSWER;
+                message = outputProblem;
+            } else if (usage.exitCode() != 0 || usage.limit() != null) {
+                verdict = Verdict.RUNTIME_ERROR;
+                String reason = usage.limitExceeded() != null ? usage.limitExceeded() + " exceeded"
+                        : "Exit code " + usage.exitCode();
+                message = stderr.isEmpty() ? reason : reason + ": " + stderr.toString().strip();
+            } else if (!comparator.finish()) {
+                verdict = Verdict.WRONG_ANSWER;
+                message = comparator.mismatch();
+            } else {
+                verdict = Verdict.ACCEPTED;
+                message = null;
+            }
+            return new TestCaseResult(index + 1, verdict, usage.wallMillis(), usage.cpuMillis(), memoryKb,
+                    usage.exitCode(), message, usage.limit() != null);
+        }
+
+        static TestCaseResult skipped(int index) {
+            return new TestCaseResult(index + 1, Verdict.SKIPPED, -1, -1, -1, -1, null, false);
+        }
+    }
+
+    private static long problemMemoryMb(ResourceLimiter.Limits limits) {
+        return limits.memoryBytes() / (1024 * 1024);
+    }
+
+    private static void writeInput(OutputStream stdin, String input) {
+        try (stdin) {
+            stdin.write(input.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            //The program exited without reading all of its input, which is allowed
+        }
+    }
+
+    //Keeps the start of stderr for the runtime error message, drains the rest
+    private static void readExcerpt(InputStream stderr, StringBuffer excerpt) {
+        byte[] buffer = new byte[4096];
+        try (stderr) {
+            int read;
+            while ((read = stderr.read(buffer)) != -1) {
+                if (excerpt.length() < STDERR_EXCERPT_CHARS) {
+                    String text = new String(buffer, 0, read, StandardCharsets.UTF_8);
+                    excerpt.append(text, 0, Math.min(text.length(), STDERR_EXCERPT_CHARS - excerpt.length()));
+                }
+            }
+        } catch (IOException e) {
+            //Closed when the program is killed
+        }
+    }
+}
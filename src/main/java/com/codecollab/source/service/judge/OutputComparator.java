@@ -0,0 +1,102 @@
+package com.codecollab.source.service.judge;
+
+import java.util.List;
+
+/**
+ * Checks a program's output against the expected output while it is
+ * still being printed, so a wrong answer can be stopped at the first
+ * differing line instead of after the program produced all of it.
+ * Trailing whitespace on a line and blank lines at the end are ignored,
+ * line endings may be \n or \r\n. The mismatch names the line and what
+ * the program printed there, never the expected output: it is stored
+ * with the solution and shown to everyone who can see it.
+ */
+public class OutputComparator {
+
+    //A line this much longer than expected can't match any more
+    private static final int LINE_SLACK = 256;
+    private static final int EXCERPT_CHARS = 80;
+
+    private final List<String> expected;
+    private final StringBuilder line = new StringBuilder();
+    private int lineIndex;
+    private String mismatch;
+
+    public OutputComparator(String expectedOutput) {
+        this.expected = expectedOutput.replace("\r\n", "\n").lines().map(String::stripTrailing).toList();
+    }
+
+    //Feeds the next chunk, returns false once the output can no longer match
+    public boolean accept(CharSequence chunk) {
+        if (mismatch != null) {
+            return false;
+        }
+        for (int i = 0; i < chunk.length(); i++) {
+            char c = chunk.charAt(i);
+            if (c == '\n') {
+                if (!checkLine()) {
+                    return false;
+                }
+            } else {
+                line.append(c);
+                if (line.length() > expectedLine().length() + LINE_SLACK && !checkLine()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    //Call once the output ended, returns whether it matched
+    public boolean finish() {
+        if (mismatch != null) {
+            return false;
+        }
+        if (!line.isEmpty() && !checkLine()) {
+            return false;
+        }
+        for (int i = lineIndex; i < expected.size(); i++) {
+            if (!expected.get(i).isEmpty()) {
+                mismatch = "line " + (i + 1) + ": the output ended too early";
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //The first difference, null while everything matched
+    public String mismatch() {
+        return mismatch;
+    }
+
+    private boolean checkLine() {
+        String actual = stripTrailing(line);
+        String wanted = expectedLine();
+        line.setLength(0);
+        lineIndex++;
+        if (!actual.equals(wanted)) {
+            mismatch = lineIndex > expected.size()
+                    ? "line " + lineIndex + ": unexpected extra output '" + excerpt(actual) + "'"
+                    : "line " + lineIndex + ": wrong output '" + excerpt(actual) + "'";
+            return false;
+        }
+        return true;
+    }
+
+    //Lines past the end of the expected output only match when blank
+    private String expectedLine() {
+        return lineIndex < expected.size() ? expected.get(lineIndex) : "";
+    }
+
+    private static String stripTrailing(StringBuilder text) {
+        int end = text.length();
+        while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    private static String excerpt(String text) {
+        return text.length() > EXCERPT_CHARS ? text.substring(0, EXCERPT_CHARS) + "..." : text;
+    }
+}
@@ -0,0 +1,272 @@
+package com.codecollab.source.service.manager;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Outbound queue of one WebSocket session that knows which frames can be
+ * folded together. Senders only enqueue and never block on the socket; a
+ * single drain task writes frames in order. A queued frame carrying the
+ * same conflation key as a new one is replaced by it. Once the session
+ * falls behind its byte budget, the queued code deltas of a room collapse
+ * into one catch-up marker where the first of them was, so the client
+ * fetches what they carried instead of seeing a gap. Frames that can't
+ * be folded are kept; only a session past the hard limit, or one that
+ * took nothing for the send time limit, is closed.
+ */
+@Slf4j
+public class ConflatingWebSocketSession extends WebSocketSessionDecorator {
+
+    private final OutboundSessionManager manager;
+    private final long bufferSizeLimit;
+    private final long hardLimit;
+    private final long sendTimeLimitNanos;
+
+    private final Deque<QueuedFrame> queue = new ArrayDeque<>();
+    //Rooms with a catch-up marker still in the queue, their new deltas are folded into it
+    private final Set<String> queuedMarkers = new HashSet<>();
+    private long bufferedBytes;
+    private boolean draining;
+    private volatile boolean closing;
+
+    public ConflatingWebSocketSession(WebSocketSession delegate, OutboundSessionManager manager,
+                                      long bufferSizeLimit, long hardLimit, long sendTimeLimitMillis) {
+        super(delegate);
+        this.manager = manager;
+        this.bufferSizeLimit = bufferSizeLimit;
+        this.hardLimit = Math.max(hardLimit, bufferSizeLimit);
+        this.sendTimeLimitNanos = sendTimeLimitMillis * 1_000_000L;
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        if (closing) {
+            return;
+        }
+        QueuedFrame frame = QueuedFrame.of(message);
+        Overflow overflow;
+        boolean startDrain;
+
+        synchronized (queue) {
+            if (frame.catchUpRoom() != null && queuedMarkers.contains(frame.catchUpRoom())) {
+                //The client fetches this one with the catch-up the queued marker asks for
+                manager.recordCollapsed(1);
+                return;
+            }
+            if (frame.conflationKey() != null) {
+                replaceQueued(frame.conflationKey());
+            }
+            queue.addLast(frame);
+            bufferedBytes += frame.bytes();
+            overflow = checkLimits();
+            startDrain = !draining && overflow != Overflow.CLOSE;
+            if (startDrain) {
+                draining = true;
+            }
+        }
+
+        if (overflow == Overflow.CLOSE) {
+            closeSlowSession();
+            return;
+        }
+        if (startDrain) {
+            manager.drain(this::drain);
+        }
+    }
+
+    //Bytes waiting to be written, for callers that want to back off
+    public long getBufferedBytes() {
+        synchronized (queue) {
+            return bufferedBytes;
+        }
+    }
+
+    private void drain() {
+        while (!closing) {
+            QueuedFrame frame;
+            synchronized (queue) {
+                frame = queue.pollFirst();
+                if (frame == null) {
+                    draining = false;
+                    return;
+                }
+                bufferedBytes -= frame.bytes();
+                if (frame.marker()) {
+                    queuedMarkers.remove(frame.catchUpRoom());
+                }
+            }
+
+            try {
+                getDelegate().sendMessage(frame.message());
+            } catch (IOException | RuntimeException e) {
+                log.debug("Send to session {} failed: {}", getId(), e.getMessage());
+                closeSlowSession();
+                return;
+            }
+        }
+    }
+
+    //Called with the queue lock held
+    private void replaceQueued(String conflationKey) {
+        Iterator<QueuedFrame> it = queue.iterator();
+        while (it.hasNext()) {
+            QueuedFrame queued = it.next();
+            if (conflationKey.equals(queued.conflationKey())) {
+                it.remove();
+                bufferedBytes -= queued.bytes();
+                manager.recordConflated();
+            }
+        }
+    }
+
+    //Called with the queue lock held
+    private Overflow checkLimits() {
+        QueuedFrame oldest = queue.peekFirst();
+        if (oldest != null && System.nanoTime() - oldest.enqueuedAt() > sendTimeLimitNanos) {
+            return Overflow.CLOSE;
+        }
+        if (bufferedBytes <= bufferSizeLimit) {
+            return Overflow.NONE;
+        }
+
+        collapseDeltas();
+        return bufferedBytes > hardLimit ? Overflow.CLOSE : Overflow.NONE;
+    }
+
+    //Called with the queue lock held; the first queued delta of a room becomes its marker, the rest go
+    private void collapseDeltas() {
+        Deque<QueuedFrame> kept = new ArrayDeque<>(queue.size());
+        int collapsed = 0;
+        for (QueuedFrame queued : queue) {
+            String room = queued.catchUpRoom();
+            if (room == null || queued.marker()) {
+                kept.addLast(queued);
+                continue;
+            }
+            bufferedBytes -= queued.bytes();
+            collapsed++;
+            if (queuedMarkers.add(room)) {
+                QueuedFrame marker = queued.toMarker();
+                bufferedBytes += marker.bytes();
+                kept.addLast(marker);
+                manager.recordMarker();
+            }
+        }
+        if (collapsed > 0) {
+            queue.clear();
+            queue.addAll(kept);
+            manager.recordCollapsed(collapsed);
+        }
+    }
+
+    private void closeSlowSession() {
+        if (closing) {
+            return;
+        }
+        closing = true;
+        synchronized (queue) {
+            queue.clear();
+            bufferedBytes = 0;
+        }
+        log.warn("Closing session {}, it is not keeping up with outbound messages", getId());
+        manager.recordClosed();
+        try {
+            getDelegate().close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (IOException e) {
+            log.debug("Failed to close session {}: {}", getId(), e.getMessage());
+        }
+    }
+
+    private enum Overflow {
+        NONE,
+        CLOSE
+    }
+
+    private record QueuedFrame(WebSocketMessage<?> message, String conflationKey, String catchUpRoom,
+                               boolean marker, int bytes, long enqueuedAt) {
+
+        static QueuedFrame of(WebSocketMessage<?> message) {
+            String conflationKey = null;
+            String catchUpRoom = null;
+
+            //Only the STOMP header block is looked at, the body is never decoded
+            for (String line : headerLines(message)) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon);
+                if (OutboundSessionManager.CONFLATION_KEY_HEADER.equals(name)) {
+                    conflationKey = line.substring(colon + 1);
+                } else if (OutboundSessionManager.CATCH_UP_HEADER.equals(name)) {
+                    catchUpRoom = line.substring(colon + 1);
+                }
+            }
+            return new QueuedFrame(message, conflationKey, catchUpRoom, false, message.getPayloadLength(), System.nanoTime());
+        }
+
+        /**
+         * Same STOMP headers, so it reaches the same subscription, but the
+         * body is a RESYNC telling the client to catch up from its revision.
+         */
+        QueuedFrame toMarker() {
+            StringBuilder frame = new StringBuilder();
+            for (String line : headerLines(message)) {
+                if (!line.startsWith("content-length:") && !line.startsWith("content-type:")) {
+                    frame.append(line).append('\n');
+                }
+            }
+            String body = "{\"type\":\"RESYNC\",\"roomId\":\"" + catchUpRoom.replace("\"", "") + "\"}";
+            frame.append("content-type:application/json;charset=UTF-8\n")
+                    .append("content-length:").append(body.length()).append("\n\n")
+                    .append(body).append('\0');
+
+            WebSocketMessage<?> marker = message instanceof BinaryMessage
+                    ? new BinaryMessage(frame.toString().getBytes(StandardCharsets.ISO_8859_1))
+                    : new TextMessage(frame.toString());
+            return new QueuedFrame(marker, null, catchUpRoom, true, marker.getPayloadLength(), enqueuedAt);
+        }
+
+        private static String[] headerLines(WebSocketMessage<?> message) {
+            String header = null;
+            if (message instanceof TextMessage text) {
+                String payload = text.getPayload();
+                int end = payload.indexOf("\n\n");
+                header = end > 0 ? payload.substring(0, end) : null;
+            } else if (message instanceof BinaryMessage binary) {
+                ByteBuffer payload = binary.getPayload().duplicate();
+                int end = indexOfBlankLine(payload);
+                if (end > 0) {
+                    byte[] bytes = new byte[end];
+                    payload.get(payload.position(), bytes);
+                    header = new String(bytes, StandardCharsets.ISO_8859_1);
+                }
+            }
+            return header != null ? header.split("\n") : new String[0];
+        }
+
+        private static int indexOfBlankLine(ByteBuffer payload) {
+            int start = payload.position();
+            for (int i = start; i < payload.limit() - 1; i++) {
+                if (payload.get(i) == '\n' && payload.get(i + 1) == '\n') {
+                    return i - start;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.codecollab.source.service.manager;
+
+import com.codecollab.source.service.worker.WorkerPool;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+/**
+ * Stops the programs of sessions that are gone. A disconnect reaps the
+ * session right away; the sweeper catches what a disconnect missed, like
+ * a run that was still compiling when its client left, or a session that
+ * expired without a disconnect event.
+ * Killing the program is enough to release the rest: its pipes close and
+ * the run cleans up its temp directory on the way out.
+ */
+@Slf4j
+@Component
+public class ExecutionReaper {
+
+    private final ProcessManager processManager;
+    private final ExecutionScheduler executionScheduler;
+    private final OutboundSessionManager outboundSessionManager;
+    private final WorkerPool workerPool;
+    //Sessions that are not WebSockets but still alive, e.g. runs an execution worker was handed
+    private final List<Predicate<String>> sessionOwners = new CopyOnWriteArrayList<>();
+
+    private final Counter reapedOnDisconnect;
+    private final Counter reapedBySweep;
+    private final Counter cancelledQueued;
+
+    public ExecutionReaper(ProcessManager processManager,
+                           ExecutionScheduler executionScheduler,
+                           OutboundSessionManager outboundSessionManager,
+                           WorkerPool workerPool,
+                           MeterRegistry meterRegistry) {
+        this.processManager = processManager;
+        this.executionScheduler = executionScheduler;
+        this.outboundSessionManager = outboundSessionManager;
+        this.workerPool = workerPool;
+
+        this.reapedOnDisconnect = Counter.builder("codecollab.execution.orphans.reclaimed").tag("trigger", "disconnect")
+                .description("Programs killed because their session was gone")
+                .register(meterRegistry);
+        this.reapedBySweep = Counter.builder("codecollab.execution.orphans.reclaimed").tag("trigger", "sweep")
+                .description("Programs killed because their session was gone")
+                .register(meterRegistry);
+        this.cancelledQueued = Counter.builder("codecollab.execution.orphans.cancelled")
+                .description("Queued runs dropped because their session was gone")
+                .register(meterRegistry);
+    }
+
+    public void addSessionOwner(Predicate<String> owner) {
+        sessionOwners.add(owner);
+    }
+
+    //Called when the session's WebSocket closed
+    public void sessionClosed(String sessionId) {
+        if (workerPool.cancel(sessionId)) {
+            reapedOnDisconnect.increment();
+            log.info("Stopped the remote program of disconnected session {}", sessionId);
+        }
+        if (executionScheduler.cancel(sessionId)) {
+            cancelledQueued.increment();
+        }
+        if (processManager.killProcessTree(sessionId)) {
+            reapedOnDisconnect.increment();
+            log.info("Stopped the program of disconnected session {}", sessionId);
+        }
+    }
+
+    //Programs whose session is no longer connected to this node
+    @Scheduled(fixedDelayString = "${collab.execution.reaper-interval-ms:15000}",
+            initialDelayString = "${collab.execution.reaper-interval-ms:15000}")
+    public void sweep() {
+        for (String sessionId : processManager.sessionIds()) {
+            if (!isAlive(sessionId) && processManager.killProcessTree(sessionId)) {
+                reapedBySweep.increment();
+                log.info("Reclaimed orphaned program of session {}", sessionId);
+            }
+        }
+        for (String sessionId : workerPool.sessionIds()) {
+            if (!isAlive(sessionId) && workerPool.cancel(sessionId)) {
+                reapedBySweep.increment();
+                log.info("Reclaimed orphaned remote program of session {}", sessionId);
+            }
+        }
+    }
+
+    private boolean isAlive(String sessionId) {
+        return outboundSessionManager.isLocal(sessionId) || sessionOwners.stream().anyMatch(owner -> owner.test(sessionId));
+    }
+}
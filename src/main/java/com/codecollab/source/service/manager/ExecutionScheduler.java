@@ -0,0 +1,389 @@
+package com.codecollab.source.service.manager;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Admission control for code executions.
+ * At most maxRuns executions are active at a time and at most maxCompiles
+ * of them are compiling. Executions beyond that wait in a bounded queue
+ * that is shared fairly: deficit round robin over rooms, each room's
+ * quantum being the number of its users with a waiting run (capped at
+ * roomWeightCap), and plain round robin over the users inside a room. A
+ * user never has more than maxRunsPerUser runs in flight, and a session
+ * that submits again while its previous run is still waiting replaces it.
+ * Waiting sessions are told their estimated position whenever it changes;
+ * when the queue is full a submit is rejected right away.
+ */
+@Slf4j
+@Component
+public class ExecutionScheduler {
+
+    private final int maxRuns;
+    private final int maxRunsPerUser;
+    private final int roomWeightCap;
+    private final int queueCapacity;
+    private final Semaphore compileSlots;
+
+    //All guarded by lock
+    private final Object lock = new Object();
+    private final Deque<RoomQueue> activeRooms = new ArrayDeque<>();
+    private final Map<String, RoomQueue> rooms = new HashMap<>();
+    private final Map<String, QueuedExecution> pendingBySession = new HashMap<>();
+    private final Map<String, Integer> inFlightByUser = new HashMap<>();
+    private int running;
+
+    //Executions mostly wait on their process, so virtual threads
+    private final ExecutorService executor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("execution-", 0).factory());
+
+    private final MeterRegistry meterRegistry;
+    private final Counter rejected;
+    private final Counter replaced;
+    private final Timer queueWait;
+
+    public ExecutionScheduler(MeterRegistry meterRegistry,
+                              @Value("${collab.execution.max-runs:0}") int maxRuns,
+                              @Value("${collab.execution.max-compiles:0}") int maxCompiles,
+                              @Value("${collab.execution.queue-capacity:50}") int queueCapacity,
+                              @Value("${collab.execution.max-runs-per-user:2}") int maxRunsPerUser,
+                              @Value("${collab.execution.room-weight-cap:4}") int roomWeightCap) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        //0 means two runs and one compile per core
+        this.maxRuns = maxRuns > 0 ? maxRuns : cores * 2;
+        this.compileSlots = new Semaphore(maxCompiles > 0 ? maxCompiles : cores, true);
+        this.queueCapacity = queueCapacity;
+        this.maxRunsPerUser = Math.max(1, maxRunsPerUser);
+        this.roomWeightCap = Math.max(1, roomWeightCap);
+
+        this.meterRegistry = meterRegistry;
+        this.rejected = Counter.builder("codecollab.execution.rejected")
+                .description("Executions rejected because the wait queue was full")
+                .register(meterRegistry);
+        this.replaced = Counter.builder("codecollab.execution.replaced")
+                .description("Waiting executions replaced by a newer run from the same session")
+                .register(meterRegistry);
+        this.queueWait = Timer.builder("codecollab.execution.queue.wait")
+                .description("Time executions spent waiting for a run slot")
+                .register(meterRegistry);
+    }
+
+    //Gauges hold on to the scheduler, so they are only registered once it is fully built
+    @PostConstruct
+    public void registerGauges() {
+        meterRegistry.gauge("codecollab.execution.queue.depth", this, ExecutionScheduler::queueLength);
+        meterRegistry.gauge("codecollab.execution.running", this, ExecutionScheduler::runningCount);
+        meterRegistry.gauge("codecollab.execution.compiles.available", compileSlots, Semaphore::availablePermits);
+    }
+
+    /**
+     * Runs the execution as soon as its room and user get their turn. The
+     * listener gets the estimated queue position (1 = next) each time it
+     * changes and 0 once it starts. Returns false without queueing when
+     * the queue is full.
+     */
+    public boolean submit(String sessionId, String roomId, String username,
+                          IntConsumer positionListener, Runnable execution) {
+        String userKey = username != null && !username.isBlank() ? username : "session:" + sessionId;
+        //Runs outside a room compete as a room of their own
+        String roomKey = roomId != null && !roomId.isBlank() ? roomId.toUpperCase().trim() : "user:" + userKey;
+
+        List<QueuedExecution> started;
+        Map<QueuedExecution, Integer> positions;
+        synchronized (lock) {
+            QueuedExecution previous = pendingBySession.get(sessionId);
+            if (previous != null) {
+                //Same slot in the queue, newest code
+                previous.positionListener = positionListener;
+                previous.execution = execution;
+                previous.notifiedPosition = -1;
+                replaced.increment();
+            } else {
+                if (queueLength() >= queueCapacity) {
+                    rejected.increment();
+                    log.info("Execution queue full, rejecting run for session {}", sessionId);
+                    return false;
+                }
+                enqueue(new QueuedExecution(sessionId, roomKey, userKey, positionListener, execution, System.nanoTime()));
+            }
+            started = startReady();
+            positions = changedPositions();
+        }
+
+        started.forEach(this::start);
+        positions.forEach(this::notifyPosition);
+        return true;
+    }
+
+    //Drops the session's waiting run, e.g. after its client went away; false if it had none
+    public boolean cancel(String sessionId) {
+        Map<QueuedExecution, Integer> positions;
+        synchronized (lock) {
+            QueuedExecution queued = pendingBySession.remove(sessionId);
+            if (queued == null) {
+                return false;
+            }
+            RoomQueue room = rooms.get(queued.roomKey);
+            Deque<QueuedExecution> userQueue = room.users.get(queued.userKey);
+            userQueue.remove(queued);
+            if (userQueue.isEmpty()) {
+                room.users.remove(queued.userKey);
+            }
+            if (room.isEmpty()) {
+                rooms.remove(queued.roomKey);
+                activeRooms.remove(room);
+                room.deficit = 0;
+                room.inTurn = false;
+            }
+            positions = changedPositions();
+        }
+        positions.forEach(this::notifyPosition);
+        return true;
+    }
+
+    //Compiles hold one of the compile slots on top of their run slot
+    public void acquireCompileSlot() throws InterruptedException {
+        compileSlots.acquire();
+    }
+
+    public void releaseCompileSlot() {
+        compileSlots.release();
+    }
+
+    public int queueLength() {
+        synchronized (lock) {
+            return pendingBySession.size();
+        }
+    }
+
+    //Executions that can be active at once
+    public int maxRuns() {
+        return maxRuns;
+    }
+
+    public int runningCount() {
+        synchronized (lock) {
+            return running;
+        }
+    }
+
+    private void enqueue(QueuedExecution queued) {
+        RoomQueue room = rooms.computeIfAbsent(queued.roomKey, RoomQueue::new);
+        if (room.isEmpty()) {
+            activeRooms.addLast(room);
+        }
+        room.users.computeIfAbsent(queued.userKey, key -> new ArrayDeque<>()).addLast(queued);
+        pendingBySession.put(queued.sessionId, queued);
+    }
+
+    //Takes executions off the queue while there are free run slots, under lock
+    private List<QueuedExecution> startReady() {
+        List<QueuedExecution> started = new ArrayList<>();
+        while (running < maxRuns) {
+            QueuedExecution next = pollNext(activeRooms, true);
+            if (next == null) {
+                break;
+            }
+            pendingBySession.remove(next.sessionId);
+            if (rooms.get(next.roomKey).isEmpty()) {
+                rooms.remove(next.roomKey);
+            }
+            inFlightByUser.merge(next.userKey, 1, Integer::sum);
+            running++;
+            started.add(next);
+        }
+        return started;
+    }
+
+    /**
+     * One step of deficit round robin. A room at the head of the ring gets
+     * its quantum added once per turn and serves one run per unit of
+     * deficit, its users taking turns; users at their in-flight cap are
+     * skipped. Returns null when nothing can start.
+     */
+    private QueuedExecution pollNext(Deque<RoomQueue> ring, boolean respectUserCap) {
+        int idleRooms = 0;
+        while (!ring.isEmpty() && idleRooms < ring.size()) {
+            RoomQueue room = ring.peekFirst();
+            if (!room.inTurn) {
+                room.deficit += Math.min(room.users.size(), roomWeightCap);
+                room.inTurn = true;
+            }
+
+            Deque<QueuedExecution> userQueue = room.deficit >= 1 ? nextEligibleUser(room, respectUserCap) : null;
+            if (userQueue == null) {
+                //Turn over. A room whose users are all at their cap forfeits its deficit,
+                //so it can't save up a burst while those users are being served
+                boolean capped = room.deficit >= 1;
+                ring.pollFirst();
+                room.inTurn = false;
+                if (capped) {
+                    room.deficit = 0;
+                }
+                ring.addLast(room);
+                idleRooms = capped ? idleRooms + 1 : 0;
+                continue;
+            }
+
+            QueuedExecution next = userQueue.pollFirst();
+            room.deficit--;
+            if (userQueue.isEmpty()) {
+                room.users.remove(next.userKey);
+            } else {
+                //Next run of this room goes to another user
+                room.users.remove(next.userKey);
+                room.users.put(next.userKey, userQueue);
+            }
+            if (room.isEmpty()) {
+                ring.pollFirst();
+                room.deficit = 0;
+                room.inTurn = false;
+            }
+            return next;
+        }
+        return null;
+    }
+
+    private Deque<QueuedExecution> nextEligibleUser(RoomQueue room, boolean respectUserCap) {
+        for (Map.Entry<String, Deque<QueuedExecution>> entry : room.users.entrySet()) {
+            if (!respectUserCap || inFlightByUser.getOrDefault(entry.getKey(), 0) < maxRunsPerUser) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    //Replays the schedule on a copy of the queue to estimate positions, under lock
+    private Map<QueuedExecution, Integer> changedPositions() {
+        Deque<RoomQueue> ring = new ArrayDeque<>();
+        for (RoomQueue room : activeRooms) {
+            ring.addLast(room.copy());
+        }
+
+        Map<QueuedExecution, Integer> changed = new LinkedHashMap<>();
+        int position = 0;
+        QueuedExecution next;
+        while ((next = pollNext(ring, false)) != null) {
+            position++;
+            if (next.notifiedPosition != position) {
+                next.notifiedPosition = position;
+                changed.put(next, position);
+            }
+        }
+        return changed;
+    }
+
+    private void start(QueuedExecution queued) {
+        queueWait.record(System.nanoTime() - queued.enqueuedAt, TimeUnit.NANOSECONDS);
+        IntConsumer positionListener = queued.positionListener;
+        Runnable execution = queued.execution;
+        executor.execute(() -> {
+            try {
+                notifyPosition(queued.sessionId, positionListener, 0);
+                execution.run();
+            } catch (RuntimeException e) {
+                log.error("Execution failed for session {}", queued.sessionId, e);
+            } finally {
+                finished(queued);
+            }
+        });
+    }
+
+    private void finished(QueuedExecution done) {
+        List<QueuedExecution> started;
+        Map<QueuedExecution, Integer> positions;
+        synchronized (lock) {
+            running--;
+            inFlightByUser.computeIfPresent(done.userKey, (key, count) -> count > 1 ? count - 1 : null);
+            started = startReady();
+            positions = changedPositions();
+        }
+        started.forEach(this::start);
+        positions.forEach(this::notifyPosition);
+    }
+
+    private void notifyPosition(QueuedExecution queued, int position) {
+        IntConsumer listener;
+        synchronized (lock) {
+            listener = queued.positionListener;
+        }
+        notifyPosition(queued.sessionId, listener, position);
+    }
+
+    private void notifyPosition(String sessionId, IntConsumer listener, int position) {
+        try {
+            listener.accept(position);
+        } catch (RuntimeException e) {
+            log.warn("Failed to send queue position to session {}: {}", sessionId, e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static final class QueuedExecution {
+        private final String sessionId;
+        private final String roomKey;
+        private final String userKey;
+        private final long enqueuedAt;
+        //Replaced when the same session submits again while waiting
+        private IntConsumer positionListener;
+        private Runnable execution;
+        private int notifiedPosition = -1;
+
+        QueuedExecution(String sessionId, String roomKey, String userKey,
+                        IntConsumer positionListener, Runnable execution, long enqueuedAt) {
+            this.sessionId = sessionId;
+            this.roomKey = roomKey;
+            this.userKey = userKey;
+            this.positionListener = positionListener;
+            this.execution = execution;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private static final class RoomQueue {
+        private final String roomKey;
+        //Users in turn order, each with their waiting runs oldest first
+        private final LinkedHashMap<String, Deque<QueuedExecution>> users = new LinkedHashMap<>();
+        private int deficit;
+        private boolean inTurn;
+
+        RoomQueue(String roomKey) {
+            this.roomKey = roomKey;
+        }
+
+        boolean isEmpty() {
+            return users.isEmpty();
+        }
+
+        RoomQueue copy() {
+            RoomQueue copy = new RoomQueue(roomKey);
+            users.forEach((user, queue) -> copy.users.put(user, new ArrayDeque<>(queue)));
+            copy.deficit = deficit;
+            copy.inTurn = inTurn;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.codecollab.source.service.manager;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps the conflating outbound queue of every WebSocket session.
+ * Broadcasts tag their frames with CONFLATION_KEY_HEADER (newer state
+ * replaces older) or CATCH_UP_HEADER (a room's code delta, folded into a
+ * catch-up marker for a slow session), everything else is always
+ * delivered in order.
+ */
+@Component
+public class OutboundSessionManager {
+
+    public static final String CONFLATION_KEY_HEADER = "conflation-key";
+    public static final String CATCH_UP_HEADER = "catch-up";
+
+    private final long bufferSizeLimit;
+    private final long hardLimit;
+    private final long sendTimeLimitMillis;
+
+    private final Map<String, ConflatingWebSocketSession> sessions = new ConcurrentHashMap<>();
+    //Sessions whose output waits somewhere else, e.g. on the link back from an execution worker
+    private final Map<String, LongSupplier> externalBuffers = new ConcurrentHashMap<>();
+    //Socket writes may block on slow clients, so every drain gets its own virtual thread
+    private final ExecutorService drainExecutor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ws-outbound-", 0).factory());
+
+    private final Counter conflated;
+    private final Counter collapsed;
+    private final Counter resyncs;
+    private final Counter closed;
+
+    public OutboundSessionManager(MeterRegistry meterRegistry,
+                                  @Value("${collab.outbound.buffer-size-limit:524288}") long bufferSizeLimit,
+                                  @Value("${collab.outbound.hard-limit:4194304}") long hardLimit,
+                                  @Value("${collab.outbound.send-time-limit-ms:10000}") long sendTimeLimitMillis) {
+        this.bufferSizeLimit = bufferSizeLimit;
+        this.hardLimit = hardLimit;
+        this.sendTimeLimitMillis = sendTimeLimitMillis;
+
+        this.conflated = Counter.builder("codecollab.outbound.conflated")
+                .description("Queued frames replaced by a newer frame with the same conflation key")
+                .register(meterRegistry);
+        this.collapsed = Counter.builder("codecollab.outbound.collapsed")
+                .description("Code deltas folded into a catch-up marker because a session was over its buffer budget")
+                .register(meterRegistry);
+        this.resyncs = Counter.builder("codecollab.outbound.resyncs")
+                .description("Catch-up markers queued for sessions over their buffer budget")
+                .register(meterRegistry);
+        this.closed = Counter.builder("codecollab.outbound.closed")
+                .description("Sessions closed for not keeping up with outbound messages")
+                .register(meterRegistry);
+        meterRegistry.gauge("codecollab.outbound.buffered.bytes", sessions,
+                s -> s.values().stream().mapToLong(ConflatingWebSocketSession::getBufferedBytes).sum());
+    }
+
+    //Headers for a full-state frame, a queued frame with the same key is replaced
+    public static Map<String, Object> conflate(String key) {
+        return Map.of(CONFLATION_KEY_HEADER, key);
+    }
+
+    //Headers for a room's code delta, a slow session gets a catch-up marker in its place
+    public static Map<String, Object> catchUp(String roomId) {
+        return Map.of(CATCH_UP_HEADER, roomId);
+    }
+
+    public WebSocketSession decorate(WebSocketSession session) {
+        ConflatingWebSocketSession decorated =
+                new ConflatingWebSocketSession(session, this, bufferSizeLimit, hardLimit, sendTimeLimitMillis);
+        sessions.put(session.getId(), decorated);
+        return decorated;
+    }
+
+    public void remove(String sessionId) {
+        sessions.remove(sessionId);
+    }
+
+    //Whether the session is connected to this node
+    public boolean isLocal(String sessionId) {
+        return sessions.containsKey(sessionId);
+    }
+
+    //0 for unknown sessions
+    public long bufferedBytes(String sessionId) {
+        ConflatingWebSocketSession session = sessions.get(sessionId);
+        if (session != null) {
+            return session.getBufferedBytes();
+        }
+        LongSupplier external = externalBuffers.get(sessionId);
+        return external != null ? external.getAsLong() : 0L;
+    }
+
+    //Output of a session that isn't a WebSocket queues in bufferedBytes, so backpressure applies to it too
+    public void registerBuffer(String sessionId, LongSupplier bufferedBytes) {
+        externalBuffers.put(sessionId, bufferedBytes);
+    }
+
+    public void unregisterBuffer(String sessionId) {
+        externalBuffers.remove(sessionId);
+    }
+
+    void drain(Runnable task) {
+        drainExecutor.execute(task);
+    }
+
+    void recordConflated() {
+        conflated.increment();
+    }
+
+    void recordCollapsed(int frames) {
+        collapsed.increment(frames);
+    }
+
+    void recordMarker() {
+        resyncs.increment();
+    }
+
+    void recordClosed() {
+        closed.increment();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        drainExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,211 @@
+package com.codecollab.source.service.manager;
+
+import com.codecollab.source.dto.ExecuteCodeResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Turns a program's output into a few frames instead of one per read.
+ * Output is held for up to flushInterval, or until maxFrameBytes have
+ * piled up, and stdout / stderr switches flush so their order is kept.
+ * After maxRunBytes (counted as UTF-8, like the pipes) the rest of the
+ * run's output is dropped behind a truncated marker and the program is
+ * stopped, so it can't keep a CPU busy printing into nothing. While the session's outbound queue is over
+ * backpressureBytes the pump stops reading the program's pipes, so a
+ * program printing faster than the browser can show it blocks on write,
+ * and what was already read keeps piling up in one batch instead of
+ * being queued on the session frame by frame.
+ */
+@Slf4j
+@Component
+public class OutputBatcher {
+
+    private final OutboundSessionManager outboundSessionManager;
+    private final long flushIntervalMillis;
+    private final int maxFrameBytes;
+    private final long maxRunBytes;
+    private final long backpressureBytes;
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "output-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Counter frames;
+    private final Counter truncated;
+    private final Counter paused;
+
+    public OutputBatcher(OutboundSessionManager outboundSessionManager,
+                         MeterRegistry meterRegistry,
+                         @Value("${collab.output.flush-interval-ms:30}") long flushIntervalMillis,
+                         @Value("${collab.output.max-frame-bytes:8192}") int maxFrameBytes,
+                         @Value("${collab.output.max-run-bytes:1048576}") long maxRunBytes,
+                         @Value("${collab.output.backpressure-bytes:262144}") long backpressureBytes) {
+        this.outboundSessionManager = outboundSessionManager;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxFrameBytes = maxFrameBytes;
+        this.maxRunBytes = maxRunBytes;
+        this.backpressureBytes = backpressureBytes;
+
+        this.frames = Counter.builder("codecollab.output.frames")
+                .description("Program output frames sent to clients")
+                .register(meterRegistry);
+        this.truncated = Counter.builder("codecollab.output.truncated")
+                .description("Runs whose output went over the per-run limit")
+                .register(meterRegistry);
+        this.paused = Counter.builder("codecollab.output.paused")
+                .description("Times a program's output was paused for a slow client")
+                .register(meterRegistry);
+    }
+
+    //One per run, sink gets the batched frames and onTruncated stops the program
+    public Batch open(String sessionId, Consumer<ExecuteCodeResponse> sink, Runnable onTruncated) {
+        return new Batch(sessionId, sink, onTruncated);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdownNow();
+    }
+
+    public final class Batch {
+        private final String sessionId;
+        private final Consumer<ExecuteCodeResponse> sink;
+        private final Runnable onTruncated;
+
+        //Guarded by this; sending only queues the frame on the session, so it is done under the lock
+        private final StringBuilder pending = new StringBuilder();
+        private boolean pendingError;
+        private long totalBytes;
+        private boolean truncatedRun;
+        private ScheduledFuture<?> scheduledFlush;
+        private boolean wasPaused;
+        //Set once the final status may go out, later output would land after it
+        private boolean closed;
+
+        private Batch(String sessionId, Consumer<ExecuteCodeResponse> sink, Runnable onTruncated) {
+            this.sessionId = sessionId;
+            this.sink = sink;
+            this.onTruncated = onTruncated;
+        }
+
+        public synchronized void append(String text, boolean error) {
+            if (truncatedRun || closed) {
+                return;
+            }
+            if (error != pendingError) {
+                flush();
+            }
+            long room = maxRunBytes - totalBytes;
+            int end = fittingPrefix(text, room);
+            boolean over = end < text.length();
+            if (over) {
+                text = text.substring(0, end);
+            }
+            pendingError = error;
+            pending.append(text);
+            totalBytes += text.getBytes(StandardCharsets.UTF_8).length;
+
+            if (over) {
+                truncatedRun = true;
+                flush();
+                send(new ExecuteCodeResponse("\n[output truncated after " + (maxRunBytes / 1024)
+                        + " KB, program stopped]\n", true));
+                truncated.increment();
+                try {
+                    onTruncated.run();
+                } catch (RuntimeException e) {
+                    log.warn("Failed to stop program of session {}: {}", sessionId, e.getMessage());
+                }
+            } else if (pending.length() >= maxFrameBytes && !sessionBehind()) {
+                flush();
+            } else if (scheduledFlush == null) {
+                scheduleFlush();
+            }
+        }
+
+        //Whether the pump may read more of the program's output right now
+        public boolean canAccept() {
+            boolean ready = outboundSessionManager.bufferedBytes(sessionId) < backpressureBytes;
+            synchronized (this) {
+                if (!ready && !wasPaused) {
+                    paused.increment();
+                }
+                wasPaused = !ready;
+            }
+            return ready;
+        }
+
+        private boolean sessionBehind() {
+            return outboundSessionManager.bufferedBytes(sessionId) >= backpressureBytes;
+        }
+
+        private void scheduleFlush() {
+            scheduledFlush = flusher.schedule(this::flushWhenReady, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        //Timed flush, held back while the session still hasn't taken what it was sent
+        private synchronized void flushWhenReady() {
+            scheduledFlush = null;
+            if (sessionBehind() && !pending.isEmpty()) {
+                scheduleFlush();
+                return;
+            }
+            flush();
+        }
+
+        //Sends what is left; output arriving afterwards is dropped
+        public synchronized void close() {
+            flush();
+            closed = true;
+        }
+
+        //Sends whatever is pending; frames go out under the lock so they keep their order
+        public synchronized void flush() {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            if (!pending.isEmpty()) {
+                send(new ExecuteCodeResponse(pending.toString(), pendingError));
+                pending.setLength(0);
+            }
+        }
+
+        private void send(ExecuteCodeResponse frame) {
+            frames.increment();
+            try {
+                sink.accept(frame);
+            } catch (RuntimeException e) {
+                log.warn("Failed to send output to session {}: {}", sessionId, e.getMessage());
+            }
+        }
+    }
+
+    //Chars of text that fit in maxBytes of UTF-8 without splitting a character
+    private static int fittingPrefix(String text, long maxBytes) {
+        long bytes = 0;
+        int i = 0;
+        while (i < text.length()) {
+            int codePoint = text.codePointAt(i);
+            bytes += codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            if (bytes > maxBytes) {
+                return i;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return i;
+    }
+}
@@ -0,0 +1,229 @@
+package com.codecollab.source.service.manager;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Reads the stdout / stderr pipes of every running program on a few
+ * pump threads instead of two reader threads per program.
+ * Process pipes can't be put in a selector, so each pump polls its pipes:
+ * it reads whatever available() reports and backs off to idleMaxMillis
+ * when a whole pass moved nothing. A pipe is finished once its process has
+ * exited and nothing is left in it.
+ */
+@Slf4j
+@Component
+public class ProcessIoPump {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final Pump[] pumps;
+    private final long maxParkNanos;
+    private final AtomicInteger nextPump = new AtomicInteger();
+    private final AtomicInteger activePipes = new AtomicInteger();
+    private volatile boolean running = true;
+
+    private final Counter stdoutBytes;
+    private final Counter stderrBytes;
+
+    public ProcessIoPump(MeterRegistry meterRegistry,
+                         @Value("${collab.io.pump-threads:1}") int pumpThreads,
+                         @Value("${collab.io.idle-max-ms:10}") long idleMaxMillis) {
+        this.maxParkNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, idleMaxMillis));
+        this.stdoutBytes = Counter.builder("codecollab.io.bytes").tag("stream", "stdout")
+                .description("Bytes read from program output pipes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.stderrBytes = Counter.builder("codecollab.io.bytes").tag("stream", "stderr")
+                .description("Bytes read from program output pipes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        meterRegistry.gauge("codecollab.io.pipes.active", activePipes);
+
+        this.pumps = new Pump[Math.max(1, pumpThreads)];
+        for (int i = 0; i < pumps.length; i++) {
+            pumps[i] = new Pump();
+            Thread thread = new Thread(pumps[i], "process-io-pump-" + i);
+            thread.setDaemon(true);
+            pumps[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Pumps one of the process's output streams into sink, decoded as
+     * UTF-8 without splitting characters across chunks. While canRead is
+     * false the pipe is left alone, so the program blocks once it fills;
+ * after the program exited the pipe is drained regardless.
+     * The future completes once the pipe is finished and the last chunk
+     * was passed on.
+     */
+    public CompletableFuture<Void> register(Process process, InputStream stream, boolean stderr,
+                                            Consumer<String> sink, BooleanSupplier canRead) {
+        Pipe pipe = new Pipe(process, stream, stderr ? stderrBytes : stdoutBytes, sink, canRead);
+        activePipes.incrementAndGet();
+        Pump pump = pumps[Math.floorMod(nextPump.getAndIncrement(), pumps.length)];
+        pump.incoming.add(pipe);
+        LockSupport.unpark(pump.thread);
+        return pipe.closed;
+    }
+
+    public int activePipes() {
+        return activePipes.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        for (Pump pump : pumps) {
+            LockSupport.unpark(pump.thread);
+        }
+    }
+
+    private final class Pump implements Runnable {
+        private final Queue<Pipe> incoming = new ConcurrentLinkedQueue<>();
+        private final List<Pipe> pipes = new ArrayList<>();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private Thread thread;
+
+        @Override
+        public void run() {
+            long parkNanos = MIN_PARK_NANOS;
+            while (running) {
+                Pipe added;
+                while ((added = incoming.poll()) != null) {
+                    pipes.add(added);
+                }
+
+                boolean moved = false;
+                for (Iterator<Pipe> iterator = pipes.iterator(); iterator.hasNext(); ) {
+                    Pipe pipe = iterator.next();
+                    try {
+                        if (pipe.process.isAlive() && !pipe.canRead.getAsBoolean()) {
+                            //Paused for a slow reader; once the program exited what is left is
+                            //bounded by the pipe buffer, so it is read to finish the run
+                            continue;
+                        }
+                        if (pipe.pump(buffer)) {
+                            moved = true;
+                        } else if (!pipe.process.isAlive() && pipe.stream.available() == 0) {
+                            //Exited and drained
+                            iterator.remove();
+                            pipe.close(null);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        iterator.remove();
+                        pipe.close(e);
+                    }
+                }
+
+                if (moved) {
+                    parkNanos = MIN_PARK_NANOS;
+                } else {
+                    //Nothing to read anywhere, wait a little longer each pass
+                    LockSupport.parkNanos(parkNanos);
+                    parkNanos = Math.min(parkNanos * 2, maxParkNanos);
+                }
+            }
+            pipes.forEach(pipe -> pipe.close(null));
+        }
+    }
+
+    private final class Pipe {
+        private final Process process;
+        private final InputStream stream;
+        private final Counter bytes;
+        private final Consumer<String> sink;
+        private final BooleanSupplier canRead;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        //Undecoded tail of a multi-byte character
+        private final ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE + 8);
+        private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE + 8);
+        private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+        Pipe(Process process, InputStream stream, Counter bytes, Consumer<String> sink, BooleanSupplier canRead) {
+            this.process = process;
+            this.stream = stream;
+            this.bytes = bytes;
+            this.sink = sink;
+            this.canRead = canRead;
+        }
+
+        //Reads what is there without blocking, returns whether anything was read
+        boolean pump(byte[] buffer) throws IOException {
+            int available = stream.available();
+            if (available <= 0) {
+                return false;
+            }
+            int read = stream.read(buffer, 0, Math.min(available, Math.min(buffer.length, pending.remaining())));
+            if (read <= 0) {
+                return false;
+            }
+            bytes.increment(read);
+            pending.put(buffer, 0, read);
+            emit(false);
+            return true;
+        }
+
+        private void emit(boolean endOfInput) {
+            pending.flip();
+            chars.clear();
+            decoder.decode(pending, chars, endOfInput);
+            if (endOfInput) {
+                decoder.flush(chars);
+            }
+            pending.compact();
+            chars.flip();
+            if (chars.hasRemaining()) {
+                try {
+                    sink.accept(chars.toString());
+                } catch (RuntimeException e) {
+                    log.warn("Process output sink failed: {}", e.getMessage());
+                }
+            }
+        }
+
+        void close(Exception failure) {
+            emit(true);
+            try {
+                stream.close();
+            } catch (IOException e) {
+                log.debug("Failed to close process pipe: {}", e.getMessage());
+            }
+            activePipes.decrementAndGet();
+            if (failure instanceof IOException) {
+                //Killed programs get their pipes closed under us
+                log.debug("Process pipe closed: {}", failure.getMessage());
+            } else if (failure != null) {
+                log.warn("Process pipe failed: {}", failure.toString());
+            }
+            closed.complete(null);
+        }
+    }
+}
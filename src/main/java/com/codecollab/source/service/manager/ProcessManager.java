@@ -4,6 +4,7 @@ import org.springframework.stereotype.Component;
 
 import java.io.OutputStream;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Component
@@ -13,9 +14,13 @@ public class ProcessManager {
     private final Map<String, Process> processes = new ConcurrentHashMap<>();
     private final Map<String, OutputStream> processOutputStreams = new ConcurrentHashMap<>();
 
+    //One program per session, a newer run stops the one before it
     public void addProcess(String sessionId, Process process) {
-        processes.put(sessionId, process);
+        Process previous = processes.put(sessionId, process);
         processOutputStreams.put(sessionId, process.getOutputStream());
+        if (previous != null && previous != process && previous.isAlive()) {
+            previous.destroy();
+        }
     }
 
     public Process getProcess(String sessionId) {
@@ -33,4 +38,34 @@ public class ProcessManager {
         }
         processOutputStreams.remove(sessionId);
     }
+
+    //Kills the session's program with everything it started, returns whether one was running
+    public boolean killProcessTree(String sessionId) {
+        Process process = processes.remove(sessionId);
+        processOutputStreams.remove(sessionId);
+        if (process == null || !process.isAlive()) {
+            return false;
+        }
+        //Children first, once the parent is gone they can't be found from it
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+        return true;
+    }
+
+    public Set<String> sessionIds() {
+        return Set.copyOf(processes.keySet());
+    }
+
+    //Removes the session's process only if it is still this one
+    public void removeProcess(String sessionId, Process process) {
+        if (process == null) {
+            return;
+        }
+        if (processes.remove(sessionId, process)) {
+            processOutputStreams.remove(sessionId, process.getOutputStream());
+        }
+        if (process.isAlive()) {
+            process.destroy();
+        }
+    }
 }
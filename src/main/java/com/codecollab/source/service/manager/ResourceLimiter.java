@@ -0,0 +1,536 @@
+package com.codecollab.source.service.manager;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Starts user programs with CPU, memory, file size and process limits.
+ * The limits are set as rlimits through prlimit, which execs the program
+ * so it keeps the same pid. When cgroupDir points at a writable cgroup v2
+ * directory every run also gets its own child cgroup with memory.max,
+ * pids.max and cpu.max, which is what really stops a fork bomb and gives
+ * exact CPU and peak memory numbers. Without one, RLIMIT_NPROC caps forks
+ * instead; it counts every task of the user, so each run gets what the
+ * user already has plus maxProcesses, and the program starts in its own
+ * session so children it leaves behind are killed with it. A watchdog samples every run, kills
+ * the process tree once the wall-clock, CPU or process limit is passed,
+ * and keeps the CPU time and peak RSS shown when the program finishes.
+ * The waiting thread samples too, often at first, so short runs still
+ * get their numbers before the JVM reaps them.
+ */
+@Slf4j
+@Component
+public class ResourceLimiter {
+
+    private static final String PRLIMIT = "prlimit";
+    private static final String SETSID = "setsid";
+    //Signals a process killed by the CPU rlimit dies of; its exit code is 128 + signal
+    private static final int SIGXCPU = 24;
+    private static final int SIGKILL = 9;
+
+    private final long wallTimeMillis;
+    private final long cpuTimeMillis;
+    private final long memoryBytes;
+    private final long fileSizeBytes;
+    private final int maxProcesses;
+    private final int maxOpenFiles;
+    private final boolean prlimitAvailable;
+    private final boolean setsidAvailable;
+    //Of the server process, -1 when unknown
+    private final long uid;
+    private final long sampleIntervalMillis;
+    //Null when cgroups are not used
+    private final Path cgroupDir;
+
+    private final Set<LimitedProcess> running = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "execution-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Counter wallTimeKills;
+    private final Counter cpuTimeKills;
+    private final Counter processKills;
+    private final Counter memoryKills;
+
+    public ResourceLimiter(MeterRegistry meterRegistry,
+                           @Value("${collab.execution.limits.wall-time-ms:120000}") long wallTimeMillis,
+                           @Value("${collab.execution.limits.cpu-time-ms:10000}") long cpuTimeMillis,
+                           @Value("${collab.execution.limits.memory-bytes:536870912}") long memoryBytes,
+                           @Value("${collab.execution.limits.file-size-bytes:16777216}") long fileSizeBytes,
+                           @Value("${collab.execution.limits.max-processes:32}") int maxProcesses,
+                           @Value("${collab.execution.limits.max-open-files:64}") int maxOpenFiles,
+                           @Value("${collab.execution.limits.sample-interval-ms:100}") long sampleIntervalMillis,
+                           @Value("${collab.execution.limits.cgroup-dir:}") String cgroupDir) {
+        this.wallTimeMillis = wallTimeMillis;
+        this.cpuTimeMillis = cpuTimeMillis;
+        this.memoryBytes = memoryBytes;
+        this.fileSizeBytes = fileSizeBytes;
+        this.maxProcesses = maxProcesses;
+        this.maxOpenFiles = maxOpenFiles;
+        this.prlimitAvailable = isAvailable(PRLIMIT);
+        this.setsidAvailable = isAvailable(SETSID);
+        this.uid = readField(Path.of("/proc/self/status"), "Uid:");
+        this.cgroupDir = usableCgroupDir(cgroupDir);
+        if (!prlimitAvailable) {
+            log.warn("{} not found, programs run without rlimits (only the watchdog limits apply)", PRLIMIT);
+        }
+
+        this.wallTimeKills = Counter.builder("codecollab.execution.limit.kills").tag("limit", "wall-time")
+                .description("Programs killed for going over a resource limit")
+                .register(meterRegistry);
+        this.cpuTimeKills = Counter.builder("codecollab.execution.limit.kills").tag("limit", "cpu-time")
+                .description("Programs killed for going over a resource limit")
+                .register(meterRegistry);
+        this.processKills = Counter.builder("codecollab.execution.limit.kills").tag("limit", "processes")
+                .description("Programs killed for going over a resource limit")
+                .register(meterRegistry);
+        this.memoryKills = Counter.builder("codecollab.execution.limit.kills").tag("limit", "memory")
+                .description("Programs killed for going over a resource limit")
+                .register(meterRegistry);
+
+        long interval = Math.max(10, sampleIntervalMillis);
+        this.sampleIntervalMillis = interval;
+        watchdog.scheduleWithFixedDelay(this::sample, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    //The configured limits, for callers that only override some of them
+    public Limits defaultLimits() {
+        return new Limits(wallTimeMillis, cpuTimeMillis, memoryBytes);
+    }
+
+    public LimitedProcess start(List<String> program, Path workDir, boolean limitAddressSpace) throws IOException {
+        return start(program, workDir, limitAddressSpace, defaultLimits());
+    }
+
+    /**
+     * Starts command in workDir under limits. The caller owns the process
+     * streams and waits through LimitedProcess.waitFor.
+     * Without limitAddressSpace the memory limit is only set through the
+     * cgroup, for runtimes that cap their own memory (a JVM with -Xmx).
+     */
+    public LimitedProcess start(List<String> program, Path workDir, boolean limitAddressSpace, Limits limits)
+            throws IOException {
+        long cpuTimeMillis = limits.cpuTimeMillis();
+        long memoryBytes = limits.memoryBytes();
+        Path cgroup = createCgroup(memoryBytes);
+        List<String> command = new ArrayList<>();
+        if (cgroup != null) {
+            //The shell moves itself into the cgroup before exec, so nothing runs outside it
+            command.addAll(List.of("/bin/sh", "-c", "echo $$ > \"$0/cgroup.procs\" && exec \"$@\"", cgroup.toString()));
+        } else if (setsidAvailable) {
+            //Its own session, so children it leaves behind can still be found once it exited
+            command.add(SETSID);
+        }
+        if (prlimitAvailable) {
+            command.add(PRLIMIT);
+            if (cpuTimeMillis > 0) {
+                //SIGXCPU at the limit, SIGKILL a second later if that is ignored
+                long seconds = Math.max(1, (cpuTimeMillis + 999) / 1000);
+                command.add("--cpu=" + seconds + ":" + (seconds + 1));
+            }
+            if (memoryBytes > 0 && limitAddressSpace) {
+                command.add("--as=" + memoryBytes);
+            }
+            if (fileSizeBytes > 0) {
+                command.add("--fsize=" + fileSizeBytes);
+            }
+            if (maxOpenFiles > 0) {
+                command.add("--nofile=" + maxOpenFiles);
+            }
+            if (cgroup == null && maxProcesses > 0 && uid > 0) {
+                //Root ignores RLIMIT_NPROC, everyone else has their threads and programs counted against it
+                long tasks = tasksOfUser();
+                if (tasks > 0) {
+                    command.add("--nproc=" + (tasks + maxProcesses));
+                }
+            }
+            command.add("--core=0");
+            command.add("--");
+        }
+        command.addAll(program);
+
+        ProcessBuilder builder = new ProcessBuilder(command).directory(workDir.toFile());
+        Process process;
+        try {
+            process = builder.start();
+        } catch (IOException e) {
+            deleteCgroup(cgroup);
+            throw e;
+        }
+        LimitedProcess limited = new LimitedProcess(process, cgroup, limitAddressSpace, limits, System.nanoTime());
+        running.add(limited);
+        return limited;
+    }
+
+    public int runningCount() {
+        return running.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        watchdog.shutdownNow();
+        running.forEach(LimitedProcess::cancel);
+    }
+
+    private void sample() {
+        for (LimitedProcess run : running) {
+            try {
+                run.sample();
+            } catch (RuntimeException e) {
+                log.debug("Failed to sample process {}: {}", run.process.pid(), e.getMessage());
+            }
+        }
+    }
+
+    private Path createCgroup(long memoryBytes) {
+        if (cgroupDir == null) {
+            return null;
+        }
+        Path cgroup = cgroupDir.resolve("run-" + UUID.randomUUID());
+        try {
+            Files.createDirectory(cgroup);
+            if (memoryBytes > 0) {
+                Files.writeString(cgroup.resolve("memory.max"), Long.toString(memoryBytes));
+                //No swapping around the limit
+                writeIfPresent(cgroup.resolve("memory.swap.max"), "0");
+            }
+            if (maxProcesses > 0) {
+                Files.writeString(cgroup.resolve("pids.max"), Integer.toString(maxProcesses));
+            }
+            //At most one core per run
+            writeIfPresent(cgroup.resolve("cpu.max"), "100000 100000");
+            return cgroup;
+        } catch (IOException e) {
+            log.warn("Could not set up cgroup {}, running with rlimits only: {}", cgroup, e.getMessage());
+            deleteCgroup(cgroup);
+            return null;
+        }
+    }
+
+    private static void writeIfPresent(Path file, String value) throws IOException {
+        if (Files.exists(file)) {
+            Files.writeString(file, value);
+        }
+    }
+
+    private static void deleteCgroup(Path cgroup) {
+        if (cgroup == null) {
+            return;
+        }
+        try {
+            //Only empty cgroups can be removed; the tree is already dead here
+            Files.deleteIfExists(cgroup);
+        } catch (IOException e) {
+            log.debug("Failed to remove cgroup {}: {}", cgroup, e.getMessage());
+        }
+    }
+
+    //Threads of every process running as the server's user, -1 when /proc can't be read
+    private long tasksOfUser() {
+        long total = 0;
+        try (DirectoryStream<Path> processes = Files.newDirectoryStream(Path.of("/proc"), "[0-9]*")) {
+            for (Path process : processes) {
+                Path status = process.resolve("status");
+                if (readField(status, "Uid:") == uid) {
+                    total += Math.max(1, readField(status, "Threads:"));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+        return total;
+    }
+
+    //Live processes in session, skipped when /proc can't be read
+    private static List<ProcessHandle> sessionMembers(long session) {
+        List<ProcessHandle> members = new ArrayList<>();
+        try (DirectoryStream<Path> processes = Files.newDirectoryStream(Path.of("/proc"), "[0-9]*")) {
+            for (Path process : processes) {
+                try {
+                    //pid (comm) state ppid pgrp session ..., comm may contain spaces
+                    String stat = Files.readString(process.resolve("stat"));
+                    String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                    if (Long.parseLong(fields[3]) == session) {
+                        ProcessHandle.of(Long.parseLong(process.getFileName().toString())).ifPresent(members::add);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    //Exited while we looked
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Could not list session {}: {}", session, e.getMessage());
+        }
+        return members;
+    }
+
+    private static boolean isAvailable(String tool) {
+        try {
+            Process process = new ProcessBuilder(tool, "--version").redirectErrorStream(true).start();
+            process.getInputStream().readAllBytes();
+            return process.waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static Path usableCgroupDir(String dir) {
+        if (dir == null || dir.isBlank()) {
+            return null;
+        }
+        Path path = Paths.get(dir.trim()).toAbsolutePath().normalize();
+        if (!Files.isRegularFile(path.resolve("cgroup.procs")) || !Files.isWritable(path)) {
+            log.warn("{} is not a writable cgroup v2 directory, cgroup limits are off", path);
+            return null;
+        }
+        log.info("Running programs in cgroups under {}", path);
+        return path;
+    }
+
+    //First number after key in a /proc or cgroup file, -1 when missing
+    private static long readField(Path file, String key) {
+        try {
+            for (String line : Files.readAllLines(file)) {
+                if (line.startsWith(key)) {
+                    String[] parts = line.substring(key.length()).trim().split("\\s+");
+                    return Long.parseLong(parts[0]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            //Process already gone, or not Linux
+        }
+        return -1;
+    }
+
+    private static long readNumber(Path file) {
+        try {
+            return Long.parseLong(Files.readString(file).trim());
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    public enum Limit { WALL_TIME, CPU_TIME, MEMORY, PROCESSES }
+
+    //Per-run limits, 0 = none
+    public record Limits(long wallTimeMillis, long cpuTimeMillis, long memoryBytes) {
+    }
+
+    /**
+     * What a run used and, when it was killed, which limit it hit
+     * (limit and its description are null otherwise).
+     * cpuMillis and peakRssBytes are -1 when they could not be measured.
+     */
+    public record Usage(int exitCode, long wallMillis, long cpuMillis, long peakRssBytes,
+                        Limit limit, String limitExceeded) {
+
+        public String describe() {
+            List<String> parts = new ArrayList<>();
+            //A program that exits before the first sample only has its wall time
+            parts.add(String.format("time %.2f s", wallMillis / 1000.0));
+            if (cpuMillis >= 0) {
+                parts.add(String.format("CPU %.2f s", cpuMillis / 1000.0));
+            }
+            if (peakRssBytes >= 0) {
+                parts.add(String.format("peak memory %.1f MB", peakRssBytes / (1024.0 * 1024.0)));
+            }
+            return String.join(", ", parts);
+        }
+    }
+
+    public final class LimitedProcess {
+        private final Process process;
+        private final Path cgroup;
+        private final boolean limitAddressSpace;
+        private final Limits limits;
+        private final long startNanos;
+
+        //sample() does /proc and cgroup reads on virtual threads, a monitor would pin their carrier
+        private final ReentrantLock lock = new ReentrantLock();
+        //Updated by sample() under lock, last values seen while the program was alive
+        private long cpuMillis = -1;
+        private long peakRssBytes = -1;
+        private Limit limit;
+        private String limitExceeded;
+        //Without a cgroup, children seen while the program ran; once it exits they're no longer its descendants
+        private final Set<ProcessHandle> seenDescendants = ConcurrentHashMap.newKeySet();
+
+        private LimitedProcess(Process process, Path cgroup, boolean limitAddressSpace, Limits limits, long startNanos) {
+            this.process = process;
+            this.cgroup = cgroup;
+            this.limitAddressSpace = limitAddressSpace;
+            this.limits = limits;
+            this.startNanos = startNanos;
+        }
+
+        public Process process() {
+            return process;
+        }
+
+        //Stops the program and everything it started, e.g. once its result no longer matters
+        public void cancel() {
+            killTree();
+        }
+
+        /**
+         * Waits for the program, kills whatever it left running and cleans
+         * up its cgroup. Samples while waiting, every few milliseconds at
+         * first and then at the watchdog's pace, because the last values
+         * seen alive are all there is once the JVM has reaped the process.
+         */
+        public Usage waitFor() throws InterruptedException {
+            int exitCode;
+            try {
+                long sliceMillis = 1;
+                sample();
+                while (!process.waitFor(sliceMillis, TimeUnit.MILLISECONDS)) {
+                    sample();
+                    sliceMillis = Math.min(sliceMillis * 2, sampleIntervalMillis);
+                }
+                exitCode = process.exitValue();
+            } finally {
+                running.remove(this);
+            }
+            long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            long cpu;
+            long peak;
+            Limit hit;
+            String description;
+            lock.lock();
+            try {
+                cpu = cpuMillis;
+                peak = peakRssBytes;
+                hit = limit;
+                description = limitExceeded;
+            } finally {
+                lock.unlock();
+            }
+            long memoryBytes = limits.memoryBytes();
+            long cpuTimeMillis = limits.cpuTimeMillis();
+            if (cgroup != null) {
+                //Exact totals for the whole tree, including what ran after the last sample
+                long usageMicros = readField(cgroup.resolve("cpu.stat"), "usage_usec");
+                if (usageMicros >= 0) {
+                    cpu = usageMicros / 1000;
+                }
+                long cgroupPeak = readNumber(cgroup.resolve("memory.peak"));
+                if (cgroupPeak >= 0) {
+                    peak = cgroupPeak;
+                }
+                if (hit == null && readField(cgroup.resolve("memory.events"), "oom_kill") > 0) {
+                    hit = Limit.MEMORY;
+                    description = "memory limit of " + (memoryBytes / (1024 * 1024)) + " MB";
+                }
+                killTree();
+                deleteCgroup(cgroup);
+            } else {
+                //Background children would otherwise keep running, reparented away from us
+                seenDescendants.forEach(ProcessHandle::destroyForcibly);
+                if (setsidAvailable) {
+                    sessionMembers(process.pid()).forEach(ProcessHandle::destroyForcibly);
+                }
+            }
+            if (hit == null && cpuTimeMillis > 0
+                    && (exitCode == 128 + SIGXCPU || exitCode == 128 + SIGKILL || cpu > cpuTimeMillis)) {
+                //Killed by the CPU rlimit (SIGXCPU, then SIGKILL), or over it; exiting right at the limit is fine
+                hit = Limit.CPU_TIME;
+                description = "CPU time limit of " + formatSeconds(cpuTimeMillis);
+                cpuTimeKills.increment();
+            }
+            return new Usage(exitCode, wallMillis, cpu, peak, hit, description);
+        }
+
+        //From the watchdog and the waiting thread
+        void sample() {
+            lock.lock();
+            try {
+                sampleLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void sampleLocked() {
+            if (!process.isAlive()) {
+                return;
+            }
+            if (cgroup == null) {
+                process.descendants().forEach(seenDescendants::add);
+            }
+            process.info().totalCpuDuration().map(Duration::toMillis).ifPresent(cpu -> cpuMillis = cpu);
+            //VmHWM is the kernel's own high-water mark, so sampling only misses the last moments
+            long hwmKb = readField(Path.of("/proc", Long.toString(process.pid()), "status"), "VmHWM:");
+            if (hwmKb >= 0) {
+                peakRssBytes = Math.max(peakRssBytes, hwmKb * 1024);
+            }
+
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            long wallTimeMillis = limits.wallTimeMillis();
+            long cpuTimeMillis = limits.cpuTimeMillis();
+            long memoryBytes = limits.memoryBytes();
+            if (wallTimeMillis > 0 && elapsedMillis > wallTimeMillis) {
+                kill(Limit.WALL_TIME, "wall-clock limit of " + formatSeconds(wallTimeMillis), wallTimeKills);
+            } else if (cpuTimeMillis > 0 && cpuMillis > cpuTimeMillis + 1000) {
+                //The rlimit should have fired already, e.g. prlimit is missing
+                kill(Limit.CPU_TIME, "CPU time limit of " + formatSeconds(cpuTimeMillis), cpuTimeKills);
+            } else if (cgroup == null && !limitAddressSpace && memoryBytes > 0 && peakRssBytes > memoryBytes) {
+                //Neither the cgroup nor the address space limit is there to stop it
+                kill(Limit.MEMORY, "memory limit of " + (memoryBytes / (1024 * 1024)) + " MB", memoryKills);
+            } else if (cgroup == null && maxProcesses > 0 && process.descendants().limit(maxProcesses).count() >= maxProcesses) {
+                //Backs up RLIMIT_NPROC, which root and a missing prlimit skip
+                kill(Limit.PROCESSES, "process limit of " + maxProcesses, processKills);
+            }
+        }
+
+        //Under lock. Only the first limit hit is reported and counted, the tree may take a few samples to die
+        private void kill(Limit hit, String reason, Counter kills) {
+            if (limit == null) {
+                limit = hit;
+                limitExceeded = reason;
+                kills.increment();
+            }
+            killTree();
+        }
+
+        private void killTree() {
+            if (cgroup != null && Files.exists(cgroup.resolve("cgroup.kill"))) {
+                try {
+                    Files.writeString(cgroup.resolve("cgroup.kill"), "1");
+                } catch (IOException e) {
+                    log.debug("cgroup.kill failed for {}: {}", cgroup, e.getMessage());
+                }
+            }
+            //Children first, so they can't be reparented out of reach
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+        }
+    }
+
+    private static String formatSeconds(long millis) {
+        return millis % 1000 == 0 ? (millis / 1000) + " s" : String.format("%.1f s", millis / 1000.0);
+    }
+}
@@ -0,0 +1,103 @@
+package com.codecollab.source.service.manager;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs room work on a fixed set of single-threaded lanes.
+ * A room always hashes to the same lane, so its messages are handled one
+ * at a time and in arrival order, while different rooms run in parallel
+ * and a hot room can only ever block its own lane.
+ */
+@Slf4j
+@Component
+public class RoomDispatcher {
+
+    private final ThreadPoolExecutor[] lanes;
+    private final Timer taskTimer;
+
+    public RoomDispatcher(MeterRegistry meterRegistry,
+                          @Value("${collab.dispatch.lanes:0}") int laneCount,
+                          @Value("${collab.dispatch.lane-capacity:10000}") int laneCapacity) {
+        //0 means one lane per core
+        int count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        this.lanes = new ThreadPoolExecutor[count];
+        this.taskTimer = Timer.builder("codecollab.dispatch.task")
+                .description("Time spent running room tasks")
+                .register(meterRegistry);
+
+        for (int i = 0; i < count; i++) {
+            String name = "room-lane-" + i;
+            ThreadPoolExecutor lane = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(laneCapacity),
+                    r -> {
+                        Thread thread = new Thread(r, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    //A full lane blocks the caller instead of dropping or reordering work
+                    (task, executor) -> {
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException("Room dispatcher is shut down");
+                        }
+                        try {
+                            executor.getQueue().put(task);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException("Interrupted while waiting for " + name, e);
+                        }
+                    });
+            lanes[i] = lane;
+
+            Gauge.builder("codecollab.dispatch.queue.depth", lane, executor -> executor.getQueue().size())
+                    .description("Room tasks waiting in a dispatch lane")
+                    .tag("lane", String.valueOf(i))
+                    .register(meterRegistry);
+        }
+    }
+
+    public void dispatch(String roomId, Runnable task) {
+        laneFor(roomId).execute(() -> taskTimer.record(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                //Keep the lane alive for the other rooms on it
+                log.error("Room task failed for room {}", roomId, e);
+            }
+        }));
+    }
+
+    public int laneCount() {
+        return lanes.length;
+    }
+
+    private ThreadPoolExecutor laneFor(String roomId) {
+        String key = roomId == null ? "" : roomId.toUpperCase().trim();
+        return lanes[Math.floorMod(key.hashCode(), lanes.length)];
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        for (ThreadPoolExecutor lane : lanes) {
+            try {
+                lane.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
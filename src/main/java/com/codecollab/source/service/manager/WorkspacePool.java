@@ -0,0 +1,218 @@
+package com.codecollab.source.service.manager;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Empty directories for runs to compile and execute in, created ahead of
+ * time and recycled, so a run doesn't create and walk-delete a temp
+ * directory on its own thread. Released workspaces are emptied in batches
+ * by a background thread and go back to the pool, up to poolSize.
+ * Every JVM works in its own subdirectory named after its pid, so nodes
+ * sharing a host don't touch each other's runs; at startup the
+ * subdirectories of processes that no longer exist are deleted.
+ * The base directory can be put on a tmpfs, as long as it isn't mounted
+ * noexec (the compiled programs run from it).
+ */
+@Slf4j
+@Component
+public class WorkspacePool {
+
+    private static final String OWNER_PREFIX = "node-";
+
+    private final Path baseDir;
+    private final Path ownDir;
+    private final int poolSize;
+    private final int cleanupBatch;
+
+    private final BlockingQueue<Path> ready = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Path> released = new LinkedBlockingQueue<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "workspace-cleanup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Counter warmAcquires;
+    private final Counter coldAcquires;
+    private final Counter discarded;
+
+    public WorkspacePool(MeterRegistry meterRegistry,
+                         @Value("${collab.workspace.dir:${java.io.tmpdir}/codecollab-workspaces}") String baseDir,
+                         @Value("${collab.workspace.pool-size:16}") int poolSize,
+                         @Value("${collab.workspace.cleanup-interval-ms:200}") long cleanupIntervalMillis,
+                         @Value("${collab.workspace.cleanup-batch:32}") int cleanupBatch) {
+        this.baseDir = Paths.get(baseDir).toAbsolutePath().normalize();
+        this.ownDir = this.baseDir.resolve(OWNER_PREFIX + ProcessHandle.current().pid());
+        this.poolSize = Math.max(0, poolSize);
+        this.cleanupBatch = Math.max(1, cleanupBatch);
+
+        try {
+            Files.createDirectories(ownDir);
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not create the workspace directory " + ownDir, ex);
+        }
+
+        this.warmAcquires = Counter.builder("codecollab.workspace.acquire").tag("result", "warm")
+                .description("Workspaces handed to runs")
+                .register(meterRegistry);
+        this.coldAcquires = Counter.builder("codecollab.workspace.acquire").tag("result", "cold")
+                .description("Workspaces handed to runs")
+                .register(meterRegistry);
+        this.discarded = Counter.builder("codecollab.workspace.discarded")
+                .description("Workspaces deleted instead of recycled because they could not be emptied")
+                .register(meterRegistry);
+        meterRegistry.gauge("codecollab.workspace.ready", ready, BlockingQueue::size);
+        meterRegistry.gauge("codecollab.workspace.cleanup.pending", released, BlockingQueue::size);
+
+        long interval = Math.max(10, cleanupIntervalMillis);
+        cleaner.scheduleWithFixedDelay(this::cleanUp, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    //Crash leftovers and the warm workspaces are dealt with off the startup path
+    @PostConstruct
+    public void warmUp() {
+        cleaner.execute(() -> {
+            sweepDeadNodes();
+            //Anything in our own directory is from an earlier process that had our pid
+            try (Stream<Path> leftovers = Files.list(ownDir)) {
+                leftovers.forEach(WorkspacePool::deleteTree);
+            } catch (IOException e) {
+                log.warn("Could not clear {}: {}", ownDir, e.getMessage());
+            }
+            while (ready.size() < poolSize) {
+                try {
+                    ready.add(create());
+                } catch (IOException e) {
+                    log.warn("Could not pre-create workspaces in {}: {}", ownDir, e.getMessage());
+                    break;
+                }
+            }
+            log.info("Workspace pool ready in {} with {} workspaces", ownDir, ready.size());
+        });
+    }
+
+    //An empty directory that belongs to the caller until release
+    public Path acquire() throws IOException {
+        Path workspace = ready.poll();
+        if (workspace != null) {
+            warmAcquires.increment();
+            return workspace;
+        }
+        coldAcquires.increment();
+        return create();
+    }
+
+    //Hands the workspace back; it is emptied later, never on the caller's thread
+    public void release(Path workspace) {
+        if (workspace != null) {
+            released.add(workspace);
+        }
+    }
+
+    public int readyCount() {
+        return ready.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        cleaner.shutdownNow();
+        deleteTree(ownDir);
+    }
+
+    private Path create() throws IOException {
+        return Files.createDirectory(ownDir.resolve("ws-" + nextId.incrementAndGet()));
+    }
+
+    private void cleanUp() {
+        List<Path> batch = new ArrayList<>(cleanupBatch);
+        while (released.drainTo(batch, cleanupBatch) > 0) {
+            for (Path workspace : batch) {
+                if (ready.size() < poolSize && empty(workspace)) {
+                    ready.add(workspace);
+                } else {
+                    deleteTree(workspace);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    //Deletes what the run left in workspace, false if something could not be removed
+    private boolean empty(Path workspace) {
+        try (Stream<Path> paths = Files.walk(workspace)) {
+            List<Path> contents = paths.filter(path -> !path.equals(workspace))
+                    .sorted(Comparator.reverseOrder())
+                    .toList();
+            for (Path path : contents) {
+                Files.deleteIfExists(path);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            //e.g. the program took away its own write permission; not worth fixing up
+            log.debug("Discarding workspace {}: {}", workspace, e.getMessage());
+            discarded.increment();
+            return false;
+        }
+    }
+
+    //Directories of JVMs that are gone, left behind by a crash or kill -9
+    private void sweepDeadNodes() {
+        try (Stream<Path> nodes = Files.list(baseDir)) {
+            nodes.filter(node -> !node.equals(ownDir)).filter(WorkspacePool::isOrphaned).forEach(node -> {
+                log.info("Removing workspaces left behind in {}", node);
+                deleteTree(node);
+            });
+        } catch (IOException e) {
+            log.warn("Could not sweep {}: {}", baseDir, e.getMessage());
+        }
+    }
+
+    private static boolean isOrphaned(Path node) {
+        String name = node.getFileName().toString();
+        if (!name.startsWith(OWNER_PREFIX)) {
+            return false;
+        }
+        try {
+            long pid = Long.parseLong(name.substring(OWNER_PREFIX.length()));
+            return ProcessHandle.of(pid).map(handle -> !handle.isAlive()).orElse(true);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static void deleteTree(Path root) {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    log.debug("Failed to delete {}: {}", path, e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            log.debug("Failed to delete {}: {}", root, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.codecollab.source.service.runtime;
+
+import com.codecollab.source.dto.CompileDiagnostic;
+
+import java.util.List;
+
+//What a compile printed, kept so runs waiting on the same compile can replay it
+public record CompileResult(boolean success, String output, List<CompileDiagnostic> diagnostics) {
+}
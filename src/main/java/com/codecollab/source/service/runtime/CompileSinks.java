@@ -0,0 +1,16 @@
+package com.codecollab.source.service.runtime;
+
+import com.codecollab.source.dto.CompileDiagnostic;
+
+import java.util.function.Consumer;
+
+//Where a compile's text and diagnostics go, and what waiting compiles replay
+public record CompileSinks(Consumer<String> output, Consumer<CompileDiagnostic> diagnostics) {
+
+    public void replay(CompileResult result) {
+        if (!result.output().isEmpty()) {
+            output.accept(result.output());
+        }
+        result.diagnostics().forEach(diagnostics);
+    }
+}
@@ -0,0 +1,134 @@
+package com.codecollab.source.service.runtime;
+
+import com.codecollab.source.dto.CompileDiagnostic;
+import com.codecollab.source.service.CompileCacheService;
+import com.codecollab.source.service.PrecompiledHeaderService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//g++ into a native binary
+@Component
+public class CppRuntime implements LanguageRuntime {
+
+    private static final String CPP_COMPILER = "g++";
+    private static final String SOURCE_NAME = "main.cpp";
+    private static final String BINARY_NAME = "main";
+    private static final int DIAGNOSTIC_CHUNK_CHARS = 4096;
+    //The editor only needs the first ones, the full text still goes to the terminal
+    private static final int MAX_DIAGNOSTICS = 200;
+    //file:line[:column]: severity: message
+    private static final Pattern DIAGNOSTIC_PATTERN =
+            Pattern.compile("^(.+?):(\\d+)(?::(\\d+))?: (fatal error|error|warning|note): (.*)$");
+
+    private final CompileCacheService compileCacheService;
+    private final PrecompiledHeaderService precompiledHeaderService;
+    private final List<String> cppFlags;
+
+    public CppRuntime(CompileCacheService compileCacheService,
+                      PrecompiledHeaderService precompiledHeaderService,
+                      @Value("${collab.compiler.cpp-flags:}") String cppFlags) {
+        this.compileCacheService = compileCacheService;
+        this.precompiledHeaderService = precompiledHeaderService;
+        this.cppFlags = Arrays.stream(cppFlags.trim().split("\\s+")).filter(flag -> !flag.isEmpty()).toList();
+    }
+
+    @Override
+    public String language() {
+        return "cpp";
+    }
+
+    @Override
+    public List<String> aliases() {
+        return List.of("c++");
+    }
+
+    @Override
+    public String toolchain() {
+        return compileCacheService.compilerVersion(CPP_COMPILER) + "\u0000" + String.join("\u0000", cppFlags);
+    }
+
+    @Override
+    public String artifactName() {
+        return BINARY_NAME;
+    }
+
+    @Override
+    public CompileResult compile(String code, Path workspace, CompileSinks sinks) throws IOException, InterruptedException {
+        Path sourceFile = workspace.resolve(SOURCE_NAME);
+        Files.writeString(sourceFile, code);
+
+        //This is the compilation Part
+        //With the help of ProcessBuilder
+        //This becomes easy and deploy ready
+        //but g++ has to be installed on that native machine
+        List<String> command = new ArrayList<>();
+        command.add(CPP_COMPILER);
+        command.addAll(cppFlags);
+        //Picks up bits/stdc++.h etc. precompiled when the source includes them
+        command.addAll(precompiledHeaderService.compilerArgs());
+        command.addAll(List.of(sourceFile.toString(), "-o", workspace.resolve(BINARY_NAME).toString()));
+        //stdout and stderr in one pipe that we keep draining, so a long error list can't fill it and stall g++
+        ProcessBuilder compileBuilder = new ProcessBuilder(command).redirectErrorStream(true);
+
+        StringBuilder output = new StringBuilder();
+        List<CompileDiagnostic> diagnostics = new ArrayList<>();
+        String sourcePath = sourceFile.toString();
+
+        Process compileProcess = compileBuilder.start();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(compileProcess.getInputStream(), StandardCharsets.UTF_8))) {
+            StringBuilder pending = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                //Show main.cpp instead of the temp directory
+                line = line.replace(sourcePath, SOURCE_NAME);
+                pending.append(line).append('\n');
+                CompileDiagnostic diagnostic = diagnostics.size() < MAX_DIAGNOSTICS ? parseDiagnostic(line) : null;
+                if (diagnostic != null) {
+                    diagnostics.add(diagnostic);
+                    sinks.diagnostics().accept(diagnostic);
+                }
+                //Send what we have once g++ pauses, instead of one frame per line
+                if (!reader.ready() || pending.length() >= DIAGNOSTIC_CHUNK_CHARS) {
+                    sinks.output().accept(pending.toString());
+                    output.append(pending);
+                    pending.setLength(0);
+                }
+            }
+            if (!pending.isEmpty()) {
+                sinks.output().accept(pending.toString());
+                output.append(pending);
+            }
+        }
+        int compileExitCode = compileProcess.waitFor();
+        return new CompileResult(compileExitCode == 0, output.toString(), diagnostics);
+    }
+
+    @Override
+    public List<String> prepareRun(String code, Path workspace) {
+        return List.of(workspace.resolve(BINARY_NAME).toString());
+    }
+
+    //"main.cpp:3:5: error: ..." style lines, null for context lines
+    static CompileDiagnostic parseDiagnostic(String line) {
+        Matcher matcher = DIAGNOSTIC_PATTERN.matcher(line);
+        if (!matcher.matches()) {
+            return null;
+        }
+        return new CompileDiagnostic(matcher.group(1), Integer.parseInt(matcher.group(2)),
+                matcher.group(3) != null ? Integer.parseInt(matcher.group(3)) : 0,
+                matcher.group(4), matcher.group(5));
+    }
+}
@@ -0,0 +1,315 @@
+package com.codecollab.source.service.runtime;
+
+import com.codecollab.source.dto.CompileDiagnostic;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Java compiled inside the server with javax.tools, sources and classes
+ * kept in memory, so a run doesn't pay for starting a javac JVM. The
+ * classes are written as one jar, which is what the compile cache keeps.
+ * Its Main-Class is the class javac found declaring public static void
+ * main(String[]), preferring the public top-level class.
+ * The program itself runs in its own JVM, the same one the server uses;
+ * its memory is capped with -Xmx since a JVM can't start under an
+ * address space limit.
+ */
+@Slf4j
+@Component
+public class JavaRuntime implements LanguageRuntime {
+
+    private static final String JAR_NAME = "main.jar";
+    private static final String DEFAULT_CLASS = "Main";
+    //1980-02-01, clear of the earliest time a zip entry can hold in any time zone
+    private static final long JAR_ENTRY_TIME = 318211200000L;
+    private static final int MAX_DIAGNOSTICS = 200;
+    private static final List<String> JAVAC_OPTIONS = List.of("-proc:none", "-g");
+    //Bumped when the jar's layout changes, so cached jars of the old layout aren't reused
+    private static final String JAR_LAYOUT = "main-class-manifest";
+    private static final Pattern PUBLIC_CLASS_PATTERN =
+            Pattern.compile("public\\s+(?:(?:final|abstract|sealed|strictfp)\\s+)*(?:class|interface|enum|record)\\s+(\\w+)");
+
+    //Null when the server runs on a JRE
+    private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    private final Path javaCommand = Path.of(System.getProperty("java.home"), "bin", "java");
+    private final int maxHeapMb;
+    private final List<String> jvmFlags;
+
+    public JavaRuntime(@Value("${collab.runtime.java.max-heap-mb:256}") int maxHeapMb,
+                       @Value("${collab.runtime.java.jvm-flags:-XX:+UseSerialGC -XX:-UsePerfData -Xshare:auto}") String jvmFlags) {
+        this.maxHeapMb = maxHeapMb;
+        this.jvmFlags = Arrays.stream(jvmFlags.trim().split("\\s+")).filter(flag -> !flag.isEmpty()).toList();
+    }
+
+    //The first compile loads all of javac, do it before a user waits for it
+    @PostConstruct
+    public void warmUp() {
+        if (compiler != null) {
+            Thread.ofVirtual().name("javac-warmup").start(() -> {
+                CompileResult result = compileInMemory("public class Main { public static void main(String[] a) { } }",
+                        new CompileSinks(text -> { }, diagnostic -> { }), new TreeMap<>(), new ArrayList<>());
+                log.debug("In-process javac ready: {}", result.success());
+            });
+        } else {
+            log.warn("No Java compiler in {}, Java runs are disabled (run the server on a JDK)", System.getProperty("java.home"));
+        }
+    }
+
+    @Override
+    public String language() {
+        return "java";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return compiler != null;
+    }
+
+    @Override
+    public String toolchain() {
+        return "javac " + Runtime.version() + "\u0000" + String.join("\u0000", JAVAC_OPTIONS) + "\u0000" + JAR_LAYOUT;
+    }
+
+    @Override
+    public String artifactName() {
+        return JAR_NAME;
+    }
+
+    @Override
+    public CompileResult compile(String code, Path workspace, CompileSinks sinks) throws IOException {
+        Map<String, byte[]> classes = new TreeMap<>();
+        List<String> mainClasses = new ArrayList<>();
+        CompileResult result = compileInMemory(code, sinks, classes, mainClasses);
+        if (!result.success()) {
+            return result;
+        }
+        if (mainClasses.isEmpty()) {
+            String text = "error: no class declares public static void main(String[] args)\n";
+            sinks.output().accept(text);
+            return new CompileResult(false, result.output() + text, result.diagnostics());
+        }
+        writeJar(classes, mainClasses.get(0), workspace.resolve(JAR_NAME));
+        return result;
+    }
+
+    @Override
+    public List<String> prepareRun(String code, Path workspace) {
+        List<String> command = new ArrayList<>();
+        command.add(javaCommand.toString());
+        command.addAll(jvmFlags);
+        if (maxHeapMb > 0) {
+            command.add("-Xmx" + maxHeapMb + "m");
+        }
+        command.addAll(List.of("-jar", JAR_NAME));
+        return command;
+    }
+
+    @Override
+    public boolean limitAddressSpace() {
+        return false;
+    }
+
+    //Fills classes with the class files and mainClasses with the binary names of classes that have a main method
+    private CompileResult compileInMemory(String code, CompileSinks sinks, Map<String, byte[]> classes,
+                                          List<String> mainClasses) {
+        String sourceName = sourceName(code);
+        StringBuilder output = new StringBuilder();
+        List<CompileDiagnostic> diagnostics = new ArrayList<>();
+
+        //Reported as javac finds them, in the same shape as g++ diagnostics
+        DiagnosticListener<JavaFileObject> listener = diagnostic -> {
+            String severity = severity(diagnostic.getKind());
+            String message = diagnostic.getMessage(Locale.ROOT);
+            long line = diagnostic.getLineNumber();
+            long column = diagnostic.getColumnNumber();
+            String text = line > 0
+                    ? sourceName + ":" + line + ":" + column + ": " + severity + ": " + message + "\n"
+                    : severity + ": " + message + "\n";
+            output.append(text);
+            sinks.output().accept(text);
+            if (line > 0 && diagnostics.size() < MAX_DIAGNOSTICS) {
+                CompileDiagnostic parsed = new CompileDiagnostic(sourceName, (int) line, (int) Math.max(0, column),
+                        severity, message.lines().findFirst().orElse(""));
+                diagnostics.add(parsed);
+                sinks.diagnostics().accept(parsed);
+            }
+        };
+
+        StringWriter otherOutput = new StringWriter();
+        //The standard file manager is not thread safe, one per compile
+        try (StandardJavaFileManager standard = compiler.getStandardFileManager(null, Locale.ROOT, StandardCharsets.UTF_8);
+             MemoryFileManager fileManager = new MemoryFileManager(standard, classes)) {
+            JavacTask task = (JavacTask) compiler.getTask(otherOutput, fileManager, listener,
+                    JAVAC_OPTIONS, null, List.of(new SourceFile(sourceName, code)));
+            Elements elements = task.getElements();
+            //Each top-level class is analyzed in source order, its nested classes with it
+            task.addTaskListener(new TaskListener() {
+                @Override
+                public void finished(TaskEvent event) {
+                    if (event.getKind() == TaskEvent.Kind.ANALYZE && event.getTypeElement() != null) {
+                        collectMainClasses(event.getTypeElement(), elements, mainClasses);
+                    }
+                }
+            });
+            boolean success = task.call();
+            if (!otherOutput.toString().isBlank()) {
+                output.append(otherOutput);
+                sinks.output().accept(otherOutput.toString());
+            }
+            return new CompileResult(success, output.toString(), diagnostics);
+        } catch (IOException | RuntimeException e) {
+            String text = "error: javac failed: " + e.getMessage() + "\n";
+            sinks.output().accept(text);
+            return new CompileResult(false, output + text, diagnostics);
+        }
+    }
+
+    private static String severity(Diagnostic.Kind kind) {
+        return switch (kind) {
+            case ERROR -> "error";
+            case WARNING, MANDATORY_WARNING -> "warning";
+            default -> "note";
+        };
+    }
+
+    //javac wants a public class in a file of the same name
+    private static String sourceName(String code) {
+        Matcher matcher = PUBLIC_CLASS_PATTERN.matcher(code);
+        return (matcher.find() ? matcher.group(1) : DEFAULT_CLASS) + ".java";
+    }
+
+    //A public top-level class with a main method goes first, it is what the file is named after
+    private static void collectMainClasses(TypeElement type, Elements elements, List<String> mainClasses) {
+        if (ElementFilter.methodsIn(type.getEnclosedElements()).stream().anyMatch(JavaRuntime::isMainMethod)) {
+            String name = elements.getBinaryName(type).toString();
+            if (type.getNestingKind() == NestingKind.TOP_LEVEL && type.getModifiers().contains(Modifier.PUBLIC)) {
+                mainClasses.addFirst(name);
+            } else {
+                mainClasses.add(name);
+            }
+        }
+        for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements())) {
+            collectMainClasses(nested, elements, mainClasses);
+        }
+    }
+
+    //public static void main(String[]), varargs included
+    private static boolean isMainMethod(ExecutableElement method) {
+        if (!method.getSimpleName().contentEquals("main")
+                || !method.getModifiers().containsAll(List.of(Modifier.PUBLIC, Modifier.STATIC))
+                || method.getReturnType().getKind() != TypeKind.VOID
+                || method.getParameters().size() != 1) {
+            return false;
+        }
+        return method.getParameters().get(0).asType() instanceof ArrayType array
+                && array.getComponentType().toString().equals("java.lang.String");
+    }
+
+    //Fixed entry times, so the same classes always make the same jar (the judge cache keys on its hash)
+    private static void writeJar(Map<String, byte[]> classes, String mainClass, Path jar) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            out.putNextEntry(jarEntry(JarFile.MANIFEST_NAME));
+            manifest.write(out);
+            out.closeEntry();
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                out.putNextEntry(jarEntry(entry.getKey().replace('.', '/') + ".class"));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static JarEntry jarEntry(String name) {
+        JarEntry entry = new JarEntry(name);
+        entry.setTime(JAR_ENTRY_TIME);
+        return entry;
+    }
+
+    private static final class SourceFile extends SimpleJavaFileObject {
+        private final String code;
+
+        SourceFile(String name, String code) {
+            super(URI.create("string:///" + name), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    //Class files go into the map instead of onto disk
+    private static final class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<String, byte[]> classes;
+
+        MemoryFileManager(StandardJavaFileManager standard, Map<String, byte[]> classes) {
+            super(standard);
+            this.classes = classes;
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(JavaFileManager.Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling) {
+            return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return new ByteArrayOutputStream() {
+                        @Override
+                        public void close() {
+                            classes.put(className, toByteArray());
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.codecollab.source.service.runtime;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * One language the compiler service can build and run. Implementations
+ * are Spring components and are picked up by language name, so adding a
+ * language is adding a class here.
+ * CompilerService does the shared parts: the workspace, the compile cache
+ * and shared compiles, compile slots, resource limits and output.
+ */
+public interface LanguageRuntime {
+
+    //Name the client sends, e.g. "cpp"
+    String language();
+
+    //Other names accepted for the same language
+    default List<String> aliases() {
+        return List.of();
+    }
+
+    //False when the tools it needs are missing on this host
+    default boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Compiler version and flags, part of the compile cache key. Null for
+     * interpreted languages, which have no compile step.
+     */
+    String toolchain();
+
+    //File the compile leaves in the workspace; it is what the compile cache keeps
+    String artifactName();
+
+    /**
+     * Builds code into artifactName in workspace. Compiler output reaches
+     * the sinks while it is produced.
+     */
+    CompileResult compile(String code, Path workspace, CompileSinks sinks) throws IOException, InterruptedException;
+
+    //Writes what the run needs besides the artifact and returns the command, run from inside the workspace
+    List<String> prepareRun(String code, Path workspace) throws IOException;
+
+    //Runtimes that reserve a lot of address space up front (a JVM) limit memory their own way
+    default boolean limitAddressSpace() {
+        return true;
+    }
+}
@@ -0,0 +1,79 @@
+package com.codecollab.source.service.runtime;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+//Interpreted, nothing to compile or cache; syntax errors show up when it runs
+@Slf4j
+@Component
+public class PythonRuntime implements LanguageRuntime {
+
+    private static final String SOURCE_NAME = "main.py";
+
+    private final String interpreter;
+    private final boolean available;
+
+    public PythonRuntime(@Value("${collab.runtime.python.command:python3}") String interpreter) {
+        this.interpreter = interpreter;
+        this.available = probe(interpreter);
+        if (!available) {
+            log.warn("{} not found, Python runs are disabled", interpreter);
+        }
+    }
+
+    @Override
+    public String language() {
+        return "python";
+    }
+
+    @Override
+    public List<String> aliases() {
+        return List.of("py", "python3");
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return available;
+    }
+
+    @Override
+    public String toolchain() {
+        return null;
+    }
+
+    @Override
+    public String artifactName() {
+        return SOURCE_NAME;
+    }
+
+    @Override
+    public CompileResult compile(String code, Path workspace, CompileSinks sinks) {
+        return new CompileResult(true, "", List.of());
+    }
+
+    @Override
+    public List<String> prepareRun(String code, Path workspace) throws IOException {
+        Files.writeString(workspace.resolve(SOURCE_NAME), code);
+        //Unbuffered so prompts show up before the program waits for input; no .pyc next to the source
+        return List.of(interpreter, "-u", "-B", SOURCE_NAME);
+    }
+
+    private static boolean probe(String interpreter) {
+        try {
+            Process process = new ProcessBuilder(interpreter, "--version").redirectErrorStream(true).start();
+            process.getInputStream().readAllBytes();
+            return process.waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
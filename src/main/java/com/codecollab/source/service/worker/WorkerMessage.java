@@ -0,0 +1,157 @@
+package com.codecollab.source.service.worker;
+
+import com.codecollab.source.dto.CompileDiagnostic;
+import com.codecollab.source.dto.ExecuteCodeResponse;
+import com.codecollab.source.dto.ExecutionStatusMessage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Everything a dispatching node and an execution worker say to each other.
+ * RUN, INPUT and CANCEL go to the worker; STATUS, OUTPUT and DIAGNOSTIC
+ * come back while the job runs and FINISHED once it is over. HELLO opens
+ * the connection both ways: the dispatcher's carries the shared token,
+ * the worker's names the worker. HEARTBEAT goes both ways and carries
+ * the worker's load.
+ */
+public record WorkerMessage(Type type, String jobId, Map<String, String> headers, String body) {
+
+    //Upper bound for a single field on the wire
+    static final int MAX_FIELD_BYTES = 16 * 1024 * 1024;
+
+    public enum Type {
+        HELLO,
+        HEARTBEAT,
+        RUN,
+        INPUT,
+        CANCEL,
+        STATUS,
+        OUTPUT,
+        DIAGNOSTIC,
+        FINISHED
+    }
+
+    public WorkerMessage {
+        headers = headers != null ? headers : Map.of();
+    }
+
+    public static WorkerMessage hello(String workerId) {
+        return new WorkerMessage(Type.HELLO, null, Map.of("worker", workerId), null);
+    }
+
+    public static WorkerMessage login(String token) {
+        return new WorkerMessage(Type.HELLO, null, Map.of("token", token), null);
+    }
+
+    public static WorkerMessage heartbeat(Map<String, String> load) {
+        return new WorkerMessage(Type.HEARTBEAT, null, load, null);
+    }
+
+    public static WorkerMessage run(String jobId, String language, String roomId, String username, String code) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("language", language);
+        headers.put("room", roomId);
+        headers.put("user", username);
+        return new WorkerMessage(Type.RUN, jobId, headers, code);
+    }
+
+    public static WorkerMessage input(String jobId, String text) {
+        return new WorkerMessage(Type.INPUT, jobId, null, text);
+    }
+
+    public static WorkerMessage cancel(String jobId) {
+        return new WorkerMessage(Type.CANCEL, jobId, null, null);
+    }
+
+    public static WorkerMessage finished(String jobId) {
+        return new WorkerMessage(Type.FINISHED, jobId, null, null);
+    }
+
+    public static WorkerMessage output(String jobId, ExecuteCodeResponse output) {
+        return new WorkerMessage(Type.OUTPUT, jobId, Map.of("error", Boolean.toString(output.isError())), output.getOutput());
+    }
+
+    public static WorkerMessage status(String jobId, ExecutionStatusMessage status) {
+        return new WorkerMessage(Type.STATUS, jobId,
+                Map.of("status", status.getStatus().name(), "position", Integer.toString(status.getPosition())),
+                status.getMessage());
+    }
+
+    public static WorkerMessage diagnostic(String jobId, CompileDiagnostic diagnostic) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("file", diagnostic.getFile());
+        headers.put("line", Integer.toString(diagnostic.getLine()));
+        headers.put("column", Integer.toString(diagnostic.getColumn()));
+        headers.put("severity", diagnostic.getSeverity());
+        return new WorkerMessage(Type.DIAGNOSTIC, jobId, headers, diagnostic.getMessage());
+    }
+
+    public ExecuteCodeResponse toOutput() {
+        return new ExecuteCodeResponse(body, Boolean.parseBoolean(headers.get("error")));
+    }
+
+    public ExecutionStatusMessage toStatus() {
+        return new ExecutionStatusMessage(ExecutionStatusMessage.Status.valueOf(headers.get("status")),
+                Integer.parseInt(headers.getOrDefault("position", "0")), body);
+    }
+
+    public CompileDiagnostic toDiagnostic() {
+        return new CompileDiagnostic(headers.get("file"), Integer.parseInt(headers.getOrDefault("line", "0")),
+                Integer.parseInt(headers.getOrDefault("column", "0")), headers.get("severity"), body);
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(type.ordinal());
+        writeString(out, jobId);
+        out.writeInt(headers.size());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            writeString(out, header.getKey());
+            writeString(out, header.getValue());
+        }
+        writeString(out, body);
+    }
+
+    public static WorkerMessage readFrom(DataInputStream in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= Type.values().length) {
+            throw new IOException("Unknown worker message type " + ordinal);
+        }
+        Type type = Type.values()[ordinal];
+        String jobId = readString(in);
+        int headerCount = in.readInt();
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 0; i < headerCount; i++) {
+            headers.put(readString(in), readString(in));
+        }
+        String body = readString(in);
+        return new WorkerMessage(type, jobId, headers, body);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_FIELD_BYTES) {
+            throw new IOException("Worker message field too large: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,566 @@
+package com.codecollab.source.service.worker;
+
+import com.codecollab.source.dto.CompileDiagnostic;
+import com.codecollab.source.dto.ExecuteCodeResponse;
+import com.codecollab.source.dto.ExecutionStatusMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Execution workers this node hands its runs to, listed in
+ * collab.worker.addresses (see WorkerServer for the other end). Each
+ * worker is dialled and redialled on its own link; a run goes to the
+ * connected worker with the lowest load, judged by the heartbeats it
+ * sends. A worker that is quiet for three heartbeats is dropped. Its runs
+ * that had not shown anything yet are handed to another worker, or run
+ * here when none is left; runs that already had output or input are
+ * reported as lost, since their program can't be resumed elsewhere.
+ * Cancelling, finishing and moving a run race each other, so every job
+ * goes through its states with compare-and-set and only the winner acts.
+ * Links open with collab.worker.token. With no addresses configured
+ * nothing is offloaded.
+ */
+@Slf4j
+@Component
+public class WorkerPool {
+
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final List<InetSocketAddress> addresses = new ArrayList<>();
+    private final long heartbeatMillis;
+    private final boolean localFallback;
+    private final String token;
+    private final MeterRegistry meterRegistry;
+
+    //workerId -> link that is up
+    private final Map<String, WorkerLink> links = new ConcurrentHashMap<>();
+    //workerId -> last reported load; outlives the link so the gauges keep working after a reconnect
+    private final Map<String, WorkerLoad> loads = new ConcurrentHashMap<>();
+    //jobId -> run on a worker, and the same runs by session
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final Map<String, Job> jobsBySession = new ConcurrentHashMap<>();
+    private final ExecutorService threads =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("worker-link-", 0).factory());
+
+    private final Counter dispatched;
+    private final Counter reassigned;
+    private final Counter lost;
+    private final Counter ranLocally;
+
+    private volatile boolean running;
+
+    public WorkerPool(MeterRegistry meterRegistry,
+                      @Value("${collab.worker.addresses:}") String addresses,
+                      @Value("${collab.worker.heartbeat-ms:1000}") long heartbeatMillis,
+                      @Value("${collab.worker.local-fallback:true}") boolean localFallback,
+                      @Value("${collab.worker.token:}") String token) {
+        this.meterRegistry = meterRegistry;
+        this.heartbeatMillis = Math.max(100, heartbeatMillis);
+        this.localFallback = localFallback;
+        this.token = token;
+        for (String address : addresses.split(",")) {
+            if (address.isBlank()) {
+                continue;
+            }
+            String[] hostPort = address.trim().split(":");
+            this.addresses.add(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])));
+        }
+
+        this.dispatched = Counter.builder("codecollab.worker.jobs").tag("result", "dispatched")
+                .description("Runs handed to execution workers")
+                .register(meterRegistry);
+        this.reassigned = Counter.builder("codecollab.worker.jobs").tag("result", "reassigned")
+                .description("Runs handed to execution workers")
+                .register(meterRegistry);
+        this.lost = Counter.builder("codecollab.worker.jobs").tag("result", "lost")
+                .description("Runs handed to execution workers")
+                .register(meterRegistry);
+        this.ranLocally = Counter.builder("codecollab.worker.jobs").tag("result", "local")
+                .description("Runs handed to execution workers")
+                .register(meterRegistry);
+        meterRegistry.gauge("codecollab.worker.connected", links, Map::size);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!addresses.isEmpty() && token.isEmpty()) {
+            throw new IllegalStateException("collab.worker.token must be set to use execution workers");
+        }
+        running = true;
+        for (InetSocketAddress address : addresses) {
+            threads.execute(() -> dialLoop(address));
+        }
+        if (!addresses.isEmpty()) {
+            log.info("Offloading runs to execution workers at {}", addresses);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        links.values().forEach(WorkerLink::close);
+        threads.shutdownNow();
+    }
+
+    /**
+     * Hands the run to the least loaded worker and returns true, or returns
+     * false when it should run here (no workers configured, or none
+     * connected and local-fallback is on). runLocally is kept in case the
+     * worker goes away before the run showed anything. The session's
+     * previous run on a worker is only stopped once this one has a worker
+     * or falls back to running here.
+     */
+    public boolean dispatch(String sessionId, String code, String language, String roomId, String username,
+                            Consumer<ExecuteCodeResponse> outputCallback,
+                            Consumer<ExecutionStatusMessage> statusCallback,
+                            Consumer<CompileDiagnostic> diagnosticCallback,
+                            Runnable runLocally) {
+        if (addresses.isEmpty()) {
+            return false;
+        }
+        Job job = new Job(sessionId, code, language, roomId, username,
+                outputCallback, statusCallback, diagnosticCallback, runLocally);
+        Job previous = jobsBySession.put(sessionId, job);
+        if (assign(job)) {
+            dispatched.increment();
+            cancelJob(previous);
+            return true;
+        }
+
+        job.state.set(State.CANCELLED);
+        jobsBySession.remove(sessionId, job);
+        if (localFallback) {
+            ranLocally.increment();
+            cancelJob(previous);
+            return false;
+        }
+        //Nothing new runs, so the earlier run keeps the session
+        if (previous != null && previous.state.get() == State.ACTIVE) {
+            jobsBySession.putIfAbsent(sessionId, previous);
+        }
+        outputCallback.accept(new ExecuteCodeResponse(
+                "No execution worker is available right now. Please try again shortly.", true));
+        return true;
+    }
+
+    //Forwards input to the session's run on a worker; false when it has none
+    public boolean sendInput(String sessionId, String input) {
+        Job job = jobsBySession.get(sessionId);
+        WorkerLink link = job != null && job.state.get() == State.ACTIVE ? job.link : null;
+        if (link == null) {
+            return false;
+        }
+        //The program may have read it, so it can't be restarted elsewhere any more
+        job.started = true;
+        link.outbox.offer(WorkerMessage.input(job.id, input));
+        return true;
+    }
+
+    //Stops the session's run on a worker; false when it has none
+    public boolean cancel(String sessionId) {
+        Job job = jobsBySession.remove(sessionId);
+        if (job == null) {
+            return false;
+        }
+        cancelJob(job);
+        return true;
+    }
+
+    public Set<String> sessionIds() {
+        return Set.copyOf(jobsBySession.keySet());
+    }
+
+    //Load of the connected workers, least loaded first
+    public List<WorkerLoad> workers() {
+        return links.values().stream()
+                .map(WorkerLink::load)
+                .sorted(Comparator.comparingDouble(WorkerLoad::utilization))
+                .toList();
+    }
+
+    /**
+     * Puts a PLACING job on the least loaded worker and makes it ACTIVE.
+     * Returns false, still PLACING, when no worker is connected. A job
+     * cancelled while it was placed is taken back off the worker.
+     */
+    private boolean assign(Job job) {
+        while (true) {
+            WorkerLink link = links.values().stream()
+                    .filter(candidate -> !candidate.socket.isClosed())
+                    .min(Comparator.comparingDouble(candidate -> candidate.load().utilization()))
+                    .orElse(null);
+            if (link == null) {
+                return false;
+            }
+            job.link = link;
+            jobs.put(job.id, job);
+            link.assigned.incrementAndGet();
+            link.outbox.offer(WorkerMessage.run(job.id, job.language, job.roomId, job.username, job.code));
+            if (!job.state.compareAndSet(State.PLACING, State.ACTIVE)) {
+                withdraw(job);
+                return true;
+            }
+            //workerLost closes the socket before it looks for ACTIVE jobs, so one of us moves it
+            if (!link.socket.isClosed() || !job.state.compareAndSet(State.ACTIVE, State.PLACING)) {
+                return true;
+            }
+            jobs.remove(job.id, job);
+            link.assigned.decrementAndGet();
+        }
+    }
+
+    //Whatever state the job is in, it ends CANCELLED unless it already finished
+    private void cancelJob(Job job) {
+        if (job == null) {
+            return;
+        }
+        State before = job.state.getAndUpdate(state -> state == State.DONE ? state : State.CANCELLED);
+        if (before == State.DONE || before == State.CANCELLED) {
+            return;
+        }
+        jobsBySession.remove(job.sessionId, job);
+        if (before == State.ACTIVE) {
+            withdraw(job);
+        }
+        //A PLACING job is withdrawn by whoever is placing it
+    }
+
+    //Takes the job off its worker
+    private void withdraw(Job job) {
+        WorkerLink link = job.link;
+        if (link != null && jobs.remove(job.id, job)) {
+            link.assigned.decrementAndGet();
+            link.outbox.offer(WorkerMessage.cancel(job.id));
+        }
+    }
+
+    private void onMessage(WorkerLink link, WorkerMessage message) {
+        if (message.type() == WorkerMessage.Type.HEARTBEAT) {
+            link.reported(message.headers());
+            return;
+        }
+        Job job = message.jobId() != null ? jobs.get(message.jobId()) : null;
+        if (job == null || job.link != link) {
+            //Cancelled, or already moved to another worker
+            return;
+        }
+        switch (message.type()) {
+            case STATUS -> job.statusCallback.accept(message.toStatus());
+            case OUTPUT -> {
+                job.started = true;
+                job.outputCallback.accept(message.toOutput());
+            }
+            case DIAGNOSTIC -> {
+                job.started = true;
+                job.diagnosticCallback.accept(message.toDiagnostic());
+            }
+            case FINISHED -> {
+                if (job.state.compareAndSet(State.ACTIVE, State.DONE) && jobs.remove(job.id, job)) {
+                    jobsBySession.remove(job.sessionId, job);
+                    link.assigned.decrementAndGet();
+                }
+            }
+            default -> log.debug("Unexpected {} from worker {}", message.type(), link.workerId);
+        }
+    }
+
+    //Called after the link's socket was closed
+    private void workerLost(WorkerLink link) {
+        for (Job job : jobs.values()) {
+            //Cancelled or finished jobs stay where they are, cancel already sent what it could
+            if (job.link != link || !job.state.compareAndSet(State.ACTIVE, State.PLACING)) {
+                continue;
+            }
+            jobs.remove(job.id, job);
+            job.link = null;
+            if (!job.started) {
+                //Nothing was shown yet, so nobody can tell it ran somewhere else
+                if (assign(job)) {
+                    //Replaced by a newer run while it moved
+                    if (jobsBySession.get(job.sessionId) != job) {
+                        cancelJob(job);
+                    } else {
+                        reassigned.increment();
+                    }
+                    continue;
+                }
+                if (localFallback && job.state.compareAndSet(State.PLACING, State.DONE)) {
+                    jobsBySession.remove(job.sessionId, job);
+                    reassigned.increment();
+                    job.runLocally.run();
+                    continue;
+                }
+            }
+            if (job.state.compareAndSet(State.PLACING, State.DONE)) {
+                jobsBySession.remove(job.sessionId, job);
+                lost.increment();
+                job.outputCallback.accept(new ExecuteCodeResponse(
+                        "\nThe execution worker running this program stopped responding, the run was lost.", true));
+            }
+        }
+    }
+
+    private void dialLoop(InetSocketAddress address) {
+        while (running) {
+            WorkerLink link = null;
+            try (Socket socket = new Socket()) {
+                socket.connect(address, (int) Math.max(heartbeatMillis * 3, 1000));
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout((int) (heartbeatMillis * 3));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                WorkerMessage.login(token).writeTo(out);
+                out.flush();
+                WorkerMessage hello = WorkerMessage.readFrom(in);
+                String workerId = hello.headers().get("worker");
+                if (hello.type() != WorkerMessage.Type.HELLO || workerId == null || workerId.isBlank()) {
+                    throw new IOException("no HELLO from the worker, check collab.worker.token on both sides");
+                }
+
+                link = new WorkerLink(workerId, address, socket, out);
+                WorkerLink previous = links.put(workerId, link);
+                if (previous != null) {
+                    previous.close();
+                }
+                log.info("Connected to execution worker {} at {}", workerId, address);
+
+                WorkerLink reader = link;
+                threads.execute(() -> reader.readLoop(in));
+                link.writeLoop();
+            } catch (IOException e) {
+                log.debug("Worker link to {} failed: {}", address, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                //Keep dialling, a bad worker must not end the loop for good
+                log.warn("Worker link to {} failed", address, e);
+            } finally {
+                if (link != null) {
+                    link.close();
+                    if (links.remove(link.workerId, link)) {
+                        log.warn("Lost execution worker {} at {}", link.workerId, address);
+                    }
+                    workerLost(link);
+                }
+            }
+
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * A worker's last heartbeat plus the runs this node has on it; the
+     * reported numbers include other dispatchers' runs but lag a beat.
+     */
+    public record WorkerLoad(String workerId, int running, int queued, int capacity, int cpus,
+                             double loadAverage, int assigned) {
+
+        //Busy share of the worker's run slots, waiting runs included
+        public double utilization() {
+            return (double) Math.max(running + queued, assigned) / Math.max(1, capacity);
+        }
+    }
+
+    private final class WorkerLink {
+        private final String workerId;
+        private final InetSocketAddress address;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final BlockingQueue<WorkerMessage> outbox = new LinkedBlockingQueue<>();
+        private final AtomicInteger assigned = new AtomicInteger();
+
+        WorkerLink(String workerId, InetSocketAddress address, Socket socket, DataOutputStream out) {
+            this.workerId = workerId;
+            this.address = address;
+            this.socket = socket;
+            this.out = out;
+        }
+
+        WorkerLoad load() {
+            WorkerLoad reported = loads.get(workerId);
+            return reported != null
+                    ? new WorkerLoad(workerId, reported.running(), reported.queued(), reported.capacity(),
+                            reported.cpus(), reported.loadAverage(), assigned.get())
+                    : new WorkerLoad(workerId, 0, 0, 1, 0, -1, assigned.get());
+        }
+
+        void reported(Map<String, String> headers) {
+            WorkerLoad load = new WorkerLoad(workerId,
+                    parseInt(headers.get("running")), parseInt(headers.get("queued")),
+                    parseInt(headers.get("capacity")), parseInt(headers.get("cpus")),
+                    parseDouble(headers.get("load-average")), assigned.get());
+            if (loads.put(workerId, load) == null) {
+                registerGauges(workerId);
+            }
+        }
+
+        void readLoop(DataInputStream in) {
+            try {
+                while (running) {
+                    onMessage(this, WorkerMessage.readFrom(in));
+                }
+            } catch (SocketTimeoutException e) {
+                log.warn("Execution worker {} missed its heartbeats", workerId);
+            } catch (IOException e) {
+                log.debug("Worker read link to {} closed: {}", workerId, e.getMessage());
+            } catch (RuntimeException e) {
+                log.error("Bad message from execution worker {}", workerId, e);
+            } finally {
+                //Ends the write loop, which cleans up
+                close();
+            }
+        }
+
+        //Runs until the link fails; sends a heartbeat whenever it has been idle for a beat
+        void writeLoop() throws IOException, InterruptedException {
+            while (running && !socket.isClosed()) {
+                WorkerMessage message = outbox.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                if (message == null) {
+                    WorkerMessage.heartbeat(Map.of()).writeTo(out);
+                    out.flush();
+                    continue;
+                }
+                message.writeTo(out);
+                //Batch whatever else is already queued into the same flush
+                while ((message = outbox.poll()) != null) {
+                    message.writeTo(out);
+                }
+                out.flush();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Failed to close link to worker {} at {}: {}", workerId, address, e.getMessage());
+            }
+        }
+    }
+
+    private void registerGauges(String workerId) {
+        Gauge.builder("codecollab.worker.running", loads, all -> value(all, workerId, WorkerLoad::running))
+                .tag("worker", workerId)
+                .description("Runs the worker reported as running")
+                .register(meterRegistry);
+        Gauge.builder("codecollab.worker.queued", loads, all -> value(all, workerId, WorkerLoad::queued))
+                .tag("worker", workerId)
+                .description("Runs the worker reported as waiting")
+                .register(meterRegistry);
+        Gauge.builder("codecollab.worker.utilization", this, pool -> {
+                    WorkerLink link = pool.links.get(workerId);
+                    return link != null ? link.load().utilization() : 0;
+                })
+                .tag("worker", workerId)
+                .description("Busy share of the worker's run slots")
+                .register(meterRegistry);
+        Gauge.builder("codecollab.worker.load.average", loads, all -> value(all, workerId, WorkerLoad::loadAverage))
+                .tag("worker", workerId)
+                .description("The worker host's one-minute load average")
+                .register(meterRegistry);
+    }
+
+    private double value(Map<String, WorkerLoad> all, String workerId,
+                         ToDoubleFunction<WorkerLoad> field) {
+        //Zero once the worker is gone, instead of its last report
+        WorkerLoad load = links.containsKey(workerId) ? all.get(workerId) : null;
+        return load != null ? field.applyAsDouble(load) : 0;
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return value != null ? Integer.parseInt(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return value != null ? Double.parseDouble(value) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * PLACING while it is being put on a worker (at first, and again when
+     * its worker was lost), ACTIVE while a worker has it, then DONE or
+     * CANCELLED for good.
+     */
+    private enum State { PLACING, ACTIVE, CANCELLED, DONE }
+
+    //A run handed to a worker
+    private static final class Job {
+        private final String id = UUID.randomUUID().toString();
+        private final String sessionId;
+        private final String code;
+        private final String language;
+        private final String roomId;
+        private final String username;
+        private final Consumer<ExecuteCodeResponse> outputCallback;
+        private final Consumer<ExecutionStatusMessage> statusCallback;
+        private final Consumer<CompileDiagnostic> diagnosticCallback;
+        private final Runnable runLocally;
+
+        private final AtomicReference<State> state = new AtomicReference<>(State.PLACING);
+        //Worker it is on, null while it is being moved
+        private volatile WorkerLink link;
+        //Output, diagnostics or input went through, so it can't be moved silently
+        private volatile boolean started;
+
+        Job(String sessionId, String code, String language, String roomId, String username,
+            Consumer<ExecuteCodeResponse> outputCallback,
+            Consumer<ExecutionStatusMessage> statusCallback,
+            Consumer<CompileDiagnostic> diagnosticCallback,
+            Runnable runLocally) {
+            this.sessionId = sessionId;
+            this.code = code;
+            this.language = language;
+            this.roomId = roomId;
+            this.username = username;
+            this.outputCallback = outputCallback;
+            this.statusCallback = statusCallback;
+            this.diagnosticCallback = diagnosticCallback;
+            this.runLocally = runLocally;
+        }
+    }
+}
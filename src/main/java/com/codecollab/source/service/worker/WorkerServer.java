@@ -0,0 +1,301 @@
+package com.codecollab.source.service.worker;
+
+import com.codecollab.source.service.CompilerService;
+import com.codecollab.source.service.manager.ExecutionReaper;
+import com.codecollab.source.service.manager.ExecutionScheduler;
+import com.codecollab.source.service.manager.OutboundSessionManager;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes this node an execution worker: nodes that list it in
+ * collab.worker.addresses connect here and hand it their runs, which go
+ * through this node's own scheduler, limits and workspaces. Output comes
+ * back on the same connection. A connection has to open with a HELLO
+ * carrying collab.worker.token, or it is closed before any run is
+ * accepted. Output waiting to go out counts as the run's buffered bytes,
+ * so a slow link pauses the program like a slow WebSocket would.
+ * Every connection gets a heartbeat with
+ * this node's load once per beat; a connection that is quiet for three
+ * beats is dropped and the programs it started are stopped.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "collab.worker.server.enabled", havingValue = "true")
+public class WorkerServer {
+
+    private final CompilerService compilerService;
+    private final ExecutionScheduler executionScheduler;
+    private final ExecutionReaper executionReaper;
+    private final OutboundSessionManager outboundSessionManager;
+    private final String workerId;
+    private final int port;
+    private final String bindAddress;
+    private final long heartbeatMillis;
+    private final byte[] token;
+
+    //Sessions of the runs we were handed, so the reaper leaves them alone
+    private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong connectionIds = new AtomicLong();
+    private final ExecutorService threads =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("worker-server-", 0).factory());
+
+    private volatile ServerSocket serverSocket;
+    private volatile boolean running;
+
+    public WorkerServer(CompilerService compilerService,
+                        ExecutionScheduler executionScheduler,
+                        ExecutionReaper executionReaper,
+                        OutboundSessionManager outboundSessionManager,
+                        @Value("${collab.worker.server.id:}") String workerId,
+                        @Value("${collab.worker.server.port:7800}") int port,
+                        @Value("${collab.worker.server.bind-address:127.0.0.1}") String bindAddress,
+                        @Value("${collab.worker.heartbeat-ms:1000}") long heartbeatMillis,
+                        @Value("${collab.worker.token:}") String token) {
+        this.compilerService = compilerService;
+        this.executionScheduler = executionScheduler;
+        this.executionReaper = executionReaper;
+        this.outboundSessionManager = outboundSessionManager;
+        this.workerId = workerId != null && !workerId.isBlank() ? workerId.trim() : UUID.randomUUID().toString().substring(0, 8);
+        this.port = port;
+        this.bindAddress = bindAddress;
+        this.heartbeatMillis = Math.max(100, heartbeatMillis);
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (token.length == 0) {
+            throw new IllegalStateException("collab.worker.token must be set to run an execution worker");
+        }
+        running = true;
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+        executionReaper.addSessionOwner(sessions::contains);
+        threads.execute(this::acceptLoop);
+        log.info("Execution worker {} listening on {}:{}", workerId, bindAddress, getPort());
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.debug("Failed to close worker server socket: {}", e.getMessage());
+        }
+        threads.shutdownNow();
+    }
+
+    //The bound port, useful when configured with 0
+    public int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : port;
+    }
+
+    public String workerId() {
+        return workerId;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                threads.execute(() -> new DispatcherConnection(socket, connectionIds.incrementAndGet()).serve());
+            } catch (IOException e) {
+                if (running) {
+                    log.warn("Failed to accept worker connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    //Close enough for backpressure; program output is mostly ASCII
+    private static long bodyBytes(WorkerMessage message) {
+        return message.body() != null ? message.body().length() : 0;
+    }
+
+    //What the dispatchers use to pick the least busy worker
+    private Map<String, String> load() {
+        Map<String, String> load = new LinkedHashMap<>();
+        load.put("running", Integer.toString(executionScheduler.runningCount()));
+        load.put("queued", Integer.toString(executionScheduler.queueLength()));
+        load.put("capacity", Integer.toString(executionScheduler.maxRuns()));
+        load.put("cpus", Integer.toString(Runtime.getRuntime().availableProcessors()));
+        load.put("load-average", Double.toString(ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage()));
+        return load;
+    }
+
+    //One dispatching node; reads on its own thread, writes on a second one
+    private final class DispatcherConnection {
+        private final Socket socket;
+        private final long connectionId;
+        private final BlockingQueue<WorkerMessage> outbox = new LinkedBlockingQueue<>();
+        //Body bytes in outbox, reported as every run's buffered bytes since they share the link
+        private final AtomicLong queuedBytes = new AtomicLong();
+        //jobId -> session the run has here
+        private final Map<String, String> jobs = new ConcurrentHashMap<>();
+
+        DispatcherConnection(Socket socket, long connectionId) {
+            this.socket = socket;
+            this.connectionId = connectionId;
+        }
+
+        void serve() {
+            String peer = socket.getRemoteSocketAddress().toString();
+            try (socket) {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout((int) (heartbeatMillis * 3));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                if (!authenticated(WorkerMessage.readFrom(in))) {
+                    log.warn("Rejected dispatcher {}, it did not send the worker token", peer);
+                    return;
+                }
+                WorkerMessage.hello(workerId).writeTo(out);
+                WorkerMessage.heartbeat(load()).writeTo(out);
+                out.flush();
+                log.info("Dispatcher {} connected", peer);
+
+                threads.execute(() -> writeLoop(out));
+                while (running) {
+                    handle(WorkerMessage.readFrom(in));
+                }
+            } catch (SocketTimeoutException e) {
+                log.info("Dispatcher {} went quiet, dropping it", peer);
+            } catch (IOException e) {
+                log.debug("Dispatcher connection {} closed: {}", peer, e.getMessage());
+            } catch (RuntimeException e) {
+                log.warn("Bad message from dispatcher {}", peer, e);
+            } finally {
+                //Nobody is left to see the output
+                jobs.keySet().forEach(this::cancel);
+                log.info("Dispatcher {} disconnected", peer);
+            }
+        }
+
+        private boolean authenticated(WorkerMessage hello) {
+            String sent = hello.headers().get("token");
+            return hello.type() == WorkerMessage.Type.HELLO && sent != null
+                    && MessageDigest.isEqual(token, sent.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void handle(WorkerMessage message) {
+            switch (message.type()) {
+                case RUN -> run(message);
+                case INPUT -> {
+                    String session = jobs.get(message.jobId());
+                    if (session != null) {
+                        compilerService.sendInput(session, message.body());
+                    }
+                }
+                case CANCEL -> cancel(message.jobId());
+                default -> {
+                    //HEARTBEAT only keeps the read timeout from firing
+                }
+            }
+        }
+
+        private void run(WorkerMessage message) {
+            String jobId = message.jobId();
+            String session = "worker-" + connectionId + "-" + jobId;
+            jobs.put(jobId, session);
+            sessions.add(session);
+            outboundSessionManager.registerBuffer(session, queuedBytes::get);
+            compilerService.executeLocally(message.body(), message.headers().get("language"), session,
+                    message.headers().get("room"), message.headers().get("user"),
+                    output -> enqueue(WorkerMessage.output(jobId, output)),
+                    status -> enqueue(WorkerMessage.status(jobId, status)),
+                    diagnostic -> enqueue(WorkerMessage.diagnostic(jobId, diagnostic)),
+                    () -> finish(jobId));
+        }
+
+        private void cancel(String jobId) {
+            String session = jobs.get(jobId);
+            if (session != null) {
+                executionReaper.sessionClosed(session);
+                //A run that was still queued never finishes by itself
+                finish(jobId);
+            }
+        }
+
+        private void finish(String jobId) {
+            String session = jobs.remove(jobId);
+            if (session != null) {
+                sessions.remove(session);
+                outboundSessionManager.unregisterBuffer(session);
+                enqueue(WorkerMessage.finished(jobId));
+            }
+        }
+
+        private void enqueue(WorkerMessage message) {
+            queuedBytes.addAndGet(bodyBytes(message));
+            outbox.offer(message);
+        }
+
+        private void write(WorkerMessage message, DataOutputStream out) throws IOException {
+            message.writeTo(out);
+            queuedBytes.addAndGet(-bodyBytes(message));
+        }
+
+        //Sends what the runs produce, and a heartbeat with our load once per beat
+        private void writeLoop(DataOutputStream out) {
+            long nextHeartbeat = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+            try {
+                while (running && !socket.isClosed()) {
+                    long waitNanos = nextHeartbeat - System.nanoTime();
+                    WorkerMessage message = waitNanos > 0 ? outbox.poll(waitNanos, TimeUnit.NANOSECONDS) : null;
+                    if (message != null) {
+                        write(message, out);
+                        //Batch whatever else is already queued into the same flush
+                        while ((message = outbox.poll()) != null) {
+                            write(message, out);
+                        }
+                    }
+                    if (System.nanoTime() - nextHeartbeat >= 0) {
+                        WorkerMessage.heartbeat(load()).writeTo(out);
+                        nextHeartbeat = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                log.debug("Worker write link closed: {}", e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    log.debug("Failed to close dispatcher connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -1,17 +1,40 @@
 // Collab Space JavaScript with WebSocket Integration and Room Support
 
 const WS_URL = 'http://localhost:8080/ws';
+const WS_RAW_URL = 'ws://localhost:8080/ws-raw';
 
 let stompClient = null;
 let username = null;
 let roomId = null;
 let sessionId = null;
+let useRawSocket = typeof WebSocket !== 'undefined'; // Plain WebSocket with binary frames, SockJS as fallback
+let rawSocketWorked = false;
 let terminalBuffer = "";
 
 // CodeMirror related globals
 let editor = null;
 let isRemoteUpdate = false; // Flag to prevent echo when receiving remote updates 
 
+// Operation based sync state (see ot.js)
+const clientId = Math.random().toString(36).slice(2, 10);
+let revision = 0;          // Last server revision applied locally
+let outstanding = null;    // Sent to the server, waiting for the ack
+let outstandingSession = null; // Connection the outstanding op was sent on
+let buffer = null;         // Local edits made while waiting for the ack
+let shadowText = '';       // Editor text as of the last processed change
+let serverText = '';       // Server text at `revision`, what outstanding is based on
+let hasDocument = false;   // Whether we ever received the room document
+let catchingUp = false;    // Waiting for a catch-up, live deltas are queued meanwhile
+let catchUpAgain = false;  // Asked for another catch-up while one was on its way
+let queuedDeltas = [];
+
+// Presence (remote cursors / typing), rendered from the combined room frames
+let remoteMarkers = [];
+// Compile error / warning highlights from the last run
+let diagnosticMarkers = [];
+let typingTimer = null;
+let cursorFramePending = false;
+
 document.addEventListener('DOMContentLoaded', function() {
     const urlParams = new URLSearchParams(window.location.search);
     
@@ -39,21 +62,47 @@ document.addEventListener('DOMContentLoaded', function() {
         matchBrackets: true,
     });
 
-    // Add code editor change listener for real-time sync
-    editor.on('change', function(instance, changeObj) {
-        // Only broadcast changes made by the local user, not remote updates
-        if (!isRemoteUpdate && stompClient && stompClient.connected) {
-            const codeSyncMessage = {
-                sender: username,
-                code: instance.getValue(),
-                language: 'cpp',
-                roomId: roomId,
-                type: 'UPDATE'
-            };
-            stompClient.send('/app/code.sync', {}, JSON.stringify(codeSyncMessage));
+    // Read only until the first catch-up tells us the room revision
+    editor.setOption('readOnly', true);
+
+    // Turn local edits into operations instead of sending the whole document
+    editor.on('changes', function(instance, changes) {
+        if (isRemoteUpdate) {
+            return;
+        }
+        let operation = null;
+        changes.forEach(change => {
+            if (change.origin === 'remote') {
+                return;
+            }
+            const from = indexFromPosInText(shadowText, change.from);
+            const to = indexFromPosInText(shadowText, change.to);
+            const op = new TextOperation()
+                .retain(from)
+                .delete(to - from)
+                .insert(change.text.join('\n'))
+                .retain(shadowText.length - to);
+            shadowText = op.apply(shadowText);
+            operation = operation ? operation.compose(op) : op;
+        });
+        if (operation && !operation.isNoop()) {
+            applyLocalOperation(operation);
+            notifyTyping();
         }
     });
 
+    // Cursor moves are sent at most once per animation frame, the server merges the rest
+    editor.on('cursorActivity', function() {
+        if (cursorFramePending) {
+            return;
+        }
+        cursorFramePending = true;
+        requestAnimationFrame(() => {
+            cursorFramePending = false;
+            sendPresence('CURSOR_ACTIVITY');
+        });
+    });
+
     connect();
     
     document.getElementById('run-code-btn').addEventListener('click', handleRunCode);
@@ -168,12 +217,15 @@ function handleRunCode() {
     }
 
     clearTerminal();
+    clearCompileDiagnostics();
     addTerminalText('$ Running program...\n', 'info');
 
     if (stompClient && stompClient.connected) {
         const request = {
             code: code,
-            language: 'cpp'
+            language: 'cpp',
+            roomId: roomId,
+            username: username
         };
         stompClient.send('/app/compiler/execute', {}, JSON.stringify(request));
     } else {
@@ -182,6 +234,15 @@ function handleRunCode() {
 }
 
 function connect() {
+    if (useRawSocket) {
+        stompClient = Stomp.client(WS_RAW_URL);
+        stompClient.ws.binaryType = 'arraybuffer';
+        stompClient.debug = null;
+        // Ask for compact binary sync and compiler output frames
+        stompClient.connect({ 'sync-encoding': 'binary' }, onConnected, onError);
+        return;
+    }
+    
     const socket = new SockJS(WS_URL);
     stompClient = Stomp.over(socket);
     stompClient.debug = null;
@@ -191,10 +252,24 @@ function connect() {
 
 function onConnected() {
     console.log('Connected to WebSocket');
+    if (useRawSocket) {
+        rawSocketWorked = true;
+        // No SockJS URL to read the session id from, the server tells us
+        const subscription = stompClient.subscribe('/app/session', function (frame) {
+            subscription.unsubscribe();
+            sessionId = frame.body;
+            onSessionReady();
+        });
+        return;
+    }
+    
     var transport = stompClient.ws._transport;
     var a = transport.url.split('/');
     sessionId = a[a.length - 2];
+    onSessionReady();
+}
 
+function onSessionReady() {
     console.log('Session ID:', sessionId);
     console.log('Room ID:', roomId);
     console.log('Username:', username);
@@ -215,6 +290,13 @@ function onConnected() {
     stompClient.subscribe('/topic/code/' + roomId, onCodeSyncReceived);
     console.log('Subscribed to code sync:', '/topic/code/' + roomId);
     
+    // One combined presence frame per tick for the whole room
+    stompClient.subscribe('/topic/presence/' + roomId, onPresenceReceived);
+    
+    // Catch-ups only come to us: snapshot + op tail on join, missing ops on reconnect
+    stompClient.subscribe('/user/' + sessionId + '/topic/code/catchup', onCatchUpReceived);
+    joinDocument(hasDocument ? revision : -1);
+    
     document.getElementById('connection-status').classList.add('connected');
     
     // Notify the room that this user has joined
@@ -229,7 +311,15 @@ function onConnected() {
 }
 
 function onCompilerOutputReceived(payload) {
-    const response = JSON.parse(payload.body);
+    const response = WireFormat.decode(payload);
+    if (response.status) {
+        onExecutionStatus(response);
+        return;
+    }
+    if (response.severity) {
+        onCompileDiagnostic(response);
+        return;
+    }
     const output = response.output; 
 
     addTerminalText(output, response.error ? 'error' : 'output');
@@ -241,10 +331,70 @@ function onCompilerOutputReceived(payload) {
     }
 }
 
+// Marks a g++ error / warning position in the editor, the message shows on hover
+function onCompileDiagnostic(diagnostic) {
+    if (diagnostic.file !== 'main.cpp' || diagnostic.severity === 'note' || !editor) {
+        return;
+    }
+    const line = diagnostic.line - 1;
+    if (line < 0 || line >= editor.lineCount()) {
+        return;
+    }
+    const isError = diagnostic.severity !== 'warning';
+    const lineHandle = editor.addLineClass(line, 'background', isError ? 'compile-error-line' : 'compile-warning-line');
+    diagnosticMarkers.push({ clear: () => editor.removeLineClass(lineHandle, 'background') });
+
+    const lineLength = editor.getLine(line).length;
+    const ch = Math.min(Math.max(diagnostic.column - 1, 0), lineLength);
+    const from = { line: line, ch: ch };
+    const to = { line: line, ch: ch < lineLength ? ch + 1 : ch };
+    diagnosticMarkers.push(editor.markText(from, to, {
+        className: isError ? 'compile-error-mark' : 'compile-warning-mark',
+        title: diagnostic.severity + ': ' + diagnostic.message
+    }));
+}
+
+function clearCompileDiagnostics() {
+    diagnosticMarkers.forEach(marker => marker.clear());
+    diagnosticMarkers = [];
+}
+
+// Queue position updates from the execution scheduler, shown on one line that is updated in place
+function onExecutionStatus(status) {
+    let statusLine = document.getElementById('execution-status-line');
+    if (status.status === 'STARTED') {
+        if (statusLine) {
+            statusLine.remove();
+        }
+        return;
+    }
+    if (!statusLine) {
+        statusLine = document.createElement('div');
+        statusLine.id = 'execution-status-line';
+        document.getElementById('terminal-content').appendChild(statusLine);
+    }
+    statusLine.className = status.status === 'REJECTED' ? 'terminal-line error' : 'terminal-line waiting';
+    statusLine.textContent = status.message + '\n';
+    if (status.status === 'REJECTED') {
+        // Keep the message but let the next run start a fresh status line
+        statusLine.removeAttribute('id');
+    }
+    scrollTerminalToBottom();
+}
+
 function onError(error) {
     console.error('WebSocket connection error:', error);
-    addTerminalText('Connection lost. Please refresh the page.\n', 'error');
+    addTerminalText('Connection lost. Reconnecting...\n', 'error');
     document.getElementById('connection-status').classList.remove('connected');
+    
+    if (useRawSocket && !rawSocketWorked) {
+        // Plain WebSockets are blocked somewhere on the way, stay on SockJS
+        useRawSocket = false;
+    }
+    
+    // Keep the local document and sync state, the catch-up after
+    // reconnecting only sends what we missed
+    setTimeout(connect, 2000);
 }
 
 function sendMessage(event) {
@@ -375,34 +525,252 @@ function fetchRoomUserCount() {
 
 function onCodeSyncReceived(payload) {
     try {
-        const message = JSON.parse(payload.body);
-        console.log('Code sync received from:', message.sender);
+        const message = WireFormat.decode(payload);
         
-        // Don't apply our own updates back to the editor
-        if (message.sender === username) {
-            return;
+        if (message.type === 'DELTA') {
+            if (catchingUp) {
+                queuedDeltas.push(message);
+            } else {
+                onServerDelta(message);
+            }
+        } else if (message.type === 'RESYNC') {
+            // We were too slow, the server folded the deltas we missed into this marker
+            requestCatchUp();
+        }
+        // Full UPDATEs from old clients also arrive as the DELTA the server turned them into
+    } catch (error) {
+        console.error('Error processing code sync:', error);
+        isRemoteUpdate = false;
+        requestCatchUp();
+    }
+}
+
+function onServerDelta(message) {
+    if (message.revision <= revision) {
+        return; // Already applied
+    }
+    if (message.revision !== revision + 1) {
+        // We missed an op somewhere, fetch everything after the last one we have
+        requestCatchUp();
+        return;
+    }
+    
+    let operation = TextOperation.fromJSON(message.ops);
+    serverText = operation.apply(serverText);
+    
+    if (message.clientId === clientId) {
+        // Our own op came back, it is now part of the server history
+        revision = message.revision;
+        outstanding = buffer;
+        buffer = null;
+        if (outstanding) {
+            sendOperation(outstanding);
         }
+        return;
+    }
+    
+    if (outstanding) {
+        const pair = TextOperation.transform(outstanding, operation);
+        outstanding = pair[0];
+        operation = pair[1];
+    }
+    if (buffer) {
+        const pair = TextOperation.transform(buffer, operation);
+        buffer = pair[0];
+        operation = pair[1];
+    }
+    revision = message.revision;
+    applyRemoteOperation(operation);
+}
+
+function onCatchUpReceived(payload) {
+    const catchUp = WireFormat.decode(payload);
+    
+    if (catchUp.type === 'RESYNC') {
+        // The server dropped frames we were too slow to take, fetch what we missed
+        requestCatchUp();
+        return;
+    }
+    
+    if (catchUp.code !== null && catchUp.code !== undefined) {
+        // Full snapshot, our unacknowledged edits are moved onto it and sent again
+        rebasePending(catchUp.code);
+        let text = catchUp.code;
+        if (outstanding) text = outstanding.apply(text);
+        if (buffer) text = buffer.apply(text);
         
-        // Set flag to prevent echo
         isRemoteUpdate = true;
-        
-        // Get current cursor position before update
         const cursor = editor.getCursor();
         const scrollInfo = editor.getScrollInfo();
-        
-        // Update editor with remote code
-        editor.setValue(message.code);
-        
-        // Restore cursor position (approximately)
+        editor.setValue(text);
         editor.setCursor(cursor);
         editor.scrollTo(scrollInfo.left, scrollInfo.top);
-        
-        // Reset flag
         isRemoteUpdate = false;
         
+        shadowText = editor.getValue();
+        serverText = catchUp.code;
+        revision = catchUp.baseRevision;
+        outstandingSession = null;
+    }
+    hasDocument = true;
+    
+    // Replay the op tail; our own ops in it count as acks
+    (catchUp.backlog || []).forEach(onServerDelta);
+    
+    catchingUp = false;
+    const queued = queuedDeltas;
+    queuedDeltas = [];
+    queued.forEach(onServerDelta);
+    if (catchUpAgain) {
+        catchUpAgain = false;
+        requestCatchUp();
+    }
+    
+    // An op we sent before losing the connection never made it, send it again
+    if (outstanding && outstandingSession !== sessionId) {
+        sendOperation(outstanding);
+    }
+    editor.setOption('readOnly', false);
+}
+
+// Transforms outstanding and buffer from serverText onto a snapshot of the server text
+function rebasePending(snapshot) {
+    if (!outstanding && !buffer) {
+        return;
+    }
+    let change = TextOperation.diff(serverText, snapshot);
+    try {
+        if (outstanding) {
+            const pair = TextOperation.transform(outstanding, change);
+            outstanding = pair[0];
+            change = pair[1];
+        }
+        if (buffer) {
+            buffer = TextOperation.transform(buffer, change)[0];
+        }
     } catch (error) {
-        console.error('Error processing code sync:', error);
-        isRemoteUpdate = false;
+        console.error('Could not keep local edits across the resync:', error);
+        outstanding = null;
+        buffer = null;
+    }
+}
+
+function applyLocalOperation(operation) {
+    if (outstanding) {
+        buffer = buffer ? buffer.compose(operation) : operation;
+    } else {
+        outstanding = operation;
+        sendOperation(operation);
+    }
+}
+
+function sendOperation(operation) {
+    if (!stompClient || !stompClient.connected) {
+        return; // Sent again after the reconnect catch-up
+    }
+    outstandingSession = sessionId;
+    const delta = {
+        sender: username,
+        clientId: clientId,
+        roomId: roomId,
+        type: 'DELTA',
+        baseRevision: revision,
+        ops: operation.toJSON()
+    };
+    stompClient.send('/app/code.delta', {}, JSON.stringify(delta));
+}
+
+function applyRemoteOperation(operation) {
+    isRemoteUpdate = true;
+    editor.operation(() => {
+        let index = 0;
+        operation.ops.forEach(op => {
+            if (isRetain(op)) {
+                index += op;
+            } else if (isInsert(op)) {
+                editor.replaceRange(op, editor.posFromIndex(index), null, 'remote');
+                index += op.length;
+            } else {
+                editor.replaceRange('', editor.posFromIndex(index), editor.posFromIndex(index - op), 'remote');
+            }
+        });
+    });
+    isRemoteUpdate = false;
+    shadowText = operation.apply(shadowText);
+}
+
+function sendPresence(type) {
+    if (!stompClient || !stompClient.connected) {
+        return;
+    }
+    const cursor = editor.getCursor('head');
+    const anchor = editor.getCursor('anchor');
+    const message = {
+        sender: username,
+        roomId: roomId,
+        type: type,
+        cursor: { line: cursor.line, ch: cursor.ch },
+        selection: { anchor: { line: anchor.line, ch: anchor.ch }, head: { line: cursor.line, ch: cursor.ch } }
+    };
+    stompClient.send('/app/code.sync', {}, JSON.stringify(message));
+}
+
+function notifyTyping() {
+    if (!typingTimer) {
+        sendPresence('TYPING');
+    }
+    clearTimeout(typingTimer);
+    typingTimer = setTimeout(() => {
+        typingTimer = null;
+        sendPresence('STOPPED_TYPING');
+    }, 1000);
+}
+
+function onPresenceReceived(payload) {
+    const presence = JSON.parse(payload.body);
+    
+    remoteMarkers.forEach(marker => marker.clear());
+    remoteMarkers = [];
+    
+    const typingUsers = [];
+    (presence.users || []).forEach(user => {
+        if (user.sender === username) {
+            return;
+        }
+        if (user.typing) {
+            typingUsers.push(user.sender);
+        }
+        if (user.cursor) {
+            const widget = document.createElement('span');
+            widget.className = 'remote-cursor';
+            widget.title = user.sender;
+            remoteMarkers.push(editor.setBookmark(user.cursor, { widget: widget, insertLeft: true }));
+        }
+        const selection = user.selection;
+        if (selection && (selection.anchor.line !== selection.head.line || selection.anchor.ch !== selection.head.ch)) {
+            const from = CodeMirror.cmpPos(selection.anchor, selection.head) < 0 ? selection.anchor : selection.head;
+            const to = from === selection.anchor ? selection.head : selection.anchor;
+            remoteMarkers.push(editor.markText(from, to, { className: 'CodeMirror-remote-selection' }));
+        }
+    });
+    
+    document.getElementById('editor-user').textContent =
+        typingUsers.length > 0 ? typingUsers.join(', ') + (typingUsers.length > 1 ? ' are' : ' is') + ' typing...' : '';
+    editor.getWrapperElement().classList.toggle('typing-remote', typingUsers.length > 0);
+}
+
+function joinDocument(lastRevision) {
+    if (stompClient && stompClient.connected) {
+        catchingUp = true;
+        stompClient.send('/app/code.join', {}, JSON.stringify({ roomId: roomId, baseRevision: lastRevision }));
+    }
+}
+
+function requestCatchUp() {
+    if (catchingUp) {
+        catchUpAgain = true;
+    } else {
+        joinDocument(hasDocument ? revision : -1);
     }
 }
 
@@ -0,0 +1,240 @@
+// Operational transform helpers shared with the server (see TextOperation.java)
+// An operation is an array of components:
+//   positive number -> retain, negative number -> delete, string -> insert
+
+class TextOperation {
+    constructor() {
+        this.ops = [];
+        this.baseLength = 0;
+        this.targetLength = 0;
+    }
+
+    static fromJSON(ops) {
+        const operation = new TextOperation();
+        ops.forEach(op => {
+            if (typeof op === 'string') {
+                operation.insert(op);
+            } else if (op > 0) {
+                operation.retain(op);
+            } else if (op < 0) {
+                operation.delete(-op);
+            }
+        });
+        return operation;
+    }
+
+    // Smallest single-range edit that turns from into to, same as the server
+    static diff(from, to) {
+        const max = Math.min(from.length, to.length);
+        let prefix = 0;
+        while (prefix < max && from[prefix] === to[prefix]) prefix++;
+        let suffix = 0;
+        while (suffix < max - prefix && from[from.length - 1 - suffix] === to[to.length - 1 - suffix]) suffix++;
+        return new TextOperation()
+            .retain(prefix)
+            .delete(from.length - prefix - suffix)
+            .insert(to.slice(prefix, to.length - suffix))
+            .retain(suffix);
+    }
+
+    toJSON() {
+        return this.ops;
+    }
+
+    isNoop() {
+        return this.ops.length === 0 || (this.ops.length === 1 && isRetain(this.ops[0]));
+    }
+
+    retain(n) {
+        if (n === 0) return this;
+        this.baseLength += n;
+        this.targetLength += n;
+        const last = this.ops[this.ops.length - 1];
+        if (isRetain(last)) {
+            this.ops[this.ops.length - 1] += n;
+        } else {
+            this.ops.push(n);
+        }
+        return this;
+    }
+
+    insert(str) {
+        if (str === '') return this;
+        this.targetLength += str.length;
+        const ops = this.ops;
+        const last = ops[ops.length - 1];
+        if (isInsert(last)) {
+            ops[ops.length - 1] += str;
+        } else if (isDelete(last)) {
+            // Inserts always go before deletes, same as the server
+            if (isInsert(ops[ops.length - 2])) {
+                ops[ops.length - 2] += str;
+            } else {
+                ops.splice(ops.length - 1, 0, str);
+            }
+        } else {
+            ops.push(str);
+        }
+        return this;
+    }
+
+    delete(n) {
+        if (n === 0) return this;
+        this.baseLength += n;
+        const last = this.ops[this.ops.length - 1];
+        if (isDelete(last)) {
+            this.ops[this.ops.length - 1] -= n;
+        } else {
+            this.ops.push(-n);
+        }
+        return this;
+    }
+
+    apply(str) {
+        if (str.length !== this.baseLength) {
+            throw new Error('Operation base length does not match the document');
+        }
+        const parts = [];
+        let index = 0;
+        this.ops.forEach(op => {
+            if (isRetain(op)) {
+                parts.push(str.slice(index, index + op));
+                index += op;
+            } else if (isInsert(op)) {
+                parts.push(op);
+            } else {
+                index -= op;
+            }
+        });
+        return parts.join('');
+    }
+
+    // Combines this operation with one that follows it into a single operation
+    compose(other) {
+        if (this.targetLength !== other.baseLength) {
+            throw new Error('Operations cannot be composed');
+        }
+        const result = new TextOperation();
+        const ops1 = this.ops, ops2 = other.ops;
+        let i1 = 0, i2 = 0;
+        let op1 = ops1[i1++], op2 = ops2[i2++];
+
+        while (op1 !== undefined || op2 !== undefined) {
+            if (isDelete(op1)) {
+                result.delete(-op1);
+                op1 = ops1[i1++];
+                continue;
+            }
+            if (isInsert(op2)) {
+                result.insert(op2);
+                op2 = ops2[i2++];
+                continue;
+            }
+            if (op1 === undefined || op2 === undefined) {
+                throw new Error('Operations do not line up');
+            }
+
+            if (isRetain(op1) && isRetain(op2)) {
+                if (op1 > op2) {
+                    result.retain(op2); op1 -= op2; op2 = ops2[i2++];
+                } else if (op1 === op2) {
+                    result.retain(op1); op1 = ops1[i1++]; op2 = ops2[i2++];
+                } else {
+                    result.retain(op1); op2 -= op1; op1 = ops1[i1++];
+                }
+            } else if (isInsert(op1) && isDelete(op2)) {
+                if (op1.length > -op2) {
+                    op1 = op1.slice(-op2); op2 = ops2[i2++];
+                } else if (op1.length === -op2) {
+                    op1 = ops1[i1++]; op2 = ops2[i2++];
+                } else {
+                    op2 += op1.length; op1 = ops1[i1++];
+                }
+            } else if (isInsert(op1) && isRetain(op2)) {
+                if (op1.length > op2) {
+                    result.insert(op1.slice(0, op2)); op1 = op1.slice(op2); op2 = ops2[i2++];
+                } else if (op1.length === op2) {
+                    result.insert(op1); op1 = ops1[i1++]; op2 = ops2[i2++];
+                } else {
+                    result.insert(op1); op2 -= op1.length; op1 = ops1[i1++];
+                }
+            } else {
+                // retain / delete
+                if (op1 > -op2) {
+                    result.delete(-op2); op1 += op2; op2 = ops2[i2++];
+                } else if (op1 === -op2) {
+                    result.delete(-op2); op1 = ops1[i1++]; op2 = ops2[i2++];
+                } else {
+                    result.delete(op1); op2 += op1; op1 = ops1[i1++];
+                }
+            }
+        }
+        return result;
+    }
+
+    // Returns [a', b'] so that a + b' == b + a'. On equal inserts a wins.
+    static transform(a, b) {
+        if (a.baseLength !== b.baseLength) {
+            throw new Error('Both operations have to have the same base length');
+        }
+        const aPrime = new TextOperation(), bPrime = new TextOperation();
+        const ops1 = a.ops, ops2 = b.ops;
+        let i1 = 0, i2 = 0;
+        let op1 = ops1[i1++], op2 = ops2[i2++];
+
+        while (op1 !== undefined || op2 !== undefined) {
+            if (isInsert(op1)) {
+                aPrime.insert(op1);
+                bPrime.retain(op1.length);
+                op1 = ops1[i1++];
+                continue;
+            }
+            if (isInsert(op2)) {
+                aPrime.retain(op2.length);
+                bPrime.insert(op2);
+                op2 = ops2[i2++];
+                continue;
+            }
+            if (op1 === undefined || op2 === undefined) {
+                throw new Error('Operations do not cover the same document');
+            }
+
+            const min = Math.min(Math.abs(op1), Math.abs(op2));
+            if (isRetain(op1) && isRetain(op2)) {
+                aPrime.retain(min);
+                bPrime.retain(min);
+            } else if (isDelete(op1) && isRetain(op2)) {
+                aPrime.delete(min);
+            } else if (isRetain(op1) && isDelete(op2)) {
+                bPrime.delete(min);
+            }
+
+            op1 = Math.abs(op1) > min ? op1 - Math.sign(op1) * min : ops1[i1++];
+            op2 = Math.abs(op2) > min ? op2 - Math.sign(op2) * min : ops2[i2++];
+        }
+        return [aPrime, bPrime];
+    }
+}
+
+function isRetain(op) {
+    return typeof op === 'number' && op > 0;
+}
+
+function isDelete(op) {
+    return typeof op === 'number' && op < 0;
+}
+
+function isInsert(op) {
+    return typeof op === 'string';
+}
+
+// Character offset of a CodeMirror {line, ch} position inside plain text
+function indexFromPosInText(text, pos) {
+    let index = 0;
+    for (let line = 0; line < pos.line; line++) {
+        const next = text.indexOf('\n', index);
+        if (next === -1) return text.length;
+        index = next + 1;
+    }
+    return index + pos.ch;
+}
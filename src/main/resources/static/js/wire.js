@@ -0,0 +1,128 @@
+// Decoder for binary sync / compiler output frames (BinaryFrameCodec on the server).
+// Frames without the octet-stream content type are plain JSON.
+
+const WireFormat = (function () {
+    const KIND_DELTA = 1;
+    const KIND_CATCHUP = 2;
+    const KIND_RESYNC = 3;
+    const KIND_OUTPUT = 4;
+
+    const utf8 = new TextDecoder();
+
+    function isBinary(frame) {
+        const type = frame.headers['content-type'];
+        return !!type && type.indexOf('application/octet-stream') === 0;
+    }
+
+    // The body arrives as one char per byte; undo the NUL escaping on the way
+    function toBytes(body) {
+        const bytes = new Uint8Array(body.length);
+        let n = 0;
+        for (let i = 0; i < body.length; i++) {
+            const b = body.charCodeAt(i);
+            bytes[n++] = b === 1 ? body.charCodeAt(++i) - 1 : b;
+        }
+        return bytes.subarray(0, n);
+    }
+
+    class Reader {
+        constructor(bytes) {
+            this.bytes = bytes;
+            this.pos = 0;
+        }
+
+        byte() {
+            return this.bytes[this.pos++];
+        }
+
+        // Plain arithmetic instead of bit ops, values can exceed 32 bits
+        varint() {
+            let result = 0;
+            let scale = 1;
+            let b;
+            do {
+                b = this.bytes[this.pos++];
+                result += (b & 0x7f) * scale;
+                scale *= 128;
+            } while (b & 0x80);
+            return result;
+        }
+
+        signed() {
+            const v = this.varint();
+            return v % 2 === 0 ? v / 2 : -(v + 1) / 2;
+        }
+
+        utf8(length) {
+            const s = utf8.decode(this.bytes.subarray(this.pos, this.pos + length));
+            this.pos += length;
+            return s;
+        }
+
+        string() {
+            const length = this.varint();
+            return length === 0 ? null : this.utf8(length - 1);
+        }
+
+        delta() {
+            const message = {
+                type: 'DELTA',
+                sender: this.string(),
+                clientId: this.string(),
+                roomId: this.string(),
+                baseRevision: this.signed(),
+                revision: this.signed(),
+                ops: []
+            };
+            const count = this.varint();
+            for (let i = 0; i < count; i++) {
+                const header = this.varint();
+                const n = Math.floor(header / 4);
+                switch (header % 4) {
+                    case 0: message.ops.push(n); break;
+                    case 1: message.ops.push(-n); break;
+                    default: message.ops.push(this.utf8(n));
+                }
+            }
+            return message;
+        }
+    }
+
+    function decode(frame) {
+        if (!isBinary(frame)) {
+            return JSON.parse(frame.body);
+        }
+        const reader = new Reader(toBytes(frame.body));
+        const kind = reader.byte();
+        switch (kind) {
+            case KIND_DELTA:
+                return reader.delta();
+            case KIND_CATCHUP: {
+                const catchUp = {
+                    type: 'CATCHUP',
+                    roomId: reader.string(),
+                    baseRevision: reader.signed(),
+                    revision: reader.signed(),
+                    code: reader.string(),
+                    language: reader.string(),
+                    backlog: []
+                };
+                const count = reader.varint();
+                for (let i = 0; i < count; i++) {
+                    catchUp.backlog.push(reader.delta());
+                }
+                return catchUp;
+            }
+            case KIND_RESYNC:
+                return { type: 'RESYNC', roomId: reader.string() };
+            case KIND_OUTPUT: {
+                const error = reader.byte() === 1;
+                return { output: reader.string(), error: error };
+            }
+            default:
+                throw new Error('Unknown binary frame kind ' + kind);
+        }
+    }
+
+    return { decode: decode };
+})();
@@ -0,0 +1,70 @@
+package com.codecollab.source.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompileCacheServiceTest {
+
+    @TempDir
+    Path cacheDir;
+
+    @TempDir
+    Path workspace;
+
+    @Test
+    void programWritingItsBinaryDoesntChangeTheCache() throws IOException {
+        CompileCacheService cache = cache();
+        Path built = Files.writeString(workspace.resolve("main"), "binary");
+        cache.store("key", built);
+
+        Path first = workspace.resolve("first");
+        assertTrue(cache.fetch("key", first));
+        //Both the build output and the fetched copy are the runs' own files
+        Files.writeString(built, "poisoned");
+        Files.writeString(first, "poisoned");
+
+        Path second = workspace.resolve("second");
+        assertTrue(cache.fetch("key", second));
+        assertEquals("binary", Files.readString(second));
+    }
+
+    @Test
+    void entryChangedOnDiskIsDroppedOnFetch() throws IOException {
+        CompileCacheService cache = cache();
+        cache.store("key", Files.writeString(workspace.resolve("main"), "binary"));
+
+        Files.writeString(cacheDir.resolve("key"), "tampered");
+
+        Path target = workspace.resolve("target");
+        assertFalse(cache.fetch("key", target));
+        assertFalse(Files.exists(target));
+        assertEquals(0, cache.entryCount());
+        assertFalse(cache.fetch("key", target));
+    }
+
+    @Test
+    void restartKeepsCheckedEntriesOnly() throws IOException {
+        cache().store("key", Files.writeString(workspace.resolve("main"), "binary"));
+        //Stored without a hash, e.g. by an older version
+        Files.writeString(cacheDir.resolve("unchecked"), "binary");
+
+        CompileCacheService restarted = cache();
+        assertEquals(1, restarted.entryCount());
+        assertTrue(restarted.fetch("key", workspace.resolve("target")));
+        assertFalse(restarted.fetch("unchecked", workspace.resolve("target")));
+        assertFalse(Files.exists(cacheDir.resolve("unchecked")));
+    }
+
+    private CompileCacheService cache() {
+        return new CompileCacheService(new SimpleMeterRegistry(), cacheDir.toString(), 1024 * 1024, 100);
+    }
+}
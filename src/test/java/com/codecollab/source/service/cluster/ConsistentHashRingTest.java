@@ -0,0 +1,119 @@
+package com.codecollab.source.service.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConsistentHashRingTest {
+
+    private static final int VIRTUAL_NODES = 128;
+    private static final List<String> ROOMS = roomCodes(50_000);
+
+    @Test
+    void roomsSpreadEvenlyOverTheNodes() {
+        ConsistentHashRing ring = new ConsistentHashRing(Set.of("node-a", "node-b", "node-c", "node-d", "node-e"), VIRTUAL_NODES);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (String room : ROOMS) {
+            counts.merge(ring.nodeFor(room), 1, Integer::sum);
+        }
+
+        assertEquals(ring.getNodes(), counts.keySet());
+        double mean = ROOMS.size() / 5.0;
+        counts.forEach((node, count) -> assertTrue(Math.abs(count - mean) < mean * 0.2,
+                () -> node + " got " + count + " rooms, mean is " + mean + ": " + counts));
+    }
+
+    @Test
+    void joiningNodeOnlyTakesRoomsOverFromOthers() {
+        ConsistentHashRing before = new ConsistentHashRing(Set.of("node-a", "node-b", "node-c", "node-d"), VIRTUAL_NODES);
+        ConsistentHashRing after = before.withNodes(Set.of("node-a", "node-b", "node-c", "node-d", "node-e"));
+
+        int moved = 0;
+        for (String room : ROOMS) {
+            String from = before.nodeFor(room);
+            String to = after.nodeFor(room);
+            if (!from.equals(to)) {
+                assertEquals("node-e", to, room);
+                moved++;
+            }
+        }
+        //About 1/5 of the rooms belong to the newcomer
+        double share = (double) moved / ROOMS.size();
+        assertTrue(share > 0.15 && share < 0.25, "moved " + share);
+    }
+
+    @Test
+    void leavingNodeOnlyGivesUpItsOwnRooms() {
+        ConsistentHashRing before = new ConsistentHashRing(Set.of("node-a", "node-b", "node-c", "node-d", "node-e"), VIRTUAL_NODES);
+        ConsistentHashRing after = before.withNodes(Set.of("node-a", "node-b", "node-c", "node-e"));
+
+        int moved = 0;
+        for (String room : ROOMS) {
+            String from = before.nodeFor(room);
+            String to = after.nodeFor(room);
+            if (from.equals("node-d")) {
+                assertTrue(!to.equals("node-d"), room);
+                moved++;
+            } else {
+                assertEquals(from, to, room);
+            }
+        }
+        double share = (double) moved / ROOMS.size();
+        assertTrue(share > 0.15 && share < 0.25, "moved " + share);
+    }
+
+    @Test
+    void everyNodeBuildsTheSameRing() {
+        List<String> members = new ArrayList<>(List.of("node-a", "node-b", "node-c", "node-d", "node-e", "node-f"));
+        ConsistentHashRing reference = new ConsistentHashRing(new LinkedHashSet<>(members), VIRTUAL_NODES);
+
+        Random random = new Random(3);
+        for (int node = 0; node < 5; node++) {
+            //Each node learns the members in its own order
+            Collections.shuffle(members, random);
+            ConsistentHashRing ring = new ConsistentHashRing(new LinkedHashSet<>(members), VIRTUAL_NODES);
+            for (String room : ROOMS) {
+                assertEquals(reference.nodeFor(room), ring.nodeFor(room), room);
+            }
+        }
+    }
+
+    @Test
+    void sameMembersKeepTheRing() {
+        ConsistentHashRing ring = new ConsistentHashRing(Set.of("node-a", "node-b"), VIRTUAL_NODES);
+
+        assertSame(ring, ring.withNodes(new LinkedHashSet<>(List.of("node-b", "node-a"))));
+        assertNull(new ConsistentHashRing(Set.of(), VIRTUAL_NODES).nodeFor("ABCDEF"));
+        assertEquals("node-a", new ConsistentHashRing(Set.of("node-a"), 1).nodeFor("ABCDEF"));
+        assertThrows(IllegalArgumentException.class, () -> new ConsistentHashRing(Set.of("node-a"), 0));
+    }
+
+    //Same alphabet and length as RoomService's room codes
+    private static List<String> roomCodes(int count) {
+        String alphabet = "ABCDEFGHJKLMNPQRSTUVWXYZ23456789";
+        Random random = new Random(11);
+        Set<String> codes = new LinkedHashSet<>();
+        while (codes.size() < count) {
+            StringBuilder code = new StringBuilder();
+            for (int i = 0; i < 6; i++) {
+                code.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            codes.add(code.toString());
+        }
+        return new ArrayList<>(codes);
+    }
+}
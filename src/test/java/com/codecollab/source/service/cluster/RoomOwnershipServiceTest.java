@@ -0,0 +1,79 @@
+package com.codecollab.source.service.cluster;
+
+import com.codecollab.source.service.RoomDocumentService;
+import com.codecollab.source.service.RoomOperationLogService;
+import com.codecollab.source.service.RoomPersistenceService;
+import com.codecollab.source.service.manager.RoomDispatcher;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@Timeout(10)
+class RoomOwnershipServiceTest {
+
+    private static final String ROOM = "ROOM01";
+
+    private final ClusterMessageBus bus = mock(ClusterMessageBus.class);
+    private final RoomPlacement roomPlacement = mock(RoomPlacement.class);
+
+    @BeforeEach
+    void twoNodes() {
+        when(bus.nodeId()).thenReturn("node-a");
+        when(bus.members()).thenReturn(Set.of("node-a", "node-b"));
+        when(roomPlacement.placedNode(ROOM)).thenReturn("node-a");
+    }
+
+    @Test
+    void claimDoesntBlockAndRunsWaitersInOrderOnceGranted() {
+        RoomOwnershipService service = service(60_000);
+        List<String> settled = new CopyOnWriteArrayList<>();
+
+        assertNull(service.ownerOf(ROOM, () -> settled.add("first")));
+        assertNull(service.ownerOf(ROOM, () -> settled.add("second")));
+        //One claim for both
+        verify(bus, times(1)).publish(any());
+        assertTrue(settled.isEmpty());
+
+        service.onMessage(ClusterMessage.ownership(ClusterMessage.Type.GRANT, "node-b", ROOM, "node-a", 1));
+
+        assertEquals(List.of("first", "second"), settled);
+        assertEquals("node-a", service.ownerOf(ROOM, () -> settled.add("third")));
+        assertEquals(2, settled.size());
+    }
+
+    @Test
+    void claimThatTimesOutDropsItsWaiters() throws InterruptedException {
+        RoomOwnershipService service = service(50);
+        List<String> settled = new CopyOnWriteArrayList<>();
+
+        assertNull(service.ownerOf(ROOM, () -> settled.add("held")));
+        Thread.sleep(300);
+
+        //A late grant for the old claim settles nothing
+        service.onMessage(ClusterMessage.ownership(ClusterMessage.Type.GRANT, "node-b", ROOM, "node-a", 1));
+        assertTrue(settled.isEmpty());
+        //The next message starts a new claim
+        assertNull(service.ownerOf(ROOM, null));
+        verify(bus, times(2)).publish(any());
+    }
+
+    private RoomOwnershipService service(long claimTimeoutMillis) {
+        return new RoomOwnershipService(bus, roomPlacement, new RoomDispatcher(new SimpleMeterRegistry(), 1, 100),
+                mock(RoomDocumentService.class), mock(RoomPersistenceService.class), mock(RoomOperationLogService.class),
+                new SimpleMeterRegistry(), claimTimeoutMillis);
+    }
+}
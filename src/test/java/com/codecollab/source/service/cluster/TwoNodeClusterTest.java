@@ -0,0 +1,211 @@
+package com.codecollab.source.service.cluster;
+
+import com.codecollab.source.CollaborateApplication;
+import com.codecollab.source.repository.MessageRepository;
+import com.codecollab.source.repository.ProblemRepository;
+import com.codecollab.source.repository.ResourceRepository;
+import com.codecollab.source.repository.RoomOperationRepository;
+import com.codecollab.source.repository.RoomRepository;
+import com.codecollab.source.repository.SolutionRepository;
+import com.codecollab.source.repository.UserRepository;
+import com.codecollab.source.service.RoomDocumentService;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.messaging.converter.JacksonJsonMessageConverter;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Starts two application contexts on ephemeral ports, linked by the tcp
+ * cluster transport, with the database mocked out. A delta sent by a
+ * client of the node that doesn't own the room has to be applied by the
+ * owner and reach the clients of both nodes.
+ */
+@Timeout(120)
+class TwoNodeClusterTest {
+
+    private static final String SECRET = "two-node-test";
+    private static final List<Class<?>> REPOSITORIES = List.of(MessageRepository.class, ProblemRepository.class,
+            ResourceRepository.class, RoomOperationRepository.class, RoomRepository.class,
+            SolutionRepository.class, UserRepository.class);
+
+    private static ConfigurableApplicationContext nodeA;
+    private static ConfigurableApplicationContext nodeB;
+
+    @BeforeAll
+    static void startNodes() throws Exception {
+        int clusterPortA = freePort();
+        int clusterPortB = freePort();
+        nodeA = startNode("node-a", clusterPortA, clusterPortB);
+        nodeB = startNode("node-b", clusterPortB, clusterPortA);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (!(bus(nodeA).members().size() == 2 && bus(nodeB).members().size() == 2
+                && nodeA.getBean(RoomPlacement.class).nodes().size() == 2
+                && nodeB.getBean(RoomPlacement.class).nodes().size() == 2)) {
+            assertTrue(System.nanoTime() < deadline, "nodes never saw each other");
+            Thread.sleep(50);
+        }
+    }
+
+    @AfterAll
+    static void stopNodes() {
+        if (nodeB != null) {
+            nodeB.close();
+        }
+        if (nodeA != null) {
+            nodeA.close();
+        }
+    }
+
+    @Test
+    void deltaSentToTheOtherNodeIsAppliedByTheOwnerAndReachesBothNodes() throws Exception {
+        String roomId = roomPlacedOn(nodeA, "node-a");
+
+        WebSocketStompClient client = new WebSocketStompClient(new StandardWebSocketClient());
+        client.setMessageConverter(new JacksonJsonMessageConverter());
+        StompSession onA = connect(client, nodeA);
+        StompSession onB = connect(client, nodeB);
+        BlockingQueue<Map<String, Object>> receivedOnA = subscribe(onA, "/topic/code/" + roomId);
+        BlockingQueue<Map<String, Object>> receivedOnB = subscribe(onB, "/topic/code/" + roomId);
+
+        onB.send("/app/code.delta", Map.of(
+                "type", "DELTA",
+                "roomId", roomId,
+                "sender", "bob",
+                "clientId", "tab-b",
+                "baseRevision", 0,
+                "revision", 0,
+                "ops", List.of("hello")));
+
+        for (BlockingQueue<Map<String, Object>> received : List.of(receivedOnA, receivedOnB)) {
+            Map<String, Object> delta = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull(delta, "delta was not broadcast");
+            assertEquals("DELTA", delta.get("type"));
+            assertEquals(1, delta.get("revision"));
+            assertEquals("tab-b", delta.get("clientId"));
+            assertEquals(List.of("hello"), delta.get("ops"));
+        }
+
+        assertEquals("node-a", nodeB.getBean(RoomOwnershipService.class).currentOwner(roomId));
+        assertEquals("hello", nodeA.getBean(RoomDocumentService.class).findLoaded(roomId)
+                .orElseThrow().snapshot().code());
+        assertFalse(nodeB.getBean(RoomDocumentService.class).findLoaded(roomId).isPresent());
+
+        onA.disconnect();
+        onB.disconnect();
+    }
+
+    private static ConfigurableApplicationContext startNode(String nodeId, int clusterPort, int peerPort) {
+        return new SpringApplicationBuilder(CollaborateApplication.class)
+                .initializers(context -> {
+                    //No database in the test, the repositories hand back empty results
+                    GenericApplicationContext generic = (GenericApplicationContext) context;
+                    for (Class<?> repository : REPOSITORIES) {
+                        registerMock(generic, repository);
+                    }
+                    generic.registerBean(MongoTemplate.class, () -> mock(MongoTemplate.class, RETURNS_DEEP_STUBS));
+                })
+                //As arguments, so they win over application.properties
+                .run(
+                        "--server.port=0",
+                        "--server.address=127.0.0.1",
+                        "--spring.autoconfigure.exclude="
+                                + "org.springframework.boot.mongodb.autoconfigure.MongoAutoConfiguration,"
+                                + "org.springframework.boot.mongodb.autoconfigure.MongoReactiveAutoConfiguration,"
+                                + "org.springframework.boot.mongodb.autoconfigure.health.MongoHealthContributorAutoConfiguration,"
+                                + "org.springframework.boot.mongodb.autoconfigure.health.MongoReactiveHealthContributorAutoConfiguration,"
+                                + "org.springframework.boot.mongodb.autoconfigure.metrics.MongoMetricsAutoConfiguration,"
+                                + "org.springframework.boot.data.mongodb.autoconfigure.DataMongoAutoConfiguration,"
+                                + "org.springframework.boot.data.mongodb.autoconfigure.DataMongoReactiveAutoConfiguration,"
+                                + "org.springframework.boot.data.mongodb.autoconfigure.DataMongoReactiveRepositoriesAutoConfiguration,"
+                                + "org.springframework.boot.data.mongodb.autoconfigure.DataMongoRepositoriesAutoConfiguration",
+                        "--collab.cluster.transport=tcp",
+                        "--collab.cluster.node-id=" + nodeId,
+                        "--collab.cluster.port=" + clusterPort,
+                        "--collab.cluster.peers=127.0.0.1:" + peerPort,
+                        "--collab.cluster.secret=" + SECRET,
+                        "--collab.cluster.heartbeat-ms=200");
+    }
+
+    private static <T> void registerMock(GenericApplicationContext context, Class<T> type) {
+        context.registerBean(type, () -> mock(type));
+    }
+
+    private static String roomPlacedOn(ConfigurableApplicationContext node, String nodeId) {
+        RoomPlacement placement = node.getBean(RoomPlacement.class);
+        Random random = new Random(1);
+        while (true) {
+            StringBuilder roomId = new StringBuilder();
+            for (int i = 0; i < 6; i++) {
+                roomId.append((char) ('A' + random.nextInt(26)));
+            }
+            if (nodeId.equals(placement.placedNode(roomId.toString()))) {
+                return roomId.toString();
+            }
+        }
+    }
+
+    private static StompSession connect(WebSocketStompClient client, ConfigurableApplicationContext node) throws Exception {
+        String url = "ws://127.0.0.1:" + node.getEnvironment().getProperty("local.server.port") + "/ws-raw";
+        return client.connectAsync(url, new StompSessionHandlerAdapter() { }).get(10, TimeUnit.SECONDS);
+    }
+
+    private static BlockingQueue<Map<String, Object>> subscribe(StompSession session, String destination)
+            throws InterruptedException {
+        BlockingQueue<Map<String, Object>> received = new LinkedBlockingQueue<>();
+        StompSession.Receiptable subscription = session.subscribe(destination, new StompFrameHandler() {
+            @Override
+            public Type getPayloadType(StompHeaders headers) {
+                return Map.class;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public void handleFrame(StompHeaders headers, Object payload) {
+                received.add((Map<String, Object>) payload);
+            }
+        });
+        assertNotNull(subscription);
+        //SUBSCRIBE has no receipt here, give the broker a moment to register it
+        Thread.sleep(300);
+        return received;
+    }
+
+    private static ClusterMessageBus bus(ConfigurableApplicationContext node) {
+        return node.getBean(ClusterMessageBus.class);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
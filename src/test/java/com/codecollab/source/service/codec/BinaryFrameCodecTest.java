@@ -0,0 +1,203 @@
+package com.codecollab.source.service.codec;
+
+import com.codecollab.source.dto.CodeDeltaMessage;
+import com.codecollab.source.dto.ExecuteCodeResponse;
+import org.junit.jupiter.api.Test;
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Encodes frames with BinaryFrameCodec and decodes them with the browser's
+ * wire.js under node, the decoded message has to match what was sent.
+ * The round trips are skipped when node is not installed.
+ */
+class BinaryFrameCodecTest {
+
+    private static final String HARNESS = """
+
+            const frames = require('fs').readFileSync(0, 'utf8').trim().split('\\n').map(line => JSON.parse(line));
+            process.stdout.write(JSON.stringify(frames.map(body =>
+                WireFormat.decode({headers: {'content-type': 'application/octet-stream'}, body: body}))));
+            """;
+
+    private final JsonMapper jsonMapper = JsonMapper.builder().build();
+
+    @Test
+    void deltasRoundTrip() throws Exception {
+        List<Object> frames = List.of(
+                delta("alice", "tab-1", "room", 0, 1, List.of("hello")),
+                delta("bob", null, "room", 41, 42, List.of(5, -3, "x", 2)),
+                delta(null, null, null, -1, -1, List.of()),
+                delta("éè", "tab\u0000", "r\u0001\u0002", 127, 128,
+                        List.of(300000, "\u0000\u0001\u0002", -16384, "😀 中文", Integer.MAX_VALUE)),
+                delta("carol", "tab-2", "room", Integer.MAX_VALUE - 1, Integer.MAX_VALUE, List.of(1L << 40, -(1L << 40))));
+
+        assertRoundTrips(frames);
+    }
+
+    @Test
+    void catchUpsAndResyncsRoundTrip() throws Exception {
+        CodeDeltaMessage catchUp = new CodeDeltaMessage();
+        catchUp.setType(CodeDeltaMessage.MessageType.CATCHUP);
+        catchUp.setRoomId("room");
+        catchUp.setBaseRevision(3);
+        catchUp.setRevision(5);
+        catchUp.setBacklog(List.of(
+                delta("alice", "tab-1", "room", 3, 4, List.of(2, "a")),
+                delta("bob", "tab-2", "room", 4, 5, List.of(-1, 2))));
+
+        CodeDeltaMessage snapshot = new CodeDeltaMessage();
+        snapshot.setType(CodeDeltaMessage.MessageType.CATCHUP);
+        snapshot.setRoomId("room");
+        snapshot.setBaseRevision(-1);
+        snapshot.setRevision(900);
+        snapshot.setCode("int main() {\n\treturn 0;\n}\u0000");
+        snapshot.setLanguage("cpp");
+
+        CodeDeltaMessage resync = new CodeDeltaMessage();
+        resync.setType(CodeDeltaMessage.MessageType.RESYNC);
+        resync.setRoomId("room");
+
+        assertRoundTrips(List.of(catchUp, snapshot, resync));
+    }
+
+    @Test
+    void outputRoundTrips() throws Exception {
+        assertRoundTrips(List.of(
+                new ExecuteCodeResponse("Hello\n", false),
+                new ExecuteCodeResponse("Segmentation fault \u0000\u0001", true),
+                new ExecuteCodeResponse(null, false),
+                new ExecuteCodeResponse("x".repeat(70000), true)));
+    }
+
+    @Test
+    void encodedFramesNeverContainNul() {
+        byte[] frame = BinaryFrameCodec.encode(
+                delta("\u0000", "\u0001", "\u0000\u0001", 0, 1, List.of(0, "\u0000\u0000", -1, 1 << 14)));
+
+        for (byte b : frame) {
+            assertTrue(b != 0, () -> "NUL in " + Arrays.toString(frame));
+        }
+    }
+
+    @Test
+    void onlyDeltasAndOutputAreEncoded() {
+        assertTrue(BinaryFrameCodec.supports(CodeDeltaMessage.class));
+        assertTrue(BinaryFrameCodec.supports(ExecuteCodeResponse.class));
+        assertTrue(!BinaryFrameCodec.supports(String.class));
+        assertThrows(IllegalArgumentException.class, () -> BinaryFrameCodec.encode("text"));
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryFrameCodec.encode(delta("a", "b", "c", 0, 1, List.of(1.5f, new Object()))));
+    }
+
+    private void assertRoundTrips(List<Object> frames) throws Exception {
+        assumeTrue(nodeAvailable(), "node is not installed");
+
+        StringBuilder input = new StringBuilder();
+        for (Object frame : frames) {
+            //The browser sees the body one char per byte
+            String body = new String(BinaryFrameCodec.encode(frame), StandardCharsets.ISO_8859_1);
+            input.append(jsonMapper.writeValueAsString(body)).append('\n');
+        }
+
+        JsonNode decoded = jsonMapper.readTree(runNode(input.toString()));
+        assertEquals(frames.size(), decoded.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertEquals(jsonMapper.valueToTree(expected(frames.get(i))), decoded.get(i), "frame " + i);
+        }
+    }
+
+    //What wire.js hands to collab.js for a frame, the same shape as its JSON form
+    private static Map<String, Object> expected(Object frame) {
+        Map<String, Object> message = new HashMap<>();
+        if (frame instanceof ExecuteCodeResponse response) {
+            message.put("output", response.getOutput());
+            message.put("error", response.isError());
+            return message;
+        }
+
+        CodeDeltaMessage delta = (CodeDeltaMessage) frame;
+        message.put("type", delta.getType().name());
+        message.put("roomId", delta.getRoomId());
+        switch (delta.getType()) {
+            case DELTA -> {
+                message.put("sender", delta.getSender());
+                message.put("clientId", delta.getClientId());
+                message.put("baseRevision", delta.getBaseRevision());
+                message.put("revision", delta.getRevision());
+                message.put("ops", delta.getOps());
+            }
+            case CATCHUP -> {
+                message.put("baseRevision", delta.getBaseRevision());
+                message.put("revision", delta.getRevision());
+                message.put("code", delta.getCode());
+                message.put("language", delta.getLanguage());
+                List<Object> backlog = new ArrayList<>();
+                if (delta.getBacklog() != null) {
+                    delta.getBacklog().forEach(entry -> backlog.add(expected(entry)));
+                }
+                message.put("backlog", backlog);
+            }
+            case RESYNC -> {
+            }
+        }
+        return message;
+    }
+
+    private static CodeDeltaMessage delta(String sender, String clientId, String roomId,
+                                          int baseRevision, int revision, List<Object> ops) {
+        CodeDeltaMessage delta = new CodeDeltaMessage();
+        delta.setType(CodeDeltaMessage.MessageType.DELTA);
+        delta.setSender(sender);
+        delta.setClientId(clientId);
+        delta.setRoomId(roomId);
+        delta.setBaseRevision(baseRevision);
+        delta.setRevision(revision);
+        delta.setOps(ops);
+        return delta;
+    }
+
+    private String runNode(String input) throws Exception {
+        Path script = Files.createTempFile("wire-", ".js");
+        try (InputStream wireJs = getClass().getResourceAsStream("/static/js/wire.js")) {
+            assertNotNull(wireJs, "wire.js is not on the classpath");
+            Files.writeString(script, new String(wireJs.readAllBytes(), StandardCharsets.UTF_8) + HARNESS);
+
+            Process node = new ProcessBuilder("node", script.toString()).redirectErrorStream(true).start();
+            node.getOutputStream().write(input.getBytes(StandardCharsets.UTF_8));
+            node.getOutputStream().close();
+            String output = new String(node.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            assertEquals(0, node.waitFor(), output);
+            return output;
+        } finally {
+            Files.deleteIfExists(script);
+        }
+    }
+
+    private static boolean nodeAvailable() {
+        try {
+            Process node = new ProcessBuilder("node", "--version").redirectErrorStream(true).start();
+            node.getInputStream().readAllBytes();
+            return node.waitFor(10, TimeUnit.SECONDS) && node.exitValue() == 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.codecollab.source.service.document;
+
+import org.junit.jupiter.api.Test;
+import tools.jackson.core.type.TypeReference;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs the browser's ot.js under node against the same random operations as
+ * TextOperation, both have to transform and diff to exactly the same
+ * components.
+ * Skipped when node is not installed.
+ */
+class OtScriptCompatibilityTest {
+
+    private static final String HARNESS = """
+
+            const cases = require('fs').readFileSync(0, 'utf8').trim().split('\\n').map(line => JSON.parse(line));
+            process.stdout.write(JSON.stringify(cases.map(c => {
+                const a = TextOperation.fromJSON(c.a), b = TextOperation.fromJSON(c.b);
+                const [aPrime, bPrime] = TextOperation.transform(a, b);
+                return {aPrime: aPrime.toJSON(), bPrime: bPrime.toJSON(), composed: a.compose(bPrime).apply(c.doc),
+                        diff: TextOperation.diff(c.doc, a.apply(c.doc)).toJSON()};
+            })));
+            """;
+
+    private final JsonMapper jsonMapper = JsonMapper.builder().build();
+
+    @Test
+    void scriptTransformsAndComposesLikeTheServer() throws Exception {
+        assumeTrue(nodeAvailable(), "node is not installed");
+
+        Random random = new Random(7);
+        List<String> documents = new ArrayList<>();
+        List<TextOperation[]> operations = new ArrayList<>();
+        StringBuilder input = new StringBuilder();
+        for (int run = 0; run < 500; run++) {
+            String document = TextOperationTest.randomText(random) + TextOperationTest.randomText(random);
+            TextOperation a = TextOperationTest.randomOperation(random, document);
+            TextOperation b = TextOperationTest.randomOperation(random, document);
+            documents.add(document);
+            operations.add(new TextOperation[]{a, b});
+            input.append(jsonMapper.writeValueAsString(Map.of("doc", document, "a", a.toJson(), "b", b.toJson())))
+                    .append('\n');
+        }
+
+        List<Map<String, Object>> results = jsonMapper.readValue(runNode(input.toString()), new TypeReference<>() { });
+
+        for (int run = 0; run < documents.size(); run++) {
+            TextOperation a = operations.get(run)[0];
+            TextOperation b = operations.get(run)[1];
+            TextOperation[] primes = TextOperation.transform(a, b);
+            Map<String, Object> result = results.get(run);
+            String context = "a=" + a + " b=" + b;
+            assertEquals(primes[0].toJson(), result.get("aPrime"), context);
+            assertEquals(primes[1].toJson(), result.get("bPrime"), context);
+            assertEquals(primes[1].apply(a.apply(documents.get(run))), result.get("composed"), context);
+            assertEquals(TextOperation.diff(documents.get(run), a.apply(documents.get(run))).toJson(),
+                    result.get("diff"), context);
+        }
+    }
+
+    private String runNode(String input) throws Exception {
+        Path script = Files.createTempFile("ot-", ".js");
+        try (InputStream otJs = getClass().getResourceAsStream("/static/js/ot.js")) {
+            assertNotNull(otJs, "ot.js is not on the classpath");
+            Files.writeString(script, new String(otJs.readAllBytes(), StandardCharsets.UTF_8) + HARNESS);
+
+            Process node = new ProcessBuilder("node", script.toString()).redirectErrorStream(true).start();
+            node.getOutputStream().write(input.getBytes(StandardCharsets.UTF_8));
+            node.getOutputStream().close();
+            String output = new String(node.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            assertEquals(0, node.waitFor(), output);
+            return output;
+        } finally {
+            Files.deleteIfExists(script);
+        }
+    }
+
+    private static boolean nodeAvailable() {
+        try {
+            Process node = new ProcessBuilder("node", "--version").redirectErrorStream(true).start();
+            node.getInputStream().readAllBytes();
+            return node.waitFor(10, TimeUnit.SECONDS) && node.exitValue() == 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.codecollab.source.service.document;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RoomDocumentTest {
+
+    private static RoomDocument document(String code, int revision) {
+        return new RoomDocument("ROOM", code, "cpp", revision, 50, 10);
+    }
+
+    @Test
+    void transformsLateOpsOverWhatWasAppliedSince() {
+        RoomDocument document = document("abc", 0);
+        document.apply(0, TextOperation.fromJson(List.of("x", 3)), "a", "alice");
+        RoomDocument.LoggedOperation late = document.apply(0, TextOperation.fromJson(List.of(3, "y")), "b", "bob");
+
+        assertEquals(2, late.revision());
+        assertEquals("xabcy", document.snapshot().code());
+        assertNull(document.apply(5, TextOperation.fromJson(List.of(5)), "c", "carol"));
+    }
+
+    @Test
+    void replaceIsLoggedSoClientsCatchUpOnIt() {
+        RoomDocument document = document("int main() {}", 3);
+        RoomDocument.LoggedOperation replaced = document.replace("int main() { return 0; }", "cpp", null, "legacy");
+
+        assertEquals(4, replaced.revision());
+        RoomDocument.CatchUp catchUp = document.catchUp(3);
+        assertNull(catchUp.code());
+        assertEquals(List.of(replaced), catchUp.ops());
+        assertNull(document.replace("int main() { return 0; }", null, null, "legacy"));
+        assertEquals(4, document.getRevision());
+    }
+
+    @Test
+    void replayStopsAtAGapOrAnOpThatDoesNotFit() {
+        RoomDocument source = document("abc", 0);
+        RoomDocument.LoggedOperation first = source.apply(0, TextOperation.fromJson(List.of(3, "d")), "a", "alice");
+        RoomDocument.LoggedOperation second = source.apply(1, TextOperation.fromJson(List.of(4, "e")), "a", "alice");
+
+        RoomDocument gap = document("abc", 0);
+        assertEquals(1, gap.replay(List.of(first,
+                new RoomDocument.LoggedOperation(second.operation(), 3, "a", "alice"))));
+        assertEquals("abcd", gap.snapshot().code());
+
+        RoomDocument mismatch = document("abcdef", 0);
+        assertEquals(0, mismatch.replay(List.of(first, second)));
+        assertEquals("abcdef", mismatch.snapshot().code());
+        assertEquals(0, mismatch.getRevision());
+    }
+}
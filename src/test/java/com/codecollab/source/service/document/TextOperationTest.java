@@ -0,0 +1,113 @@
+package com.codecollab.source.service.document;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TextOperationTest {
+
+    //Random operation over a document of the given length
+    static TextOperation randomOperation(Random random, String document) {
+        TextOperation operation = new TextOperation();
+        int left = document.length();
+        while (left > 0) {
+            int count = 1 + random.nextInt(Math.min(left, 5));
+            switch (random.nextInt(3)) {
+                case 0 -> operation.retain(count);
+                case 1 -> operation.delete(count);
+                default -> {
+                    operation.insert(randomText(random));
+                    continue;
+                }
+            }
+            left -= count;
+        }
+        if (random.nextBoolean()) {
+            operation.insert(randomText(random));
+        }
+        return operation;
+    }
+
+    static String randomText(Random random) {
+        StringBuilder text = new StringBuilder();
+        int length = 1 + random.nextInt(4);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+
+    @Test
+    void appliesRetainInsertAndDelete() {
+        TextOperation operation = TextOperation.fromJson(List.of(5, " big", 1, -5, "there"));
+        assertEquals("hello big there", operation.apply("hello world"));
+        assertEquals(11, operation.getBaseLength());
+        assertEquals(15, operation.getTargetLength());
+    }
+
+    @Test
+    void rejectsDocumentOfTheWrongLength() {
+        TextOperation operation = TextOperation.fromJson(List.of(3, "x"));
+        assertThrows(IllegalArgumentException.class, () -> operation.apply("ab"));
+    }
+
+    @Test
+    void rejectsUnknownComponents() {
+        assertThrows(IllegalArgumentException.class, () -> TextOperation.fromJson(List.of(1, true)));
+        assertThrows(IllegalArgumentException.class, () -> TextOperation.fromJson(null));
+    }
+
+    @Test
+    void mergesAdjacentComponentsAndKeepsInsertsBeforeDeletes() {
+        TextOperation operation = new TextOperation().retain(2).retain(3).delete(1).insert("a").delete(2).insert("b");
+        assertEquals(List.of(5, "ab", -3), operation.toJson());
+        assertTrue(new TextOperation().retain(4).isNoop());
+    }
+
+    @Test
+    void concurrentInsertsAtTheSameSpotPutTheFirstOperationFirst() {
+        TextOperation a = TextOperation.fromJson(List.of(2, "A", 1));
+        TextOperation b = TextOperation.fromJson(List.of(2, "B", 1));
+        TextOperation[] primes = TextOperation.transform(a, b);
+        assertEquals("abABc", primes[1].apply(a.apply("abc")));
+        assertEquals("abABc", primes[0].apply(b.apply("abc")));
+    }
+
+    @Test
+    void transformConverges() {
+        Random random = new Random(42);
+        for (int run = 0; run < 2000; run++) {
+            String document = randomText(random) + randomText(random) + randomText(random);
+            TextOperation a = randomOperation(random, document);
+            TextOperation b = randomOperation(random, document);
+            TextOperation[] primes = TextOperation.transform(a, b);
+            assertEquals(primes[1].apply(a.apply(document)), primes[0].apply(b.apply(document)),
+                    "a=" + a + " b=" + b + " on " + document);
+        }
+    }
+
+    @Test
+    void diffReplacesOnlyTheChangedRange() {
+        assertEquals(List.of(6, "big ", 5), TextOperation.diff("hello world", "hello big world").toJson());
+        assertEquals(List.of(2, -1, 2), TextOperation.diff("aaxaa", "aaaa").toJson());
+        assertTrue(TextOperation.diff("same", "same").isNoop());
+
+        Random random = new Random(3);
+        for (int run = 0; run < 500; run++) {
+            String from = randomText(random) + randomText(random);
+            String to = randomOperation(random, from).apply(from);
+            assertEquals(to, TextOperation.diff(from, to).apply(from));
+        }
+    }
+
+    @Test
+    void transformRejectsDifferentBaseLengths() {
+        assertThrows(IllegalArgumentException.class,
+                () -> TextOperation.transform(new TextOperation().retain(2), new TextOperation().retain(3)));
+    }
+}
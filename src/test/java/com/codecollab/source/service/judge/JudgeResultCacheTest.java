@@ -0,0 +1,148 @@
+package com.codecollab.source.service.judge;
+
+import com.codecollab.source.entity.JudgeResult;
+import com.codecollab.source.entity.TestCase;
+import com.codecollab.source.entity.TestCaseResult;
+import com.codecollab.source.entity.Verdict;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JudgeResultCacheTest {
+
+    @TempDir
+    Path cacheDir;
+
+    @Test
+    void keyChangesWithEveryPart() {
+        JudgeResultCache cache = cache(100);
+        String key = cache.key("artifact", "tests", "limits");
+
+        assertEquals(key, cache.key("artifact", "tests", "limits"));
+        assertNotEquals(key, cache.key("artifact2", "tests", "limits"));
+        assertNotEquals(key, cache.key("artifact", "tests2", "limits"));
+        assertNotEquals(key, cache.key("artifact", "tests", "limits2"));
+        //Parts can't run into each other
+        assertNotEquals(cache.key("ab", "c", "limits"), cache.key("a", "bc", "limits"));
+    }
+
+    @Test
+    void testCaseHashCoversInputsAndExpectedOutputs() {
+        String hash = JudgeResultCache.hashTestCases(List.of(new TestCase("1 2", "3"), new TestCase("", "0")));
+
+        assertEquals(hash, JudgeResultCache.hashTestCases(List.of(new TestCase("1 2", "3"), new TestCase(null, "0"))));
+        assertNotEquals(hash, JudgeResultCache.hashTestCases(List.of(new TestCase("1 2", "4"), new TestCase("", "0"))));
+        assertNotEquals(hash, JudgeResultCache.hashTestCases(List.of(new TestCase("", "0"), new TestCase("1 2", "3"))));
+        assertNotEquals(JudgeResultCache.hashTestCases(List.of(new TestCase("1", "23"))),
+                JudgeResultCache.hashTestCases(List.of(new TestCase("12", "3"))));
+        assertNotEquals(JudgeResultCache.hashSource("python", "print(1)"), JudgeResultCache.hashSource("java", "print(1)"));
+    }
+
+    @Test
+    void storedResultsComeBackAsCopiesAndSurviveARestart() {
+        JudgeResultCache cache = cache(100);
+        String key = cache.key("artifact", "tests", "limits");
+        assertNull(cache.get(key));
+
+        JudgeResult stored = result(Verdict.WRONG_ANSWER, testCase(Verdict.ACCEPTED, false), testCase(Verdict.WRONG_ANSWER, false));
+        cache.put("problem-1", key, stored);
+
+        JudgeResult first = cache.get(key);
+        assertEquals(stored, first);
+        first.setCached(true);
+        assertNotSame(first, cache.get(key));
+        assertFalse(cache.get(key).isCached());
+
+        //A new instance finds it on disk
+        JudgeResult reloaded = cache(100).get(key);
+        assertEquals(stored, reloaded);
+    }
+
+    @Test
+    void invalidateDropsOnlyThatProblemsResults() {
+        JudgeResultCache cache = cache(100);
+        String first = cache.key("a", "tests-1", "limits");
+        String second = cache.key("b", "tests-1", "limits");
+        String other = cache.key("a", "tests-2", "limits");
+        cache.put("problem-1", first, result(Verdict.ACCEPTED));
+        cache.put("problem-1", second, result(Verdict.ACCEPTED));
+        cache.put("problem-2", other, result(Verdict.ACCEPTED));
+
+        cache.invalidate("problem-1");
+
+        assertNull(cache.get(first));
+        assertNull(cache.get(second));
+        assertNotNull(cache.get(other));
+        //Gone from disk too, a restart doesn't bring them back
+        JudgeResultCache restarted = cache(100);
+        assertNull(restarted.get(first));
+        assertNotNull(restarted.get(other));
+        cache.invalidate(null);
+    }
+
+    @Test
+    void leastRecentlyUsedResultIsEvictedPastTheEntryLimit() {
+        JudgeResultCache cache = cache(2);
+        String a = cache.key("a", "tests", "limits");
+        String b = cache.key("b", "tests", "limits");
+        String c = cache.key("c", "tests", "limits");
+        cache.put("problem-1", a, result(Verdict.ACCEPTED));
+        cache.put("problem-1", b, result(Verdict.ACCEPTED));
+        //Touching a makes b the eldest
+        assertNotNull(cache.get(a));
+        cache.put("problem-1", c, result(Verdict.ACCEPTED));
+
+        assertNotNull(cache.get(a));
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(c));
+    }
+
+    @Test
+    void onlyResultsThatDontDependOnTimingOrLimitsAreCacheable() {
+        assertTrue(JudgeResultCache.isCacheable(result(Verdict.ACCEPTED, testCase(Verdict.ACCEPTED, false))));
+        assertTrue(JudgeResultCache.isCacheable(result(Verdict.WRONG_ANSWER, testCase(Verdict.WRONG_ANSWER, false))));
+        //Crashed by itself, e.g. a segfault or an exception
+        assertTrue(JudgeResultCache.isCacheable(result(Verdict.RUNTIME_ERROR, testCase(Verdict.RUNTIME_ERROR, false))));
+
+        assertFalse(JudgeResultCache.isCacheable(result(Verdict.JUDGE_ERROR)));
+        assertFalse(JudgeResultCache.isCacheable(result(Verdict.COMPILATION_ERROR)));
+        assertFalse(JudgeResultCache.isCacheable(
+                result(Verdict.WRONG_ANSWER, testCase(Verdict.WRONG_ANSWER, false), testCase(Verdict.TIME_LIMIT_EXCEEDED, true))));
+        assertFalse(JudgeResultCache.isCacheable(
+                result(Verdict.MEMORY_LIMIT_EXCEEDED, testCase(Verdict.MEMORY_LIMIT_EXCEEDED, false))));
+        //Killed at the process limit, which the watchdog may or may not have caught in time
+        assertFalse(JudgeResultCache.isCacheable(result(Verdict.RUNTIME_ERROR, testCase(Verdict.RUNTIME_ERROR, true))));
+    }
+
+    private JudgeResultCache cache(int diskMaxEntries) {
+        return new JudgeResultCache(JsonMapper.builder().build(), new SimpleMeterRegistry(), cacheDir.toString(),
+                1024 * 1024, 16 * 1024 * 1024, diskMaxEntries);
+    }
+
+    private static JudgeResult result(Verdict verdict, TestCaseResult... cases) {
+        JudgeResult result = new JudgeResult();
+        result.setVerdict(verdict);
+        result.setTotal(cases.length);
+        result.setCases(new ArrayList<>(List.of(cases)));
+        result.setPassed((int) result.getCases().stream().filter(c -> c.getVerdict() == Verdict.ACCEPTED).count());
+        return result;
+    }
+
+    private static TestCaseResult testCase(Verdict verdict, boolean killed) {
+        return new TestCaseResult(1, verdict, 12, 10, 2048, verdict == Verdict.ACCEPTED ? 0 : 1,
+                verdict == Verdict.ACCEPTED ? null : "failed", killed);
+    }
+}
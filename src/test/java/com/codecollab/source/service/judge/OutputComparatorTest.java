@@ -0,0 +1,95 @@
+package com.codecollab.source.service.judge;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutputComparatorTest {
+
+    @Test
+    void matchingOutputSplitAnywherePasses() {
+        OutputComparator comparator = new OutputComparator("1 2\n3\n");
+
+        assertTrue(comparator.accept("1"));
+        assertTrue(comparator.accept(" 2\n"));
+        assertTrue(comparator.accept("3"));
+        assertTrue(comparator.finish());
+        assertNull(comparator.mismatch());
+    }
+
+    @Test
+    void trailingWhitespaceCrlfAndBlankTailAreIgnored() {
+        OutputComparator comparator = new OutputComparator("a\nb");
+
+        assertTrue(comparator.accept("a  \r\nb\t\r\n\n\n"));
+        assertTrue(comparator.finish());
+
+        OutputComparator shorter = new OutputComparator("a\r\n\r\n\n");
+        assertTrue(shorter.accept("a"));
+        assertTrue(shorter.finish());
+    }
+
+    @Test
+    void leadingWhitespaceStillCounts() {
+        OutputComparator comparator = new OutputComparator("x\n");
+
+        assertFalse(comparator.accept(" x\n"));
+        assertEquals("line 1: wrong output ' x'", comparator.mismatch());
+    }
+
+    @Test
+    void stopsAtTheFirstDifferingLine() {
+        OutputComparator comparator = new OutputComparator("1\n2\n3\n");
+
+        assertFalse(comparator.accept("1\n5\n3\n"));
+        assertEquals("line 2: wrong output '5'", comparator.mismatch());
+        //Once wrong it stays wrong
+        assertFalse(comparator.accept("3\n"));
+        assertFalse(comparator.finish());
+    }
+
+    @Test
+    void mismatchNeverShowsTheExpectedOutput() {
+        String secret = "the-hidden-answer";
+        OutputComparator wrong = new OutputComparator(secret + "\n");
+        assertFalse(wrong.accept("guess\n"));
+        assertFalse(wrong.mismatch().contains(secret), wrong.mismatch());
+
+        OutputComparator ended = new OutputComparator("ok\n" + secret + "\n");
+        assertTrue(ended.accept("ok\n"));
+        assertFalse(ended.finish());
+        assertEquals("line 2: the output ended too early", ended.mismatch());
+    }
+
+    @Test
+    void extraOutputAfterTheExpectedLinesFails() {
+        OutputComparator comparator = new OutputComparator("done\n");
+
+        assertTrue(comparator.accept("done\n\n"));
+        assertFalse(comparator.accept("more\n"));
+        assertEquals("line 3: unexpected extra output 'more'", comparator.mismatch());
+    }
+
+    @Test
+    void unfinishedLastLineIsCheckedOnFinish() {
+        OutputComparator comparator = new OutputComparator("42");
+
+        assertTrue(comparator.accept("4"));
+        assertFalse(comparator.finish());
+        assertEquals("line 1: wrong output '4'", comparator.mismatch());
+    }
+
+    @Test
+    void runawayLineIsCutShortWithoutANewline() {
+        OutputComparator comparator = new OutputComparator("short\n");
+
+        //Fails as soon as the line can't match any more, long before it ends
+        assertFalse(comparator.accept("x".repeat(1000)));
+        String mismatch = comparator.mismatch();
+        assertTrue(mismatch.startsWith("line 1: wrong output 'xxx"), mismatch);
+        assertTrue(mismatch.endsWith("...'"), mismatch);
+    }
+}
@@ -0,0 +1,134 @@
+package com.codecollab.source.service.manager;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the scheduler with a single run slot held by a blocking run, queues
+ * work behind it and checks the order the queue drains in.
+ */
+class ExecutionSchedulerTest {
+
+    private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch blocker = new CountDownLatch(1);
+    private ExecutionScheduler scheduler;
+
+    @AfterEach
+    void shutdown() {
+        blocker.countDown();
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void roomsGetTurnsWeightedByTheirWaitingUsers() throws Exception {
+        scheduler = scheduler(50, 4);
+        holdTheSlot();
+
+        //Room A has one busy user, room B two users
+        for (int i = 0; i < 6; i++) {
+            submit("a" + i, "ROOM-A", "alice");
+        }
+        for (int i = 0; i < 2; i++) {
+            submit("b" + i, "ROOM-B", "bob");
+            submit("c" + i, "ROOM-B", "carol");
+        }
+
+        List<String> order = drain(10);
+
+        //Per round A serves one run and B one run for each of its users
+        assertEquals(List.of("a0", "b0", "c0", "a1", "b1", "c1", "a2", "a3", "a4", "a5"), order);
+    }
+
+    @Test
+    void roomWeightIsCapped() throws Exception {
+        scheduler = scheduler(50, 2);
+        holdTheSlot();
+
+        submit("a0", "ROOM-A", "alice");
+        submit("a1", "ROOM-A", "alice");
+        for (String user : List.of("u", "v", "w", "x")) {
+            submit(user + "0", "ROOM-B", user);
+        }
+
+        List<String> order = drain(6);
+
+        //Four users in B, but it never gets more than two runs per turn
+        assertEquals(List.of("a0", "u0", "v0", "a1", "w0", "x0"), order);
+    }
+
+    @Test
+    void resubmitReplacesTheWaitingRunInPlace() throws Exception {
+        scheduler = scheduler(50, 4);
+        holdTheSlot();
+
+        submit("s1", "ROOM-A", "alice");
+        submit("s2", "ROOM-B", "bob");
+        //Same session again, keeps its place but runs the newest code
+        assertTrue(scheduler.submit("s1", "ROOM-A", "alice", position -> { }, () -> started.add("s1-new")));
+        assertEquals(2, scheduler.queueLength());
+
+        assertEquals(List.of("s1-new", "s2"), drain(2));
+    }
+
+    @Test
+    void fullQueueRejectsAndCancelFreesAPlace() throws Exception {
+        scheduler = scheduler(2, 4);
+        holdTheSlot();
+
+        submit("s1", "ROOM-A", "alice");
+        submit("s2", "ROOM-A", "bob");
+        assertFalse(scheduler.submit("s3", "ROOM-B", "carol", position -> { }, () -> started.add("s3")));
+
+        assertTrue(scheduler.cancel("s1"));
+        assertFalse(scheduler.cancel("s1"));
+        submit("s3", "ROOM-B", "carol");
+
+        assertEquals(List.of("s2", "s3"), drain(2));
+    }
+
+    private static ExecutionScheduler scheduler(int queueCapacity, int roomWeightCap) {
+        return new ExecutionScheduler(new SimpleMeterRegistry(), 1, 1, queueCapacity, 2, roomWeightCap);
+    }
+
+    //Takes the only run slot until the test lets go of it
+    private void holdTheSlot() throws InterruptedException {
+        CountDownLatch running = new CountDownLatch(1);
+        assertTrue(scheduler.submit("blocker", "ROOM-Z", "zed", position -> { }, () -> {
+            running.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+    }
+
+    private void submit(String sessionId, String roomId, String username) {
+        assertTrue(scheduler.submit(sessionId, roomId, username, position -> { }, () -> started.add(sessionId)));
+    }
+
+    private List<String> drain(int expected) throws InterruptedException {
+        blocker.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (started.size() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        synchronized (started) {
+            return List.copyOf(started);
+        }
+    }
+}
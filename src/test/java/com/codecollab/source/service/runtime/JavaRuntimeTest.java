@@ -0,0 +1,94 @@
+package com.codecollab.source.service.runtime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Compiles with the in-process javac and checks which class ends up as
+ * the jar's Main-Class.
+ */
+class JavaRuntimeTest {
+
+    private final JavaRuntime runtime = new JavaRuntime(256, "-XX:+UseSerialGC");
+    private final StringBuilder output = new StringBuilder();
+
+    @TempDir
+    Path workspace;
+
+    @Test
+    void classWithTheMainMethodIsTheMainClass() throws IOException {
+        assertEquals("app.Solution", compile("""
+                package app;
+
+                class Helper {
+                    static int twice(int x) { return 2 * x; }
+                }
+
+                class Solution {
+                    public static void main(String[] args) {
+                        System.out.println(Helper.twice(21));
+                    }
+                }
+                """));
+    }
+
+    @Test
+    void publicTopLevelClassWinsOverOtherMains() throws IOException {
+        assertEquals("Main", compile("""
+                class Tool {
+                    public static void main(String... args) { }
+                }
+
+                public class Main {
+                    static class Inner {
+                        public static void main(String[] args) { }
+                    }
+
+                    public static void main(String[] args) { }
+
+                    //Not an entry point
+                    public void main(int x) { }
+                }
+                """));
+    }
+
+    @Test
+    void nestedClassMainUsesItsBinaryName() throws IOException {
+        assertEquals("Outer$Runner", compile("""
+                class Outer {
+                    static class Runner {
+                        public static void main(String[] args) { }
+                    }
+                }
+                """));
+    }
+
+    @Test
+    void codeWithoutAMainMethodFailsToBuild() throws IOException {
+        assumeTrue(runtime.isAvailable());
+        CompileResult result = runtime.compile("class Lonely { static void main(String[] args) { } }",
+                workspace, new CompileSinks(output::append, diagnostic -> { }));
+
+        assertFalse(result.success());
+        assertTrue(output.toString().contains("public static void main"), output::toString);
+    }
+
+    private String compile(String code) throws IOException {
+        assumeTrue(runtime.isAvailable());
+        CompileResult result = runtime.compile(code, workspace, new CompileSinks(output::append, diagnostic -> { }));
+        assertTrue(result.success(), output::toString);
+        try (JarFile jar = new JarFile(workspace.resolve(runtime.artifactName()).toFile())) {
+            return jar.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.codecollab.source.service.worker;
+
+import com.codecollab.source.dto.ExecuteCodeResponse;
+import com.codecollab.source.service.CompilerService;
+import com.codecollab.source.service.manager.ExecutionReaper;
+import com.codecollab.source.service.manager.ExecutionScheduler;
+import com.codecollab.source.service.manager.OutboundSessionManager;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Runs a WorkerServer on an ephemeral port with the execution side
+ * mocked, and a WorkerPool dispatching to it over real sockets.
+ */
+@Timeout(30)
+class WorkerPoolTest {
+
+    private static final String TOKEN = "worker-test";
+    private static final long HEARTBEAT_MS = 100;
+
+    private final CompilerService compilerService = mock(CompilerService.class);
+    private final ExecutionReaper executionReaper = mock(ExecutionReaper.class);
+    private final OutboundSessionManager outboundSessionManager = new OutboundSessionManager(new SimpleMeterRegistry(),
+            512 * 1024, 4 * 1024 * 1024, 10_000);
+    //Worker side sessions of the runs the worker was handed, in order
+    private final List<String> workerSessions = new CopyOnWriteArrayList<>();
+    private WorkerServer server;
+    private WorkerPool pool;
+
+    @BeforeEach
+    void startWorker() throws Exception {
+        server = new WorkerServer(compilerService, mock(ExecutionScheduler.class), executionReaper,
+                outboundSessionManager, "worker-1", 0, "127.0.0.1", HEARTBEAT_MS, TOKEN);
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        if (pool != null) {
+            pool.stop();
+        }
+        server.stop();
+    }
+
+    @Test
+    void runGoesToTheWorkerAndItsOutputComesBack() throws Exception {
+        //The worker prints one line and finishes
+        doAnswer(invocation -> {
+            workerSessions.add(invocation.getArgument(2));
+            Consumer<ExecuteCodeResponse> output = invocation.getArgument(5);
+            output.accept(new ExecuteCodeResponse("hello from the worker\n", false));
+            ((Runnable) invocation.getArgument(8)).run();
+            return null;
+        }).when(compilerService).executeLocally(anyString(), anyString(), anyString(), any(), any(),
+                any(), any(), any(), any());
+        pool = connectedPool(TOKEN);
+
+        BlockingQueue<ExecuteCodeResponse> received = new LinkedBlockingQueue<>();
+        assertTrue(pool.dispatch("session-1", "print('hi')", "python", "ROOM01", "alice",
+                received::add, status -> { }, diagnostic -> { }, () -> { }));
+
+        ExecuteCodeResponse output = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(output);
+        assertEquals("hello from the worker\n", output.getOutput());
+        assertEquals(1, workerSessions.size());
+        waitFor(() -> pool.sessionIds().isEmpty(), "job was never finished");
+        assertEquals("worker-1", pool.workers().get(0).workerId());
+    }
+
+    @Test
+    void dispatcherWithoutTheTokenIsRefused() throws Exception {
+        pool = new WorkerPool(new SimpleMeterRegistry(), "127.0.0.1:" + server.getPort(), HEARTBEAT_MS, true, "wrong");
+        pool.start();
+
+        //A few dial attempts' worth
+        Thread.sleep(1500);
+        assertTrue(pool.workers().isEmpty());
+        assertFalse(pool.dispatch("session-1", "print('hi')", "python", "ROOM01", "alice",
+                output -> { }, status -> { }, diagnostic -> { }, () -> { }));
+        verify(compilerService, never()).executeLocally(anyString(), anyString(), anyString(), any(), any(),
+                any(), any(), any(), any());
+    }
+
+    @Test
+    void runAgainStopsTheEarlierJobOnceTheNewOneIsOnAWorker() throws Exception {
+        //Runs stay running until cancelled
+        doAnswer(invocation -> {
+            workerSessions.add(invocation.getArgument(2));
+            return null;
+        }).when(compilerService).executeLocally(anyString(), anyString(), anyString(), any(), any(),
+                any(), any(), any(), any());
+        pool = connectedPool(TOKEN);
+
+        assertTrue(pool.dispatch("session-1", "first", "python", "ROOM01", "alice",
+                output -> { }, status -> { }, diagnostic -> { }, () -> { }));
+        waitFor(() -> workerSessions.size() == 1, "first run never reached the worker");
+        assertTrue(pool.dispatch("session-1", "second", "python", "ROOM01", "alice",
+                output -> { }, status -> { }, diagnostic -> { }, () -> { }));
+        waitFor(() -> workerSessions.size() == 2, "second run never reached the worker");
+
+        verify(executionReaper, timeout(5000)).sessionClosed(workerSessions.get(0));
+        verify(executionReaper, never()).sessionClosed(workerSessions.get(1));
+        assertEquals(Set.of("session-1"), pool.sessionIds());
+
+        assertTrue(pool.cancel("session-1"));
+        verify(executionReaper, timeout(5000)).sessionClosed(workerSessions.get(1));
+        assertFalse(pool.cancel("session-1"));
+    }
+
+    @Test
+    void runWithoutOutputMovesHereWhenItsWorkerGoesAway() throws Exception {
+        doAnswer(invocation -> {
+            workerSessions.add(invocation.getArgument(2));
+            return null;
+        }).when(compilerService).executeLocally(anyString(), anyString(), anyString(), any(), any(),
+                any(), any(), any(), any());
+        pool = connectedPool(TOKEN);
+
+        CountDownLatch ranHere = new CountDownLatch(1);
+        assertTrue(pool.dispatch("session-1", "slow", "python", "ROOM01", "alice",
+                output -> { }, status -> { }, diagnostic -> { }, ranHere::countDown));
+        waitFor(() -> workerSessions.size() == 1, "run never reached the worker");
+
+        server.stop();
+
+        assertTrue(ranHere.await(5, TimeUnit.SECONDS), "run was not moved here");
+        assertTrue(pool.sessionIds().isEmpty());
+    }
+
+    private WorkerPool connectedPool(String token) throws InterruptedException {
+        WorkerPool workerPool = new WorkerPool(new SimpleMeterRegistry(), "127.0.0.1:" + server.getPort(),
+                HEARTBEAT_MS, true, token);
+        workerPool.start();
+        waitFor(() -> !workerPool.workers().isEmpty(), "pool never connected to the worker");
+        return workerPool;
+    }
+
+    private static void waitFor(BooleanSupplier condition, String failure) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, failure);
+            Thread.sleep(20);
+        }
+    }
+}